@@ -0,0 +1,49 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The executor of the default {@link Compiler#compileAsync(CompilationTask)}.
+ * The tasks of all compilers without a queue of their own are run by one
+ * pool of daemon threads, one per available processor, and the waiting
+ * tasks are started in the order of their priority classes, so starting
+ * many tasks at once doesn't start as many threads.
+ */
+final class AsyncCompilation
+{
+    static private final AtomicInteger threadCounter = new AtomicInteger(0);
+    static private final ThreadPoolExecutor executor;
+    static {
+	final int threads = Runtime.getRuntime().availableProcessors();
+	//The tasks are queued as PrioritizedJob
+	executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+					  new PriorityBlockingQueue<>(), r -> {
+					      final var t = new Thread(r, "atessera-compile-async-" + threadCounter.incrementAndGet());
+					      t.setDaemon(true);
+					      return t;
+					  });
+    }
+
+    private AsyncCompilation()
+    {
+    }
+
+    static CompletableFuture<CompilationResult> submit(Compiler compiler, CompilationTask task)
+    {
+	final var res = new CompletableFuture<CompilationResult>();
+	executor.execute(new PrioritizedJob(task.getPriority(), () -> {
+		    try {
+			res.complete(compiler.compile(task));
+		    }
+		    catch(Throwable ex)
+		    {
+			res.completeExceptionally(ex);
+		    }
+		}));
+	return res;
+    }
+}
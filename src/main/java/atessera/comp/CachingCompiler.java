@@ -0,0 +1,661 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.nio.charset.*;
+import org.apache.logging.log4j.*;
+import com.google.gson.*;
+
+import static java.util.Objects.*;
+import static java.nio.file.Files.*;
+
+/**
+ * {@link Compiler} decorator that reuses results of previously executed
+ * identical tasks.
+ *
+ * <p>Every task is identified by a content fingerprint computed over its
+ * text sources, binary sources, commands and save lists. When a task with
+ * an already known fingerprint arrives, the stored
+ * {@link CompilationResult} is returned without running any command.
+ * Results are kept in two tiers:</p>
+ *
+ * <ol>
+ *   <li>An in-memory tier bounded by the total size of the stored output
+ *       files and captured lines; the least recently used entries are
+ *       evicted first.</li>
+ *   <li>An optional on-disk tier in a caller-specified directory, bounded
+ *       by the total size of its files; again, the least recently used
+ *       entries are evicted first. The disk tier survives restarts and
+ *       can be shared by several instances, as entries are published with
+ *       an atomic rename.</li>
+ * </ol>
+ *
+ * <p>If the task has an {@link CompilationTask#getOutputDir() output
+ * directory}, the output files are never loaded into memory: on a miss
+ * they are copied from the output directory to the disk tier only, and
+ * on a hit they are copied from the disk tier to the output directory.
+ * A result stored in the memory tier is written to the output directory
+ * as well.</p>
+ *
+ * <p>If the task has a {@link CompilationListener}, the stored output is
+ * replayed to it on a hit, so the listener sees the same lines it would
+ * see during a real compilation.</p>
+ *
+ * <p>Only successful results (with the exit code equal to zero) are
+ * stored, so failures caused by the environment (e.g. a missing LaTeX
+ * package installed later) are never replayed. Every returned result is a
+ * fresh object with its own maps, but the captured lines and the
+ * contents of the output files are shared with the cache and must not be
+ * modified by the caller.</p>
+ *
+ * <p>The numbers of hits in each tier and of misses are counted and are
+ * available via {@link #getMemoryHits()}, {@link #getDiskHits()} and
+ * {@link #getMisses()}. This class is thread-safe if the underlying
+ * compiler is.</p>
+ *
+ * <p>With {@link #compileAsync(CompilationTask)} a hit completes the
+ * future at once, and a miss is started with the same method of the
+ * underlying compiler, so no thread is spent on waiting for it.</p>
+ *
+ * @see Compiler
+ * @see LocalCompiler
+ */
+public final class CachingCompiler implements Compiler
+{
+    static private final Logger log = LogManager.getLogger();
+    static private final Gson gson = new Gson();
+    static private final String
+	RESULT_FILE = "result.json",
+	BINARY_EXT = ".bin",
+	TEMP_PREFIX = ".tmp-";
+
+    private final Compiler compiler;
+    private final long maxMemoryBytes, maxDiskBytes;
+    private final Path diskDir;
+
+    /** The memory tier in access order; guarded by {@code this}. */
+    private final LinkedHashMap<String, MemoryEntry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes = 0;
+
+    /**
+     * Sizes of the entries in the disk tier in access order; guarded by
+     * {@code diskEntries}. Only the index is changed under the lock, the
+     * files are read and written outside of it: the entries are published
+     * and withdrawn with an atomic rename, so a reader finds either a
+     * whole entry or no entry at all.
+     */
+    private final LinkedHashMap<String, Long> diskEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskBytes = 0;
+
+    private final AtomicLong
+	memoryHits = new AtomicLong(0),
+	diskHits = new AtomicLong(0),
+	misses = new AtomicLong(0);
+
+    /**
+     * Constructs a caching compiler with the in-memory tier only.
+     *
+     * @param compiler       the compiler to delegate cache misses to; must
+     *                       not be {@code null}
+     * @param maxMemoryBytes the maximum total size of the results kept in
+     *                       memory; zero disables the memory tier
+     */
+    public CachingCompiler(Compiler compiler, long maxMemoryBytes)
+    {
+	this.compiler = requireNonNull(compiler, "compiler can't be null");
+	if (maxMemoryBytes < 0)
+	    throw new IllegalArgumentException("maxMemoryBytes can't be negative");
+	this.maxMemoryBytes = maxMemoryBytes;
+	this.diskDir = null;
+	this.maxDiskBytes = 0;
+    }
+
+    /**
+     * Constructs a caching compiler with both the in-memory and the on-disk
+     * tiers. The directory is created if it does not exist, and the
+     * entries already stored in it are picked up.
+     *
+     * @param compiler       the compiler to delegate cache misses to; must
+     *                       not be {@code null}
+     * @param maxMemoryBytes the maximum total size of the results kept in
+     *                       memory; zero disables the memory tier
+     * @param diskDir        the directory for the on-disk tier; must not be
+     *                       {@code null}
+     * @param maxDiskBytes   the maximum total size of the files in the
+     *                       on-disk tier
+     * @throws RuntimeException if the directory can't be created or read
+     */
+    public CachingCompiler(Compiler compiler, long maxMemoryBytes, Path diskDir, long maxDiskBytes)
+    {
+	this.compiler = requireNonNull(compiler, "compiler can't be null");
+	if (maxMemoryBytes < 0)
+	    throw new IllegalArgumentException("maxMemoryBytes can't be negative");
+	if (maxDiskBytes < 0)
+	    throw new IllegalArgumentException("maxDiskBytes can't be negative");
+	this.maxMemoryBytes = maxMemoryBytes;
+	this.diskDir = requireNonNull(diskDir, "diskDir can't be null");
+	this.maxDiskBytes = maxDiskBytes;
+	try {
+	    createDirectories(diskDir);
+	    final var found = new ArrayList<Path>();
+	    final var times = new HashMap<Path, Long>();
+	    try (final var s = list(diskDir)) {
+		for(final var p: s.toList())
+		{
+		    if (p.getFileName().toString().startsWith(TEMP_PREFIX))
+		    {
+			deleteTree(p);
+			continue;
+		    }
+		    if (isDirectory(p) && exists(p.resolve(RESULT_FILE)))
+		    {
+			found.add(p);
+			times.put(p, getLastModifiedTime(p).toMillis());
+		    }
+		}
+	    }
+	    //The least recently used entries go first
+	    found.sort((p1, p2) -> Long.compare(times.get(p1), times.get(p2)));
+	    for(final var p: found)
+	    {
+		final long size = treeSize(p);
+		diskEntries.put(p.getFileName().toString(), size);
+		diskBytes += size;
+	    }
+	}
+	catch(IOException ex)
+	{
+	    throw new RuntimeException(ex);
+	}
+	log.debug("{} cached results found in {}, {} bytes", diskEntries.size(), diskDir.toString(), diskBytes);
+    }
+
+    /**
+     * Returns the stored result of an identical task if there is one, or
+     * executes the task with the underlying compiler otherwise.
+     *
+     * @param task the compilation task to execute; must not be {@code null}
+     * @return the compilation result
+     */
+    @Override public CompilationResult compile(CompilationTask task)
+    {
+	requireNonNull(task, "task can't be null");
+	final var key = Fingerprint.of(task);
+	final var res = lookup(key, task);
+	if (res != null)
+	    return res;
+	misses.incrementAndGet();
+	return store(key, compiler.compile(task));
+    }
+
+    /**
+     * Completes the future at once with the stored result of an identical
+     * task if there is one, or starts the task on the underlying compiler
+     * otherwise, storing the result once it arrives.
+     *
+     * @param task the compilation task to execute; must not be {@code null}
+     * @return the future completed with the compilation result
+     */
+    @Override public CompletableFuture<CompilationResult> compileAsync(CompilationTask task)
+    {
+	requireNonNull(task, "task can't be null");
+	final var key = Fingerprint.of(task);
+	final var res = lookup(key, task);
+	if (res != null)
+	    return CompletableFuture.completedFuture(res);
+	misses.incrementAndGet();
+	return compiler.compileAsync(task).thenApply(r -> store(key, r));
+    }
+
+    /**
+     * Looks for the stored result of the task in both tiers.
+     *
+     * @return a copy of the stored result, already replayed to the listener
+     *         of the task, or {@code null} on a miss
+     */
+    private CompilationResult lookup(String key, CompilationTask task)
+    {
+	final var outputDir = task.getOutputDir();
+	var res = getFromMemory(key);
+	if (res != null && outputDir != null)
+	    res = writeOutput(res, outputDir);
+	if (res != null)
+	{
+	    memoryHits.incrementAndGet();
+	    log.trace("Memory cache hit for {}", key);
+	    replay(res, task.getListener());
+	    return CompilationResult.copyOf(res);
+	}
+	if (diskDir != null)
+	{
+	    res = getFromDisk(key, outputDir);
+	    if (res != null)
+	    {
+		diskHits.incrementAndGet();
+		log.trace("Disk cache hit for {}", key);
+		if (outputDir == null)
+		    putToMemory(key, res);
+		replay(res, task.getListener());
+		return CompilationResult.copyOf(res);
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Stores the result of the underlying compiler if it is successful.
+     *
+     * @return the result itself
+     */
+    private CompilationResult store(String key, CompilationResult res)
+    {
+	if (res == null || res.getExitCode() != 0)
+	    return res;
+	final var stored = CompilationResult.copyOf(res);
+	//A result served from the cache costs no commands
+	stored.setCommandMetrics(new ArrayList<>());
+	if (stored.getBinaryOutputPaths().isEmpty())
+	    putToMemory(key, stored);
+	if (diskDir != null)
+	    putToDisk(key, stored);
+	return res;
+    }
+
+    /**
+     * Returns the number of tasks served from the in-memory tier.
+     *
+     * @return the number of memory hits
+     */
+    public long getMemoryHits()
+    {
+	return memoryHits.get();
+    }
+
+    /**
+     * Returns the number of tasks served from the on-disk tier.
+     *
+     * @return the number of disk hits
+     */
+    public long getDiskHits()
+    {
+	return diskHits.get();
+    }
+
+    /**
+     * Returns the number of tasks delegated to the underlying compiler.
+     *
+     * @return the number of misses
+     */
+    public long getMisses()
+    {
+	return misses.get();
+    }
+
+    private synchronized CompilationResult getFromMemory(String key)
+    {
+	final var e = memory.get(key);
+	return e != null?e.result:null;
+    }
+
+    private synchronized void putToMemory(String key, CompilationResult res)
+    {
+	final long size = sizeOf(res);
+	if (size > maxMemoryBytes)
+	    return;
+	final var old = memory.put(key, new MemoryEntry(res, size));
+	if (old != null)
+	    memoryBytes -= old.size;
+	memoryBytes += size;
+	final var it = memory.entrySet().iterator();
+	while (memoryBytes > maxMemoryBytes && it.hasNext())
+	{
+	    final var e = it.next();
+	    memoryBytes -= e.getValue().size;
+	    it.remove();
+	}
+    }
+
+    /**
+     * Reads a result from the disk tier. If the output directory is given,
+     * the output files are copied there instead of being read. The entry
+     * may be evicted while being read, then its files are gone and it's a
+     * miss.
+     */
+    private CompilationResult getFromDisk(String key, Path outputDir)
+    {
+	final var dir = diskDir.resolve(key);
+	synchronized(diskEntries) {
+	    //Marks the entry as recently used
+	    if (diskEntries.get(key) == null)
+		return null;
+	}
+	try {
+	    final DiskEntry e;
+	    try (final var r = newBufferedReader(dir.resolve(RESULT_FILE), StandardCharsets.UTF_8)) {
+		e = gson.fromJson(r, DiskEntry.class);
+	    }
+	    if (e == null)
+		throw new IOException("Empty " + RESULT_FILE);
+	    final var res = new CompilationResult();
+	    res.setOutput(e.output);
+	    res.setErrorOutput(e.errorOutput);
+	    res.setTextOutputFiles(e.textOutputFiles);
+	    res.setBinaryOutputFiles(new HashMap<>());
+	    res.setBinaryOutputPaths(new HashMap<>());
+	    for(int i = 0;i < e.binaryOutputFiles.size();i++)
+	    {
+		final var name = e.binaryOutputFiles.get(i);
+		final var file = dir.resolve(String.valueOf(i) + BINARY_EXT);
+		if (outputDir != null)
+		{
+		    try {
+			res.getBinaryOutputPaths().put(name, copyOutput(file, outputDir.resolve(name)));
+		    }
+		    catch(NoSuchFileException ex)
+		    {
+			//Evicted while being read
+			throw ex;
+		    }
+		    catch(IOException ex)
+		    {
+			//The cache entry is fine, it's the output directory failing
+			throw new UncheckedIOException(ex);
+		    }
+		} else
+		    res.getBinaryOutputFiles().put(name, readAllBytes(file));
+	    }
+	    res.setExitCode(e.exitCode);
+	    res.setLatexErrors(e.latexErrors);
+	    res.setCommandMetrics(new ArrayList<>());
+	    res.setWorkspaceBytes(e.workspaceBytes);
+	    res.setArtifactBytes(e.artifactBytes);
+	    try {
+		//Keeps the order of use for the next start
+		setLastModifiedTime(dir, FileTime.fromMillis(System.currentTimeMillis()));
+	    }
+	    catch(IOException ex)
+	    {
+		//Evicted after being read, the result is fine
+	    }
+	    return res;
+	}
+	catch(UncheckedIOException ex)
+	{
+	    log.warn("Unable to copy the cached output files to " + outputDir.toString(), ex);
+	    return null;
+	}
+	catch(IOException | JsonParseException ex)
+	{
+	    final Path removed;
+	    synchronized(diskEntries) {
+		removed = withdraw(key);
+	    }
+	    //Without the entry in the index it has been evicted while being read
+	    if (removed != null)
+	    {
+		log.warn("Unable to read the cached result from " + dir.toString() + ", dropping it", ex);
+		deleteTree(removed);
+	    }
+	    return null;
+	}
+    }
+
+    private void putToDisk(String key, CompilationResult res)
+    {
+	synchronized(diskEntries) {
+	    if (diskEntries.containsKey(key))
+		return;
+	}
+	Path temp = null;
+	try {
+	    temp = createTempDirectory(diskDir, TEMP_PREFIX);
+	    final var e = new DiskEntry();
+	    e.output = res.getOutput();
+	    e.errorOutput = res.getErrorOutput();
+	    e.textOutputFiles = res.getTextOutputFiles();
+	    e.binaryOutputFiles = new ArrayList<>();
+	    e.exitCode = res.getExitCode();
+	    e.latexErrors = res.getLatexErrors();
+	    e.workspaceBytes = res.getWorkspaceBytes();
+	    e.artifactBytes = res.getArtifactBytes();
+	    for(final var b: res.getBinaryOutputFiles().entrySet())
+	    {
+		write(temp.resolve(String.valueOf(e.binaryOutputFiles.size()) + BINARY_EXT), b.getValue());
+		e.binaryOutputFiles.add(b.getKey());
+	    }
+	    for(final var b: res.getBinaryOutputPaths().entrySet())
+	    {
+		Files.copy(b.getValue(), temp.resolve(String.valueOf(e.binaryOutputFiles.size()) + BINARY_EXT));
+		e.binaryOutputFiles.add(b.getKey());
+	    }
+	    try (final var w = newBufferedWriter(temp.resolve(RESULT_FILE), StandardCharsets.UTF_8)) {
+		gson.toJson(e, w);
+	    }
+	    final long size = treeSize(temp);
+	    if (size > maxDiskBytes)
+	    {
+		deleteTree(temp);
+		return;
+	    }
+	    final var evicted = new ArrayList<Path>();
+	    synchronized(diskEntries) {
+		//Another thread may have stored the same result meanwhile
+		if (!diskEntries.containsKey(key))
+		{
+		    try {
+			move(temp, diskDir.resolve(key), StandardCopyOption.ATOMIC_MOVE);
+			temp = null;
+		    }
+		    catch(FileAlreadyExistsException | DirectoryNotEmptyException ex)
+		    {
+			//Another instance sharing the directory has stored the same result
+		    }
+		    diskEntries.put(key, size);
+		    diskBytes += size;
+		    evictFromDisk(evicted);
+		}
+	    }
+	    if (temp != null)
+		deleteTree(temp);
+	    for(final var p: evicted)
+		deleteTree(p);
+	}
+	catch(IOException ex)
+	{
+	    log.warn("Unable to store the result in the disk cache", ex);
+	    if (temp != null)
+		deleteTree(temp);
+	}
+    }
+
+    /**
+     * Withdraws the least recently used entries while the disk tier is
+     * over its limit; called with the lock of {@code diskEntries} held.
+     *
+     * @param removed the list to add the withdrawn directories to, for
+     *                deleting them outside of the lock
+     */
+    private void evictFromDisk(List<Path> removed)
+    {
+	final var it = new ArrayList<>(diskEntries.keySet()).iterator();
+	while (diskBytes > maxDiskBytes && it.hasNext())
+	{
+	    final var k = it.next();
+	    log.trace("Evicting {} from the disk cache", k);
+	    final var p = withdraw(k);
+	    if (p != null)
+		removed.add(p);
+	}
+    }
+
+    /**
+     * Removes an entry from the index and renames its directory to a
+     * temporary name, so no reader finds it and it can be deleted outside
+     * of the lock; called with the lock of {@code diskEntries} held.
+     *
+     * @return the renamed directory, or {@code null} if there is no such
+     *         entry or its directory is already gone
+     */
+    private Path withdraw(String key)
+    {
+	final var size = diskEntries.remove(key);
+	if (size == null)
+	    return null;
+	diskBytes -= size.longValue();
+	final var dir = diskDir.resolve(key);
+	final var dest = diskDir.resolve(TEMP_PREFIX + UUID.randomUUID().toString());
+	try {
+	    move(dir, dest, StandardCopyOption.ATOMIC_MOVE);
+	    return dest;
+	}
+	catch(NoSuchFileException ex)
+	{
+	    //Removed by another instance sharing the directory
+	    return null;
+	}
+	catch(IOException ex)
+	{
+	    log.warn("Unable to remove " + dir.toString() + " from the disk cache", ex);
+	    return null;
+	}
+    }
+
+    /**
+     * Writes the output files of a result kept in memory to the output
+     * directory, making the result of the form the task expects.
+     *
+     * @return the result with the paths of the written files, or
+     *         {@code null} if they can't be written
+     */
+    static private CompilationResult writeOutput(CompilationResult res, Path outputDir)
+    {
+	final var c = CompilationResult.copyOf(res);
+	c.setBinaryOutputFiles(new HashMap<>());
+	try {
+	    for(final var e: res.getBinaryOutputFiles().entrySet())
+	    {
+		final var dest = outputDir.resolve(e.getKey());
+		createParent(dest);
+		write(dest, e.getValue());
+		c.getBinaryOutputPaths().put(e.getKey(), dest);
+	    }
+	}
+	catch(IOException ex)
+	{
+	    log.warn("Unable to write the cached output files to " + outputDir.toString(), ex);
+	    return null;
+	}
+	return c;
+    }
+
+    static private Path copyOutput(Path file, Path dest) throws IOException
+    {
+	createParent(dest);
+	return Files.copy(file, dest, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static private void createParent(Path file) throws IOException
+    {
+	final var parent = file.toAbsolutePath().getParent();
+	if (parent != null)
+	    createDirectories(parent);
+    }
+
+    /**
+     * Passes the captured output of a result to the listener of a task
+     * which hasn't been executed itself.
+     */
+    static void replay(CompilationResult res, CompilationListener listener)
+    {
+	if (listener == null)
+	    return;
+	try {
+	    for(int i = 0;i < res.getOutput().size();i++)
+		for(final var line: res.getOutput().get(i))
+		    listener.onOutput(i, line);
+	    for(int i = 0;i < res.getErrorOutput().size();i++)
+		for(final var line: res.getErrorOutput().get(i))
+		    listener.onErrorOutput(i, line);
+	}
+	catch(RuntimeException ex)
+	{
+	    log.error("The compilation listener failed", ex);
+	}
+    }
+
+    static private long sizeOf(CompilationResult res)
+    {
+	long size = 0;
+	for(final var l: res.getOutput())
+	    size += sizeOf(l);
+	for(final var l: res.getErrorOutput())
+	    size += sizeOf(l);
+	for(final var l: res.getTextOutputFiles().values())
+	    size += sizeOf(l);
+	for(final var b: res.getBinaryOutputFiles().values())
+	    size += b.length;
+	return size;
+    }
+
+    static private long sizeOf(List<String> lines)
+    {
+	long size = 0;
+	for(final var s: lines)
+	    size += 2 * s.length();
+	return size;
+    }
+
+    static private long treeSize(Path path) throws IOException
+    {
+	try (final var s = walk(path)) {
+	    long size = 0;
+	    for(final var p: s.toList())
+		if (isRegularFile(p))
+		    size += size(p);
+	    return size;
+	}
+    }
+
+    static private void deleteTree(Path path)
+    {
+	try (final var s = walk(path)) {
+	    final var l = new ArrayList<>(s.toList());
+	    Collections.reverse(l);
+	    for(final var p: l)
+		deleteIfExists(p);
+	}
+	catch(IOException ex)
+	{
+	    log.warn("Unable to delete " + path.toString(), ex);
+	}
+    }
+
+    static private final class MemoryEntry
+    {
+	final CompilationResult result;
+	final long size;
+	MemoryEntry(CompilationResult result, long size)
+	{
+	    this.result = result;
+	    this.size = size;
+	}
+    }
+
+    /** The JSON layout of the {@code result.json} file in the disk tier. */
+    static private final class DiskEntry
+    {
+	List<List<String>> output, errorOutput;
+	Map<String, List<String>> textOutputFiles;
+	List<String> binaryOutputFiles;
+	int exitCode;
+	List<LatexError> latexErrors;
+	long workspaceBytes, artifactBytes;
+    }
+}
@@ -0,0 +1,83 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+
+/**
+ * Handle for cancelling a running compilation.
+ *
+ * <p>A cancellation handle is attached to a task via
+ * {@link CompilationTask#setCancellation(Cancellation)} and may be
+ * triggered from any thread by {@link #cancel()}. The compiler executing
+ * the task kills the running command together with all its descendant
+ * processes, doesn't start the remaining commands and returns a result
+ * with {@link CompilationResult#isCancelled() cancelled} flag set,
+ * releasing the working directory immediately. Cancelling a task that
+ * hasn't started yet makes it return as soon as it starts.</p>
+ *
+ * <p>One handle may be shared by several tasks to cancel them all at
+ * once. This class is thread-safe.</p>
+ *
+ * @see CompilationTask
+ */
+public final class Cancellation
+{
+    private boolean cancelled = false;
+    private final List<Runnable> actions = new ArrayList<>();
+
+    /**
+     * Cancels the compilations using this handle. Subsequent calls have no
+     * effect.
+     */
+    public void cancel()
+    {
+	final Runnable[] a;
+	synchronized(this) {
+	    if (cancelled)
+		return;
+	    cancelled = true;
+	    a = actions.toArray(new Runnable[actions.size()]);
+	    actions.clear();
+	}
+	for(final var r: a)
+	    r.run();
+    }
+
+    /**
+     * Checks whether {@link #cancel()} has been called.
+     *
+     * @return {@code true} if the handle is cancelled
+     */
+    public synchronized boolean isCancelled()
+    {
+	return cancelled;
+    }
+
+    /**
+     * Registers an action to be run on cancellation, typically killing the
+     * running command.
+     *
+     * @param action the action to run
+     * @return {@code false} if the handle is already cancelled and the
+     *         action wasn't registered
+     */
+    synchronized boolean register(Runnable action)
+    {
+	if (cancelled)
+	    return false;
+	actions.add(action);
+	return true;
+    }
+
+    /**
+     * Removes an action registered earlier.
+     *
+     * @param action the action to remove
+     */
+    synchronized void unregister(Runnable action)
+    {
+	actions.remove(action);
+    }
+}
@@ -0,0 +1,329 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.apache.logging.log4j.*;
+
+import static java.util.Objects.*;
+
+/**
+ * {@link Compiler} decorator that lets identical tasks submitted at the
+ * same time share one execution.
+ *
+ * <p>Every task is identified by its content fingerprint, the same one
+ * {@link CachingCompiler} uses, along with its
+ * {@link CompilationTask#getOutputDir() output directory}, since the
+ * output files of a task with an output directory are moved there. The
+ * first task with a given identity is executed by the underlying
+ * compiler; the tasks with the same identity arriving while it runs wait
+ * for it and get its result, the failures included. Nothing is kept after
+ * the execution has finished, so unlike {@link CachingCompiler} this class
+ * never returns a result of a job completed earlier, and both may be used
+ * together: coalescing the concurrent misses of a cache is done by
+ * wrapping the {@code CachingCompiler} into this class.</p>
+ *
+ * <p>A waiting task still follows its own limits: if it gets cancelled
+ * via its {@link Cancellation} handle or its
+ * {@link CompilationTask#getTimeoutMillis() timeout} expires, it stops
+ * waiting and gets a cancelled or timed out result, while the shared
+ * execution goes on for the others. If the shared execution is cancelled
+ * or killed on timeout by the limits of the task which has started it, or
+ * the underlying compiler throws an exception, the waiting tasks don't
+ * take that as their result and are executed again, coalescing with each
+ * other. The same holds for {@link #compileAsync(CompilationTask)}, which
+ * starts the shared execution with the same method of the underlying
+ * compiler and doesn't block any thread on waiting for it.</p>
+ *
+ * <p>If a waiting task has a {@link CompilationListener}, the output of
+ * the shared execution is replayed to it once the result is ready. Every
+ * returned result is a fresh object with its own maps, but the captured
+ * lines and the contents of the output files are shared between the tasks
+ * and must not be modified by the caller.</p>
+ *
+ * <p>The numbers of executions and of the tasks which have got the result
+ * of another one are counted and are available via
+ * {@link #getExecutions()} and {@link #getSavedExecutions()}, and the
+ * latter also through a {@link MetricsRegistry}, if given. This class is
+ * thread-safe if the underlying compiler is.</p>
+ *
+ * @see Compiler
+ * @see CachingCompiler
+ */
+public final class CoalescingCompiler implements Compiler
+{
+    static private final Logger log = LogManager.getLogger();
+
+    private final Compiler compiler;
+    private final MetricsRegistry metrics;
+    private final ConcurrentHashMap<String, CompletableFuture<CompilationResult>> running = new ConcurrentHashMap<>();
+    private final AtomicLong
+	executions = new AtomicLong(0),
+	savedExecutions = new AtomicLong(0);
+
+    /**
+     * Constructs a coalescing compiler.
+     *
+     * @param compiler the compiler executing the tasks; must not be
+     *                 {@code null}
+     */
+    public CoalescingCompiler(Compiler compiler)
+    {
+	this(compiler, null);
+    }
+
+    /**
+     * Constructs a coalescing compiler reporting the saved executions to
+     * the metrics.
+     *
+     * @param compiler the compiler executing the tasks; must not be
+     *                 {@code null}
+     * @param metrics  the registry to count the saved executions in, or
+     *                 {@code null} if not needed
+     */
+    public CoalescingCompiler(Compiler compiler, MetricsRegistry metrics)
+    {
+	this.compiler = requireNonNull(compiler, "compiler can't be null");
+	this.metrics = metrics;
+    }
+
+    /**
+     * Executes the task with the underlying compiler, or waits for the
+     * identical task already being executed and returns its result.
+     *
+     * @param task the compilation task to execute; must not be {@code null}
+     * @return the compilation result
+     */
+    @Override public CompilationResult compile(CompilationTask task)
+    {
+	requireNonNull(task, "task can't be null");
+	final var key = getKey(task);
+	final long deadline = getDeadline(task);
+	while (true)
+	{
+	    final var own = new CompletableFuture<CompilationResult>();
+	    final var shared = running.putIfAbsent(key, own);
+	    if (shared == null)
+		return execute(key, own, task);
+	    final var res = await(shared, task, deadline);
+	    if (res == null)
+		continue;
+	    //Not the shared result means the waiting has been stopped by the limits of this task
+	    if (shared.isCompletedExceptionally() || shared.getNow(null) != res)
+		return res;
+	    if (res.isCancelled() || res.isTimedOut())
+	    {
+		log.debug("The shared compilation of {} has been stopped by the limits of another task, executing again", key);
+		continue;
+	    }
+	    savedExecutions.incrementAndGet();
+	    if (metrics != null)
+		metrics.recordSavedExecution();
+	    log.trace("Result of {} shared", key);
+	    final var c = CompilationResult.copyOf(res);
+	    //The resources have been spent by the shared execution only
+	    c.setCommandMetrics(new ArrayList<>());
+	    CachingCompiler.replay(c, task.getListener());
+	    return c;
+	}
+    }
+
+    /**
+     * Starts the task on the underlying compiler with its
+     * {@link Compiler#compileAsync(CompilationTask)}, or returns the future
+     * completed with the result of the identical task already being
+     * executed. No thread waits for the shared execution: the limits of the
+     * task are followed by completing the returned future.
+     *
+     * @param task the compilation task to execute; must not be {@code null}
+     * @return the future completed with the compilation result
+     */
+    @Override public CompletableFuture<CompilationResult> compileAsync(CompilationTask task)
+    {
+	requireNonNull(task, "task can't be null");
+	return compileAsync(getKey(task), task, getDeadline(task));
+    }
+
+    private CompletableFuture<CompilationResult> compileAsync(String key, CompilationTask task, long deadline)
+    {
+	final var own = new CompletableFuture<CompilationResult>();
+	final var shared = running.putIfAbsent(key, own);
+	if (shared == null)
+	{
+	    executions.incrementAndGet();
+	    final CompletableFuture<CompilationResult> f;
+	    try {
+		f = compiler.compileAsync(task);
+	    }
+	    catch(RuntimeException | Error ex)
+	    {
+		own.completeExceptionally(ex);
+		running.remove(key, own);
+		throw ex;
+	    }
+	    //A dependent future, so the caller completing it can't affect the waiting tasks
+	    return f.whenComplete((res, ex) -> {
+		    if (ex != null)
+			own.completeExceptionally(ex); else
+			own.complete(res);
+		    running.remove(key, own);
+		});
+	}
+	//Cancelling a dependent future leaves the shared one intact
+	final var waiting = shared.thenApply(r -> r);
+	final var cancellation = task.getCancellation();
+	final Runnable cancel = () -> waiting.cancel(false);
+	if (cancellation != null && !cancellation.register(cancel))
+	    cancel.run();
+	if (deadline != Long.MAX_VALUE)
+	    waiting.orTimeout(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	return waiting.handle((res, ex) -> {
+		if (cancellation != null)
+		    cancellation.unregister(cancel);
+		if (ex instanceof CancellationException)
+		{
+		    final var r = CompilationResult.empty();
+		    r.setExitCode(-1);
+		    r.setCancelled(true);
+		    return CompletableFuture.completedFuture(r);
+		}
+		if (ex instanceof TimeoutException)
+		{
+		    log.error("Timeout while waiting for the shared compilation");
+		    final var r = CompilationResult.empty();
+		    r.setExitCode(-1);
+		    r.setTimedOut(true);
+		    return CompletableFuture.completedFuture(r);
+		}
+		if (ex != null)
+		{
+		    log.debug("The shared compilation has failed: {}", ex.getMessage());
+		    return compileAsync(key, task, deadline);
+		}
+		if (res.isCancelled() || res.isTimedOut())
+		{
+		    log.debug("The shared compilation of {} has been stopped by the limits of another task, executing again", key);
+		    return compileAsync(key, task, deadline);
+		}
+		savedExecutions.incrementAndGet();
+		if (metrics != null)
+		    metrics.recordSavedExecution();
+		log.trace("Result of {} shared", key);
+		final var c = CompilationResult.copyOf(res);
+		//The resources have been spent by the shared execution only
+		c.setCommandMetrics(new ArrayList<>());
+		CachingCompiler.replay(c, task.getListener());
+		return CompletableFuture.completedFuture(c);
+	    }).thenCompose(f -> f);
+    }
+
+    /**
+     * Returns the number of tasks executed by the underlying compiler.
+     *
+     * @return the number of executions
+     */
+    public long getExecutions()
+    {
+	return executions.get();
+    }
+
+    /**
+     * Returns the number of tasks which have got the result of an
+     * identical task executed at the same time instead of being executed.
+     *
+     * @return the number of saved executions
+     */
+    public long getSavedExecutions()
+    {
+	return savedExecutions.get();
+    }
+
+    /**
+     * Makes the identity of the task: the fingerprint and the output
+     * directory, since the output files are moved there.
+     */
+    static private String getKey(CompilationTask task)
+    {
+	return Fingerprint.of(task) + ((task.getOutputDir() != null)?":" + task.getOutputDir().toAbsolutePath().normalize().toString():"");
+    }
+
+    static private long getDeadline(CompilationTask task)
+    {
+	return (task.getTimeoutMillis() > 0)?System.currentTimeMillis() + task.getTimeoutMillis():Long.MAX_VALUE;
+    }
+
+    private CompilationResult execute(String key, CompletableFuture<CompilationResult> own, CompilationTask task)
+    {
+	executions.incrementAndGet();
+	try {
+	    final var res = compiler.compile(task);
+	    own.complete(res);
+	    return res;
+	}
+	catch(RuntimeException | Error ex)
+	{
+	    own.completeExceptionally(ex);
+	    throw ex;
+	}
+	finally {
+	    running.remove(key, own);
+	}
+    }
+
+    /**
+     * Waits for the shared execution within the limits of the task.
+     *
+     * @return the result of the shared execution, a new cancelled or timed
+     *         out result if the waiting itself has been stopped, or
+     *         {@code null} if the shared execution has thrown an exception
+     */
+    private CompilationResult await(CompletableFuture<CompilationResult> shared, CompilationTask task, long deadline)
+    {
+	//Cancelling a dependent future leaves the shared one intact
+	final var waiting = shared.thenApply(r -> r);
+	final var cancellation = task.getCancellation();
+	final Runnable cancel = () -> waiting.cancel(false);
+	if (cancellation != null && !cancellation.register(cancel))
+	    cancel.run();
+	try {
+	    if (deadline == Long.MAX_VALUE)
+		return waiting.get();
+	    return waiting.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+	catch(CancellationException ex)
+	{
+	    final var res = CompilationResult.empty();
+	    res.setExitCode(-1);
+	    res.setCancelled(true);
+	    return res;
+	}
+	catch(TimeoutException ex)
+	{
+	    log.error("Timeout while waiting for the shared compilation");
+	    final var res = CompilationResult.empty();
+	    res.setExitCode(-1);
+	    res.setTimedOut(true);
+	    return res;
+	}
+	catch(ExecutionException ex)
+	{
+	    log.debug("The shared compilation has failed: {}", ex.getCause().getMessage());
+	    return null;
+	}
+	catch(InterruptedException ex)
+	{
+	    Thread.currentThread().interrupt();
+	    final var res = CompilationResult.empty();
+	    res.setExitCode(-1);
+	    res.setCancelled(true);
+	    return res;
+	}
+	finally {
+	    if (cancellation != null)
+		cancellation.unregister(cancel);
+	}
+    }
+}
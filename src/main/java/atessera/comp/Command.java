@@ -0,0 +1,161 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+import lombok.*;
+
+/**
+ * A command of a {@link CompilationTask} given as a program with its
+ * arguments rather than as a shell string.
+ *
+ * <p>A structured command is started directly, without an intermediate
+ * {@code /bin/bash}, so it costs one process spawn less than a shell
+ * command and needs no quoting of its arguments. The environment
+ * variables of the command may be overridden, which replaces the
+ * {@code VAR=value cmd} syntax of the shell.</p>
+ *
+ * <p>The capture policy tells how much of the output of the command is
+ * kept in the {@link CompilationResult}. The output of tools writing
+ * everything important to a log file anyway, like {@code pdflatex} in the
+ * batch mode, may be discarded or reduced to the last lines, which saves
+ * the memory and, if the task has no {@link CompilationListener}, the
+ * reading of the output at all.</p>
+ *
+ * @see CompilationTask#getSteps()
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public final class Command
+{
+    /** How much of the output of a command is kept. */
+    public enum Capture
+    {
+	/** Nothing is kept; the output goes only to the listener of the task, if any. */
+	DISCARD,
+	/** Only the last {@link Command#getTailLines() tailLines} lines of each stream are kept. */
+	TAIL,
+	/** The whole output is kept. */
+	FULL
+    };
+
+    /** The number of the last output lines the facades keep of the chatty tools. */
+    static public final int DEFAULT_TAIL_LINES = 20;
+
+    /**
+     * The program and its arguments. The program is looked up in
+     * {@code PATH} if its name has no slash.
+     */
+    private List<String> argv;
+
+    /**
+     * Environment variables to set for the command, in addition to the
+     * ones inherited from the current process; {@code null} if not needed.
+     * A {@code null} value removes the variable.
+     */
+    private Map<String, String> env;
+
+    /**
+     * The capture policy of the output; {@code null} to follow
+     * {@link CompilationTask#getOutputTailLines() outputTailLines} of the
+     * task.
+     */
+    private Capture capture;
+
+    /**
+     * The number of the last lines of each stream kept with
+     * {@link Capture#TAIL}. Zero or a negative value means the
+     * {@link CompilationTask#getOutputTailLines() outputTailLines} of the
+     * task.
+     */
+    private int tailLines;
+
+    /**
+     * Constructs a command keeping its output as the task says.
+     *
+     * @param argv the program and its arguments; must not be empty
+     * @return the command
+     */
+    static public Command of(String... argv)
+    {
+	if (argv.length == 0)
+	    throw new IllegalArgumentException("argv can't be empty");
+	return new Command(List.of(argv), null, null, 0);
+    }
+
+    /**
+     * Constructs a command run by {@code /bin/bash}, for the cases
+     * requiring the shell syntax.
+     *
+     * @param script the shell command; must not be {@code null}
+     * @return the command
+     */
+    static public Command shell(String script)
+    {
+	return new Command(List.of("/bin/bash", "-c", Objects.requireNonNull(script, "script can't be null")), null, null, 0);
+    }
+
+    /**
+     * Returns a copy of this command with the given capture policy.
+     *
+     * @param capture   the capture policy; must not be {@code null}
+     * @param tailLines the number of the last lines kept with
+     *                  {@link Capture#TAIL}
+     * @return the new command
+     */
+    public Command withCapture(Capture capture, int tailLines)
+    {
+	return new Command(argv, env, Objects.requireNonNull(capture, "capture can't be null"), tailLines);
+    }
+
+    /**
+     * Returns a copy of this command with the given environment variable
+     * set.
+     *
+     * @param name  the name of the variable; must not be {@code null}
+     * @param value the value of the variable, or {@code null} to remove it
+     * @return the new command
+     */
+    public Command withEnv(String name, String value)
+    {
+	final var e = new HashMap<String, String>();
+	if (env != null)
+	    e.putAll(env);
+	e.put(Objects.requireNonNull(name, "name can't be null"), value);
+	return new Command(argv, e, capture, tailLines);
+    }
+
+    /**
+     * Renders the command as a shell command line, for the logs and the
+     * metrics. A command constructed with {@link #shell(String)} is
+     * rendered as its script.
+     *
+     * @return the text of the command
+     */
+    public String toCommandLine()
+    {
+	if (argv.size() == 3 && argv.get(0).equals("/bin/bash") && argv.get(1).equals("-c") && (env == null || env.isEmpty()))
+	    return argv.get(2);
+	final var b = new StringBuilder();
+	if (env != null)
+	    for(final var e: new TreeMap<>(env).entrySet())
+		if (e.getValue() != null)
+		    b.append(e.getKey()).append('=').append(quote(e.getValue())).append(' ');
+	for(int i = 0;i < argv.size();i++)
+	{
+	    if (i > 0)
+		b.append(' ');
+	    b.append(quote(argv.get(i)));
+	}
+	return b.toString();
+    }
+
+    static private String quote(String s)
+    {
+	if (!s.isEmpty() && s.matches("[A-Za-z0-9_./=:,+@%-]+"))
+	    return s;
+	return "'" + s.replace("'", "'\\''") + "'";
+    }
+}
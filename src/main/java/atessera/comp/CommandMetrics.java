@@ -0,0 +1,42 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import lombok.*;
+
+/**
+ * Resource usage of one command of a compilation.
+ *
+ * <p>The CPU times and the peak resident set size are sampled from
+ * {@code /proc} while the command is running, so they are zero on
+ * platforms without it and may miss processes living shorter than the
+ * sampling interval (see {@link atessera.util.ShellCmd#getUserCpuMillis()}).
+ * The CPU times include all descendant processes of the command.</p>
+ *
+ * @see CompilationResult#getCommandMetrics()
+ * @see MetricsRegistry
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public final class CommandMetrics
+{
+    /** The command as given in the task. */
+    private String command;
+
+    /** The exit code of the command, or {@code -1} if it was killed by a timeout or a cancellation. */
+    private int exitCode;
+
+    /** The wall-clock time of the command. */
+    private long wallMillis;
+
+    /** The user CPU time of the command and its descendants. */
+    private long userCpuMillis;
+
+    /** The system CPU time of the command and its descendants. */
+    private long systemCpuMillis;
+
+    /** The peak resident set size of the largest process of the command. */
+    private long peakRssBytes;
+}
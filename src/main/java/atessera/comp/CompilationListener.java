@@ -0,0 +1,42 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+/**
+ * Receives the output of the commands of a compilation while they run.
+ *
+ * <p>A listener is attached to a task via
+ * {@link CompilationTask#setListener(CompilationListener)}. Lines are
+ * delivered as soon as the command prints them, so callers may process
+ * the output of long compilations incrementally instead of waiting for
+ * the {@link CompilationResult}. Combined with
+ * {@link CompilationTask#setOutputTailLines(int) outputTailLines}, this
+ * allows keeping only a small part of the output in memory.</p>
+ *
+ * <p>The methods are called from the threads reading the process streams,
+ * so stdout and stderr lines of the same command may be delivered
+ * concurrently. Implementations must be thread-safe and should return
+ * quickly, since the command is blocked while its output isn't read.
+ * Exceptions thrown by a listener are logged and ignored.</p>
+ *
+ * @see CompilationTask
+ */
+public interface CompilationListener
+{
+    /**
+     * Called for every line printed by a command to its standard output.
+     *
+     * @param command the index of the command in the task
+     * @param line    the line without the line terminator
+     */
+    void onOutput(int command, String line);
+
+    /**
+     * Called for every line printed by a command to its standard error.
+     *
+     * @param command the index of the command in the task
+     * @param line    the line without the line terminator
+     */
+    void onErrorOutput(int command, String line);
+}
@@ -0,0 +1,24 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+/**
+ * The class of urgency of a {@link CompilationTask}, telling the queues of
+ * the compilers which tasks to start first.
+ *
+ * <p>The tasks waiting in the queue of a {@link CompilationScheduler} or a
+ * {@link CompilationWorker} are started in the order of their priority
+ * classes and, within a class, in the order of their submission. A running
+ * task is never interrupted for a more urgent one, so an interactive task
+ * waits at most for the first worker to become free.</p>
+ *
+ * @see CompilationTask#getPriority()
+ */
+public enum CompilationPriority
+{
+    /** A task somebody is waiting for, like a preview of the edited document. */
+    INTERACTIVE,
+    /** A task nobody is waiting for right now, like a nightly rebuild of all documents. */
+    BATCH
+};
@@ -4,6 +4,7 @@
 package atessera.comp;
 
 import java.util.*;
+import java.nio.file.*;
 import lombok.*;
 
 /**
@@ -15,10 +16,16 @@ import lombok.*;
  *   <li>The captured stdout and stderr of each executed command (one entry
  *       per command in {@code output} and {@code errorOutput}).</li>
  *   <li>Any text or binary output files collected according to the
- *       {@link CompilationTask#getSaveTextFilesOnSuccess() save rules}.</li>
+ *       {@link CompilationTask#getSaveTextFilesOnSuccess() save rules};
+ *       the binary files are given either in memory or as paths in the
+ *       output directory of the task.</li>
  *   <li>The exit code of the last executed command, or {@code -1} if an
- *       internal exception occurred.</li>
+ *       internal exception occurred or the compilation was interrupted by
+ *       a timeout or a cancellation.</li>
  *   <li>A stack trace string in case of an internal error.</li>
+ *   <li>The resource usage of each executed command and the amount of
+ *       data written in the working directory and collected from
+ *       it.</li>
  * </ul>
  *
  * @see CompilationTask
@@ -55,6 +62,15 @@ public final class CompilationResult
      */
     private Map<String, byte[]> binaryOutputFiles;
 
+    /**
+     * Binary files moved to the {@link CompilationTask#getOutputDir()
+     * output directory} of the task. Keys are file names (as specified in
+     * the task's save rules), values are the paths of the files. The files
+     * may be read lazily, e.g. memory-mapped, or moved further to their
+     * final location by the caller.
+     */
+    private Map<String, Path> binaryOutputPaths;
+
     /**
      * Exit code of the last executed command. A value of {@code 0}
      * indicates success. A value of {@code -1} indicates that an internal
@@ -67,4 +83,98 @@ public final class CompilationResult
      * compilation. {@code null} if no exception was thrown.
      */
     private String stackTrace;
+
+    /**
+     * Whether a command was killed because the command or the whole task
+     * exceeded its time limit.
+     */
+    private boolean timedOut;
+
+    /**
+     * Whether the compilation was cancelled via its {@link Cancellation}
+     * handle.
+     */
+    private boolean cancelled;
+
+    /**
+     * Whether a command was killed because the {@link
+     * CompilationTask#getLatexLogWatch() watched log} showed a fatal error
+     * or too many errors. The exit code is {@code 1} then.
+     */
+    private boolean aborted;
+
+    /**
+     * The errors found in the {@link CompilationTask#getLatexLogWatch()
+     * watched log} after the last executed command; {@code null} if the
+     * task watches no log.
+     */
+    private List<LatexError> latexErrors;
+
+    /**
+     * Resource usage of each executed command, in the order of execution.
+     * {@code null} or empty if no command was executed, e.g. for a result
+     * served from a cache.
+     */
+    private List<CommandMetrics> commandMetrics;
+
+    /**
+     * Total size of the files made by the commands in the working
+     * directory after the last executed command, not counting the sources
+     * left unchanged; measured on the best-effort basis.
+     */
+    private long workspaceBytes;
+
+    /**
+     * Total size of the output files collected from the working
+     * directory.
+     */
+    private long artifactBytes;
+
+    /**
+     * Makes a result with empty lists of the output and empty maps of the
+     * output files, to be filled by a compiler.
+     *
+     * @return the new result
+     */
+    static public CompilationResult empty()
+    {
+	final var res = new CompilationResult();
+	res.setOutput(new ArrayList<>());
+	res.setErrorOutput(new ArrayList<>());
+	res.setTextOutputFiles(new HashMap<>());
+	res.setBinaryOutputFiles(new HashMap<>());
+	res.setBinaryOutputPaths(new HashMap<>());
+	return res;
+    }
+
+    /**
+     * Makes a copy of the result with all its fields. The copy has its own
+     * lists and maps, so they may be changed without affecting the
+     * original, but their elements, like the captured lines and the
+     * contents of the output files, are shared. The missing lists of the
+     * output and maps of the output files become empty ones.
+     *
+     * @param res the result to copy; must not be {@code null}
+     * @return the copy
+     */
+    static public CompilationResult copyOf(CompilationResult res)
+    {
+	Objects.requireNonNull(res, "res can't be null");
+	final var c = new CompilationResult();
+	c.setOutput((res.getOutput() != null)?new ArrayList<>(res.getOutput()):new ArrayList<>());
+	c.setErrorOutput((res.getErrorOutput() != null)?new ArrayList<>(res.getErrorOutput()):new ArrayList<>());
+	c.setTextOutputFiles((res.getTextOutputFiles() != null)?new HashMap<>(res.getTextOutputFiles()):new HashMap<>());
+	c.setBinaryOutputFiles((res.getBinaryOutputFiles() != null)?new HashMap<>(res.getBinaryOutputFiles()):new HashMap<>());
+	c.setBinaryOutputPaths((res.getBinaryOutputPaths() != null)?new HashMap<>(res.getBinaryOutputPaths()):new HashMap<>());
+	c.setExitCode(res.getExitCode());
+	c.setStackTrace(res.getStackTrace());
+	c.setTimedOut(res.isTimedOut());
+	c.setCancelled(res.isCancelled());
+	c.setAborted(res.isAborted());
+	c.setLatexErrors((res.getLatexErrors() != null)?new ArrayList<>(res.getLatexErrors()):null);
+	c.setCommandMetrics((res.getCommandMetrics() != null)?new ArrayList<>(res.getCommandMetrics()):null);
+	c.setWorkspaceBytes(res.getWorkspaceBytes());
+	c.setArtifactBytes(res.getArtifactBytes());
+	return c;
+    }
 }
@@ -0,0 +1,447 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+import java.nio.file.*;
+import java.lang.management.*;
+import org.apache.logging.log4j.*;
+
+import static java.util.Objects.*;
+
+/**
+ * Runs many compilation tasks concurrently on a bounded pool of workers.
+ *
+ * <p>The facades ({@link PdfLatex}, {@link Metapost}, {@link GNUPlot})
+ * block their callers until the compilation finishes, so a publication
+ * with many figures gets compiled sequentially. The scheduler accepts
+ * tasks without blocking on their execution and returns a future for
+ * each of them. The amount of work is limited on two levels:</p>
+ *
+ * <ul>
+ *   <li>The number of workers bounds the number of tasks executed at the
+ *       same time and, therefore, the number of concurrently running
+ *       external tools. By default it is derived from the number of
+ *       available processors and the amount of available memory (see
+ *       {@link #getDefaultWorkerCount(long)}).</li>
+ *   <li>The admission limit bounds the number of accepted but not yet
+ *       completed tasks. When the limit is reached,
+ *       {@link #submit(CompilationTask)} blocks until one of the accepted
+ *       tasks completes, so a producer of tasks can't flood the memory
+ *       with pending sources.</li>
+ * </ul>
+ *
+ * <p>The waiting tasks are started in the order of their
+ * {@link CompilationTask#getPriority() priority classes} and, within a
+ * class, in the order of submission, so an interactive preview submitted
+ * after a nightly rebuild of all documents waits only for the first worker
+ * to become free. The interactive tasks also have an admission limit of
+ * their own, so they don't wait for the batch tasks to be admitted, while
+ * a flood of them still can't exhaust the memory.</p>
+ *
+ * <p>Within a priority class the tasks are started in the order of
+ * submission by default. Given a {@link CostModel}, the scheduler may
+ * instead order them by their expected durations (see {@link Order}), so
+ * a long build of a book submitted first doesn't hold up many short
+ * builds of figures submitted after it. The model learns from every
+ * executed task and is saved when the scheduler is closed.</p>
+ *
+ * <p>The scheduler is a {@link Compiler} itself:
+ * {@link #compileAsync(CompilationTask)} is the same as
+ * {@link #submit(CompilationTask)}, and {@link #compile(CompilationTask)}
+ * waits for the result, so the scheduler may be given to the facades and
+ * wrapped into the decorators like any other compiler.</p>
+ *
+ * <p>The scheduler delegates the actual execution to a {@link Compiler},
+ * which must be thread-safe; {@link LocalCompiler} is. The worker threads
+ * are daemon threads, but the scheduler should be closed when it is no
+ * longer needed.</p>
+ *
+ * <pre>{@code
+ * try (var scheduler = new CompilationScheduler(new LocalCompiler())) {
+ *     List<CompletableFuture<CompilationResult>> res = scheduler.submitAll(tasks);
+ *     for (var f: res)
+ *         handle(f.join());
+ * }
+ * }</pre>
+ *
+ * @see Compiler
+ * @see LocalCompiler
+ */
+public final class CompilationScheduler implements Compiler, AutoCloseable
+{
+    static private final Logger log = LogManager.getLogger();
+
+    /** The amount of memory reserved for one running task by default. */
+    static public final long DEFAULT_MEMORY_PER_TASK = 512L * 1024 * 1024;
+
+    static private final AtomicInteger threadCounter = new AtomicInteger(0);
+
+    /** The order of starting the tasks of the same priority class. */
+    public enum Order
+    {
+	/** In the order of submission. */
+	FIFO,
+	/**
+	 * By the expected time of finishing if started at submission, i.e.
+	 * the short tasks first, but a long task doesn't wait behind the
+	 * short ones submitted later than its expected duration after it.
+	 * Minimizes the average waiting for the results.
+	 */
+	SHORTEST_FIRST,
+	/**
+	 * The long tasks first, so the short ones fill the workers at the
+	 * end. Minimizes the time of completing a whole batch known in
+	 * advance.
+	 */
+	LONGEST_FIRST
+    };
+
+    private final Compiler compiler;
+    private final int workerCount, maxPending, maxInteractive;
+    private final Order order;
+    private final CostModel costModel;
+    private final ThreadPoolExecutor executor;
+    private final Semaphore admission, interactiveAdmission;
+
+    /**
+     * Constructs a scheduler with the default number of workers and the
+     * admission limits equal to four times the number of workers.
+     *
+     * @param compiler the compiler executing the tasks; must not be
+     *                 {@code null}
+     */
+    public CompilationScheduler(Compiler compiler)
+    {
+	this(compiler, getDefaultWorkerCount(DEFAULT_MEMORY_PER_TASK));
+    }
+
+    /**
+     * Constructs a scheduler with the given number of workers and the
+     * admission limits equal to four times the number of workers.
+     *
+     * @param compiler    the compiler executing the tasks; must not be
+     *                    {@code null}
+     * @param workerCount the number of concurrently executed tasks; must
+     *                    be positive
+     */
+    public CompilationScheduler(Compiler compiler, int workerCount)
+    {
+	this(compiler, workerCount, 4 * workerCount);
+    }
+
+    /**
+     * Constructs a scheduler with the given number of workers and the
+     * given admission limit, the same for the batch and the interactive
+     * tasks.
+     *
+     * @param compiler    the compiler executing the tasks; must not be
+     *                    {@code null}
+     * @param workerCount the number of concurrently executed tasks; must
+     *                    be positive
+     * @param maxPending  the maximum number of accepted but not completed
+     *                    tasks; must not be less than {@code workerCount}
+     */
+    public CompilationScheduler(Compiler compiler, int workerCount, int maxPending)
+    {
+	this(compiler, workerCount, maxPending, Order.FIFO, null);
+    }
+
+    /**
+     * Constructs a scheduler ordering the tasks by their expected
+     * durations, with the same admission limit for the batch and the
+     * interactive tasks.
+     *
+     * @param compiler    the compiler executing the tasks; must not be
+     *                    {@code null}
+     * @param workerCount the number of concurrently executed tasks; must
+     *                    be positive
+     * @param maxPending  the maximum number of accepted but not completed
+     *                    tasks; must not be less than {@code workerCount}
+     * @param order       the order of starting the tasks of the same
+     *                    priority class; must not be {@code null}
+     * @param costModel   the model estimating and learning the durations of
+     *                    the tasks; may be {@code null} only with
+     *                    {@link Order#FIFO}
+     */
+    public CompilationScheduler(Compiler compiler, int workerCount, int maxPending, Order order, CostModel costModel)
+    {
+	this(compiler, workerCount, maxPending, maxPending, order, costModel);
+    }
+
+    /**
+     * Constructs a scheduler with separate admission limits for the
+     * interactive and all other tasks.
+     *
+     * @param compiler       the compiler executing the tasks; must not be
+     *                       {@code null}
+     * @param workerCount    the number of concurrently executed tasks; must
+     *                       be positive
+     * @param maxPending     the maximum number of accepted but not
+     *                       completed tasks other than the interactive
+     *                       ones; must not be less than {@code workerCount}
+     * @param maxInteractive the maximum number of accepted but not
+     *                       completed {@link CompilationPriority#INTERACTIVE
+     *                       interactive} tasks; must be positive
+     * @param order          the order of starting the tasks of the same
+     *                       priority class; must not be {@code null}
+     * @param costModel      the model estimating and learning the durations
+     *                       of the tasks; may be {@code null} only with
+     *                       {@link Order#FIFO}
+     */
+    public CompilationScheduler(Compiler compiler, int workerCount, int maxPending, int maxInteractive, Order order, CostModel costModel)
+    {
+	this.compiler = requireNonNull(compiler, "compiler can't be null");
+	this.order = requireNonNull(order, "order can't be null");
+	if (order != Order.FIFO && costModel == null)
+	    throw new IllegalArgumentException("costModel can't be null with " + order.toString());
+	this.costModel = costModel;
+	if (workerCount < 1)
+	    throw new IllegalArgumentException("workerCount must be greater than zero");
+	if (maxPending < workerCount)
+	    throw new IllegalArgumentException("maxPending can't be less than workerCount");
+	if (maxInteractive < 1)
+	    throw new IllegalArgumentException("maxInteractive must be greater than zero");
+	this.workerCount = workerCount;
+	this.maxPending = maxPending;
+	this.maxInteractive = maxInteractive;
+	this.admission = new Semaphore(maxPending, true);
+	this.interactiveAdmission = new Semaphore(maxInteractive, true);
+	//The tasks are queued as PrioritizedJob
+	this.executor = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+					       new PriorityBlockingQueue<>(), r -> {
+						   final var t = new Thread(r, "atessera-compiler-" + threadCounter.incrementAndGet());
+						   t.setDaemon(true);
+						   return t;
+					       });
+	log.debug("Compilation scheduler with {} workers, {} pending and {} interactive tasks at most, order: {}", workerCount, maxPending, maxInteractive, order);
+    }
+
+    /**
+     * Accepts a task for execution. The method blocks while the number of
+     * accepted but not completed tasks is equal to the admission limit;
+     * the {@link CompilationPriority#INTERACTIVE interactive} tasks are
+     * counted against their own limit.
+     *
+     * @param task the task to execute; must not be {@code null}
+     * @return the future completed with the result of the task; if the
+     *         compiler throws an exception, the future is completed
+     *         exceptionally
+     * @throws IllegalStateException if the scheduler is closed or the
+     *         calling thread is interrupted while waiting for admission
+     */
+    public CompletableFuture<CompilationResult> submit(CompilationTask task)
+    {
+	requireNonNull(task, "task can't be null");
+	final var permits = (task.getPriority() == CompilationPriority.INTERACTIVE)?interactiveAdmission:admission;
+	try {
+	    permits.acquire();
+	}
+	catch(InterruptedException ex)
+	{
+	    Thread.currentThread().interrupt();
+	    throw new IllegalStateException("Interrupted while waiting for admission", ex);
+	}
+	final var res = new CompletableFuture<CompilationResult>();
+	try {
+	    executor.execute(new PrioritizedJob(task.getPriority(), getOrderKey(task), () -> {
+			try {
+			    final var r = compiler.compile(task);
+			    if (costModel != null && r != null)
+				costModel.record(task, r);
+			    res.complete(r);
+			}
+			catch(Throwable ex)
+			{
+			    res.completeExceptionally(ex);
+			}
+			finally {
+			    //Not on the returned future, which the caller may complete before the task ends
+			    permits.release();
+			}
+		    }));
+	}
+	catch(RejectedExecutionException ex)
+	{
+	    permits.release();
+	    throw new IllegalStateException("The scheduler is closed", ex);
+	}
+	return res;
+    }
+
+    private long getOrderKey(CompilationTask task)
+    {
+	switch(order)
+	{
+	case SHORTEST_FIRST:
+	    return System.currentTimeMillis() + costModel.estimate(task);
+	case LONGEST_FIRST:
+	    return -costModel.estimate(task);
+	default:
+	    return 0;
+	}
+    }
+
+    /**
+     * Accepts a task for execution, the same as
+     * {@link #submit(CompilationTask)}.
+     *
+     * @param task the task to execute; must not be {@code null}
+     * @return the future completed with the result of the task
+     * @throws IllegalStateException if the scheduler is closed or the
+     *         calling thread is interrupted while waiting for admission
+     */
+    @Override public CompletableFuture<CompilationResult> compileAsync(CompilationTask task)
+    {
+	return submit(task);
+    }
+
+    /**
+     * Executes a task on a worker of the scheduler and waits for the
+     * result. Must not be called from the workers of the same scheduler,
+     * e.g. by a compiler the scheduler delegates to, since all of them may
+     * end up waiting for each other.
+     *
+     * @param task the task to execute; must not be {@code null}
+     * @return the result of the task
+     * @throws IllegalStateException if the scheduler is closed or the
+     *         calling thread is interrupted
+     */
+    @Override public CompilationResult compile(CompilationTask task)
+    {
+	final var f = submit(task);
+	try {
+	    return f.get();
+	}
+	catch(InterruptedException ex)
+	{
+	    Thread.currentThread().interrupt();
+	    if (task.getCancellation() != null)
+		task.getCancellation().cancel();
+	    throw new IllegalStateException("Interrupted while waiting for the compilation", ex);
+	}
+	catch(ExecutionException ex)
+	{
+	    if (ex.getCause() instanceof RuntimeException)
+		throw (RuntimeException)ex.getCause();
+	    if (ex.getCause() instanceof Error)
+		throw (Error)ex.getCause();
+	    throw new RuntimeException(ex.getCause());
+	}
+    }
+
+    /**
+     * Accepts several tasks for execution in the order of the given
+     * collection. The method blocks while the admission limit is reached.
+     *
+     * @param tasks the tasks to execute; must not be {@code null}
+     * @return the futures of the tasks in the same order
+     * @throws IllegalStateException if the scheduler is closed or the
+     *         calling thread is interrupted while waiting for admission
+     */
+    public List<CompletableFuture<CompilationResult>> submitAll(Collection<CompilationTask> tasks)
+    {
+	requireNonNull(tasks, "tasks can't be null");
+	final var res = new ArrayList<CompletableFuture<CompilationResult>>(tasks.size());
+	for(final var t: tasks)
+	    res.add(submit(t));
+	return res;
+    }
+
+    /**
+     * Returns the number of workers.
+     *
+     * @return the number of concurrently executed tasks
+     */
+    public int getWorkerCount()
+    {
+	return workerCount;
+    }
+
+    /**
+     * Returns the number of accepted but not yet completed tasks, the
+     * interactive ones included.
+     *
+     * @return the number of pending tasks
+     */
+    public int getPendingCount()
+    {
+	return maxPending - admission.availablePermits() + maxInteractive - interactiveAdmission.availablePermits();
+    }
+
+    /**
+     * Stops accepting new tasks, waits for the completion of the accepted
+     * ones and saves the cost model, if any.
+     */
+    @Override public void close()
+    {
+	executor.shutdown();
+	try {
+	    while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+		log.debug("Waiting for {} compilation tasks to complete", getPendingCount());
+	}
+	catch(InterruptedException ex)
+	{
+	    Thread.currentThread().interrupt();
+	    executor.shutdownNow();
+	}
+	if (costModel != null)
+	    costModel.save();
+    }
+
+    /**
+     * Computes the default number of workers for this machine. The number
+     * doesn't exceed the number of available processors and the number of
+     * tasks fitting into the available memory, but it is at least one.
+     *
+     * @param memoryPerTask the amount of memory expected to be used by one
+     *                      running task, in bytes; must be positive
+     * @return the default number of workers
+     */
+    static public int getDefaultWorkerCount(long memoryPerTask)
+    {
+	if (memoryPerTask <= 0)
+	    throw new IllegalArgumentException("memoryPerTask must be greater than zero");
+	final int cpus = Runtime.getRuntime().availableProcessors();
+	final long mem = getAvailableMemory();
+	if (mem <= 0)
+	    return Math.max(1, cpus);
+	return (int)Math.max(1, Math.min(cpus, mem / memoryPerTask));
+    }
+
+    /**
+     * Returns the amount of memory available for new processes. On Linux
+     * the value is taken from {@code MemAvailable} in
+     * {@code /proc/meminfo}, elsewhere the amount of free physical memory
+     * reported by the JVM is used.
+     *
+     * @return the available memory in bytes, or {@code -1} if unknown
+     */
+    static long getAvailableMemory()
+    {
+	final var meminfo = Paths.get("/proc/meminfo");
+	if (Files.isReadable(meminfo))
+	{
+	    try {
+		for(final var line: Files.readAllLines(meminfo))
+		    if (line.startsWith("MemAvailable:"))
+		    {
+			final var s = line.substring("MemAvailable:".length()).trim();
+			return 1024L * Long.parseLong(s.substring(0, s.indexOf(' ')).trim());
+		    }
+	    }
+	    catch(IOException | RuntimeException ex)
+	    {
+		log.warn("Unable to read /proc/meminfo", ex);
+	    }
+	}
+	final var bean = ManagementFactory.getOperatingSystemMXBean();
+	if (bean instanceof com.sun.management.OperatingSystemMXBean)
+	    return ((com.sun.management.OperatingSystemMXBean)bean).getFreeMemorySize();
+	return -1;
+    }
+}
@@ -4,6 +4,7 @@
 package atessera.comp;
 
 import java.util.*;
+import java.nio.file.*;
 import lombok.*;
 
 /**
@@ -17,16 +18,31 @@ import lombok.*;
  *       {@code main.tex}, {@code src.plot}) to be written into the working
  *       directory.</li>
  *   <li><strong>Binary sources</strong> &mdash; named binary files (e.g.
- *       images) to be placed alongside the text sources.</li>
- *   <li><strong>Commands</strong> &mdash; shell commands to execute in
- *       order. If any command returns a non-zero exit code, execution stops
- *       immediately.</li>
+ *       images) to be placed alongside the text sources. Large binary
+ *       files may be given as paths to be staged into the working
+ *       directory without copying them through the memory.</li>
+ *   <li><strong>Commands</strong> &mdash; shell commands and structured
+ *       {@link Command commands} to execute in order. If any command
+ *       returns a non-zero exit code, execution stops immediately. The time
+ *       of each command and of the whole task may be limited, and a running
+ *       task may be cancelled via a {@link Cancellation} handle.</li>
  *   <li><strong>Save rules</strong> &mdash; lists of file names to collect
  *       from the working directory after compilation (separate lists for
- *       success and failure scenarios).</li>
+ *       success and failure scenarios). The binary files may be
+ *       returned in memory or moved to a caller-specified directory.</li>
  * </ul>
  *
+ * <p>The output of the commands may also be consumed while they run by a
+ * {@link CompilationListener}, and the amount of the output kept for the
+ * {@link CompilationResult} may be limited to the last lines of every
+ * command.</p>
+ *
+ * <p>The {@link CompilationPriority priority class} of a task tells the
+ * queues of {@link CompilationScheduler} and {@link CompilationWorker}
+ * which of the waiting tasks to start first.</p>
+ *
  * @see CompilationResult
+ * @see CompilationListener
  */
 @Data
 @NoArgsConstructor
@@ -46,12 +62,29 @@ public final class CompilationTask
      */
     private Map<String, byte[]> binarySources;
 
+    /**
+     * Binary files staged into the working directory from existing files
+     * without reading them into memory; {@code null} if not needed. Keys
+     * are file names, values are paths of the files to stage. The files
+     * are hard-linked when possible and copied by the kernel otherwise, so
+     * the commands must treat them as read-only.
+     */
+    private Map<String, Path> fileSources;
+
     /**
      * Shell commands to execute sequentially in the working directory.
      * Execution stops on the first non-zero exit code.
      */
     private List<String> commands;
 
+    /**
+     * Structured commands to execute sequentially in the working directory
+     * after the shell {@link #commands}; {@code null} if not needed. The
+     * entries of the output in the {@link CompilationResult} follow the
+     * shell commands and then these ones.
+     */
+    private List<Command> steps;
+
     /**
      * Names of text files to collect from the working directory when all
      * commands complete successfully.
@@ -64,9 +97,67 @@ public final class CompilationTask
      */
     private List<String> saveBinaryFilesOnSuccess;
 
+    /**
+     * Directory to move the binary files saved on success to; {@code null}
+     * to return them in memory. If set, the files don't pass through the
+     * heap and are reported in
+     * {@link CompilationResult#getBinaryOutputPaths() binaryOutputPaths}
+     * instead of {@link CompilationResult#getBinaryOutputFiles()
+     * binaryOutputFiles}. The directory is created if it doesn't exist, and
+     * existing files with the same names are replaced.
+     */
+    private Path outputDir;
+
     /**
      * Names of text files to collect from the working directory when a
      * command fails (non-zero exit code).
      */
     private List<String> saveTextFilesOnFailure;
+
+    /**
+     * Listener receiving the output of the commands while they run;
+     * {@code null} if not needed. The listener doesn't affect the result
+     * and is never serialized.
+     */
+    private transient CompilationListener listener;
+
+    /**
+     * Maximum number of the last lines of stdout and stderr of every
+     * command kept in the {@link CompilationResult}. Zero or a negative
+     * value means keeping everything.
+     */
+    private int outputTailLines;
+
+    /**
+     * Maximum time of each command in milliseconds. A command running longer
+     * is killed with all its descendant processes. Zero or a negative value
+     * means no limit.
+     */
+    private long commandTimeoutMillis;
+
+    /**
+     * Maximum time of all commands together in milliseconds. Zero or a
+     * negative value means no limit.
+     */
+    private long timeoutMillis;
+
+    /**
+     * Handle for cancelling the task while it runs; {@code null} if not
+     * needed. Never serialized.
+     */
+    private transient Cancellation cancellation;
+
+    /**
+     * The log of TeX to watch while the commands run, killing a command
+     * early on a fatal error or on too many errors; {@code null} if not
+     * needed.
+     */
+    private LatexLogWatch latexLogWatch;
+
+    /**
+     * The priority class of the task in the queues of the compilers;
+     * {@code null} means {@link CompilationPriority#BATCH}. The priority
+     * doesn't affect the result.
+     */
+    private CompilationPriority priority;
 }
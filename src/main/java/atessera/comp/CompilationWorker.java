@@ -0,0 +1,361 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import org.apache.logging.log4j.*;
+
+import static java.util.Objects.*;
+
+/**
+ * Daemon executing compilation tasks received from
+ * {@link RemoteCompiler} instances over TCP.
+ *
+ * <p>The worker accepts connections on the given address, reads tasks from
+ * them and executes every task with its {@link Compiler}, usually a
+ * {@link LocalCompiler}, on a fixed number of threads, starting the
+ * waiting tasks in the order of their
+ * {@link CompilationTask#getPriority() priority classes}. The results are
+ * sent back as soon as they are ready, so one connection may carry many
+ * tasks at once. A task may be cancelled by the client, and all tasks of a
+ * connection are cancelled when the connection is lost.</p>
+ *
+ * <p>The worker executes arbitrary shell commands, so it must never be
+ * reachable by untrusted parties. It listens on the loopback interface
+ * unless another address is given, and it may require the clients to
+ * present an access token.</p>
+ *
+ * <p>The {@link #main(String[])} method runs a worker as a standalone
+ * process; {@link #startProcess()} starts such a process on the local
+ * machine, which is enough to run the whole client/worker setup on one
+ * box.</p>
+ *
+ * @see RemoteCompiler
+ */
+public final class CompilationWorker implements AutoCloseable
+{
+    static private final Logger log = LogManager.getLogger();
+
+    /** The environment variable with the access token for {@link #main(String[])}. */
+    static public final String TOKEN_ENV = "ATESSERA_WORKER_TOKEN";
+
+    /** The line printed by {@link #main(String[])} on start, followed by the port number. */
+    static private final String PORT_LINE = "atessera-worker-port ";
+
+    private final Compiler compiler;
+    private final String token;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed = false;
+
+    /**
+     * Starts a worker.
+     *
+     * @param compiler the compiler to execute the tasks with; must not be
+     *                 {@code null}
+     * @param address  the address to listen on; must not be {@code null};
+     *                 the port may be zero to choose any free one
+     * @param threads  the number of tasks executed at once
+     * @param token    the access token the clients must present, or
+     *                 {@code null} if not required
+     * @throws RuntimeException if the address can't be bound
+     */
+    public CompilationWorker(Compiler compiler, InetSocketAddress address, int threads, String token)
+    {
+	this.compiler = requireNonNull(compiler, "compiler can't be null");
+	requireNonNull(address, "address can't be null");
+	if (threads < 1)
+	    throw new IllegalArgumentException("threads must be positive");
+	this.token = token;
+	final var counter = new AtomicInteger(0);
+	//The tasks are queued as PrioritizedJob, so the interactive ones are started first
+	this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), r -> {
+		final var t = new Thread(r, "atessera-worker-" + String.valueOf(counter.incrementAndGet()));
+		t.setDaemon(true);
+		return t;
+	    });
+	try {
+	    this.serverSocket = new ServerSocket();
+	    serverSocket.setReuseAddress(true);
+	    serverSocket.bind(address);
+	}
+	catch(IOException ex)
+	{
+	    executor.shutdown();
+	    throw new RuntimeException(ex);
+	}
+	final var acceptor = new Thread(this::accept, "atessera-worker-acceptor");
+	acceptor.setDaemon(true);
+	acceptor.start();
+	log.info("Compilation worker listening on {}", serverSocket.getLocalSocketAddress().toString());
+    }
+
+    /**
+     * Returns the port the worker listens on.
+     *
+     * @return the port number
+     */
+    public int getPort()
+    {
+	return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections, closes the existing ones and cancels
+     * the running tasks.
+     */
+    @Override public void close()
+    {
+	closed = true;
+	try {
+	    serverSocket.close();
+	}
+	catch(IOException ex)
+	{
+	    log.warn("Unable to close the server socket", ex);
+	}
+	for(final var s: connections)
+	    closeQuietly(s);
+	executor.shutdownNow();
+    }
+
+    private void accept()
+    {
+	while (!closed)
+	{
+	    final Socket s;
+	    try {
+		s = serverSocket.accept();
+	    }
+	    catch(IOException ex)
+	    {
+		if (!closed)
+		    log.error("Unable to accept a connection", ex);
+		return;
+	    }
+	    connections.add(s);
+	    final var t = new Thread(() -> serve(s), "atessera-worker-connection");
+	    t.setDaemon(true);
+	    t.start();
+	}
+    }
+
+    private void serve(Socket socket)
+    {
+	final var running = new ConcurrentHashMap<Long, Cancellation>();
+	try {
+	    socket.setTcpNoDelay(true);
+	    final var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+	    final var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	    //The client isn't authenticated yet, so it can't make the worker allocate much
+	    final var hello = RemoteProtocol.read(in, RemoteProtocol.MAX_HELLO_FRAME);
+	    if (hello == null || !RemoteProtocol.HELLO.equals(hello.type) ||
+		(token != null && !RemoteProtocol.isTokenValid(token, hello.token)))
+	    {
+		log.warn("Rejecting the connection from {}", socket.getRemoteSocketAddress().toString());
+		return;
+	    }
+	    RemoteProtocol.Message m;
+	    while ((m = RemoteProtocol.read(in)) != null)
+	    {
+		switch(m.type)
+		{
+		case RemoteProtocol.COMPILE: {
+		    final long id = m.id;
+		    final var task = m.task;
+		    if (task == null)
+			throw new IOException("No task in the message " + String.valueOf(id));
+		    final var cancellation = new Cancellation();
+		    task.setCancellation(cancellation);
+		    running.put(id, cancellation);
+		    executor.execute(new PrioritizedJob(task.getPriority(), () -> {
+			    final var res = compile(task);
+			    running.remove(id);
+			    final var r = new RemoteProtocol.Message();
+			    r.type = RemoteProtocol.RESULT;
+			    r.id = id;
+			    r.result = res;
+			    try {
+				RemoteProtocol.write(out, r);
+			    }
+			    catch(IOException ex)
+			    {
+				log.debug("Unable to send the result {}: {}", id, ex.getMessage());
+			    }
+			}));
+		    break;
+		}
+		case RemoteProtocol.CANCEL: {
+		    final var c = running.get(m.id);
+		    if (c != null)
+			c.cancel();
+		    break;
+		}
+		default:
+		    log.warn("Unknown message type: {}", m.type);
+		}
+	    }
+	}
+	catch(IOException | RejectedExecutionException ex)
+	{
+	    if (!closed)
+		log.warn("The connection from " + socket.getRemoteSocketAddress().toString() + " failed", ex);
+	}
+	finally {
+	    running.values().forEach(c -> c.cancel());
+	    connections.remove(socket);
+	    closeQuietly(socket);
+	}
+    }
+
+    private CompilationResult compile(CompilationTask task)
+    {
+	try {
+	    final var res = compiler.compile(task);
+	    if (res != null)
+		return res;
+	    throw new IllegalStateException("The compiler returned null");
+	}
+	catch(RuntimeException ex)
+	{
+	    log.error("Exception during remote compilation", ex);
+	    final var wr = new StringWriter();
+	    ex.printStackTrace(new PrintWriter(wr));
+	    final var res = new CompilationResult();
+	    res.setExitCode(-1);
+	    res.setStackTrace(wr.toString());
+	    return res;
+	}
+    }
+
+    /**
+     * Runs a worker with a {@link LocalCompiler} until the process is
+     * killed. The arguments are the port (zero or none to choose any free
+     * one), the address to listen on (the loopback interface by default)
+     * and the number of threads (chosen by the available processors and
+     * memory by default). The access token is taken from the
+     * {@code ATESSERA_WORKER_TOKEN} environment variable. The port is
+     * printed to stdout once the worker is listening.
+     *
+     * @param args the command line arguments
+     */
+    static public void main(String[] args) throws Exception
+    {
+	final int port = (args.length > 0)?Integer.parseInt(args[0]):0;
+	final var host = (args.length > 1)?InetAddress.getByName(args[1]):InetAddress.getLoopbackAddress();
+	final int threads = (args.length > 2)?Integer.parseInt(args[2]):CompilationScheduler.getDefaultWorkerCount(CompilationScheduler.DEFAULT_MEMORY_PER_TASK);
+	final var worker = new CompilationWorker(new LocalCompiler(), new InetSocketAddress(host, port), threads, System.getenv(TOKEN_ENV));
+	System.out.println(PORT_LINE + String.valueOf(worker.getPort()));
+	System.out.flush();
+	new CountDownLatch(1).await();
+    }
+
+    /**
+     * Starts a worker as a new process of the same Java runtime and with
+     * the same class path as the current one. The worker listens on a free
+     * port of the loopback interface.
+     *
+     * @return the started process
+     * @throws RuntimeException if the process can't be started
+     */
+    static public LocalProcess startProcess()
+    {
+	final var java = ProcessHandle.current().info().command().orElse("java");
+	Process p = null;
+	try {
+	    p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), CompilationWorker.class.getName())
+	    .redirectError(ProcessBuilder.Redirect.INHERIT)
+	    .start();
+	    final var r = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8));
+	    String line;
+	    while ((line = r.readLine()) != null)
+		if (line.startsWith(PORT_LINE))
+		{
+		    final int port = Integer.parseInt(line.substring(PORT_LINE.length()).trim());
+		    //Draining the rest of stdout, so the worker never blocks on it
+		    final var drain = new Thread(() -> {
+			    try {
+				String l;
+				while ((l = r.readLine()) != null)
+				    log.debug("Worker on port {}: {}", port, l);
+			    }
+			    catch(IOException ex)
+			    {
+				//The process is over
+			    }
+			}, "atessera-worker-output");
+		    drain.setDaemon(true);
+		    drain.start();
+		    return new LocalProcess(p, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		}
+	    throw new IOException("The worker process exited without starting");
+	}
+	catch(IOException | NumberFormatException ex)
+	{
+	    if (p != null)
+		p.destroyForcibly();
+	    throw new RuntimeException(ex);
+	}
+    }
+
+    static private void closeQuietly(Socket s)
+    {
+	try {
+	    s.close();
+	}
+	catch(IOException ex)
+	{
+	    //Nothing to do
+	}
+    }
+
+    /**
+     * A worker running as a process on the local machine.
+     */
+    static public final class LocalProcess implements AutoCloseable
+    {
+	private final Process process;
+	private final InetSocketAddress address;
+
+	private LocalProcess(Process process, InetSocketAddress address)
+	{
+	    this.process = process;
+	    this.address = address;
+	}
+
+	/**
+	 * Returns the process of the worker.
+	 *
+	 * @return the process
+	 */
+	public Process getProcess()
+	{
+	    return process;
+	}
+
+	/**
+	 * Returns the address to connect to the worker.
+	 *
+	 * @return the address of the worker
+	 */
+	public InetSocketAddress getAddress()
+	{
+	    return address;
+	}
+
+	/**
+	 * Kills the worker process.
+	 */
+	@Override public void close()
+	{
+	    process.destroyForcibly();
+	}
+    }
+}
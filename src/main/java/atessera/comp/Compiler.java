@@ -3,6 +3,10 @@
 
 package atessera.comp;
 
+import java.util.concurrent.*;
+
+import static java.util.Objects.*;
+
 /**
  * Strategy interface for executing a compilation task.
  *
@@ -12,6 +16,17 @@ package atessera.comp;
  * directory on the local machine. Alternative implementations could, for
  * example, delegate to a Docker container or a remote build server.</p>
  *
+ * <p>Implementations are expected to honour the time limits of a task and
+ * its {@link Cancellation} handle, so one faulty document can't occupy a
+ * worker forever.</p>
+ *
+ * <p>A task may also be started without blocking the caller with
+ * {@link #compileAsync(CompilationTask)}, so the compilation of the
+ * figures and of the document using them may be composed as a chain of
+ * futures. Implementations keeping a queue of tasks, like
+ * {@link CompilationScheduler}, start the queued tasks in the order of
+ * their {@link CompilationTask#getPriority() priority classes}.</p>
+ *
  * @see CompilationTask
  * @see CompilationResult
  * @see LocalCompiler
@@ -28,4 +43,27 @@ public interface Compiler
      *         normal operation
      */
     CompilationResult compile(CompilationTask task);
+
+    /**
+     * Starts the given compilation task without waiting for its result.
+     * The default implementation runs {@link #compile(CompilationTask)} on
+     * a pool of threads shared by all compilers, one thread per available
+     * processor, starting the waiting tasks in the order of their priority
+     * classes. The pool has no admission limit, so a caller starting many
+     * tasks at once should wrap the compiler into a
+     * {@link CompilationScheduler} instead. The implementations with a
+     * queue or an asynchronous protocol of their own override this method,
+     * and so do the decorators, delegating to the same method of the
+     * compiler they wrap.
+     *
+     * @param task the compilation task; must not be {@code null}
+     * @return the future completed with the result of the task; if the
+     *         compiler throws an exception, the future is completed
+     *         exceptionally
+     */
+    default CompletableFuture<CompilationResult> compileAsync(CompilationTask task)
+    {
+	requireNonNull(task, "task can't be null");
+	return AsyncCompilation.submit(this, task);
+    }
 }
@@ -0,0 +1,398 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.charset.*;
+import java.util.regex.*;
+import org.apache.logging.log4j.*;
+import com.google.gson.*;
+import com.google.gson.reflect.*;
+
+import static java.util.Objects.*;
+
+/**
+ * Estimates the duration of compilation tasks from the durations of the
+ * tasks executed earlier.
+ *
+ * <p>Tasks are told apart by their kind and described by their size. The
+ * kind is the tool run by the first command, as guessed by
+ * {@link MetricsRegistry#getToolName(String)}, so all {@link PdfLatex}
+ * builds are of one kind, all {@link MetapostBatch} builds of another and
+ * so on. The size is the feature of a task the duration of its kind grows
+ * with (see {@link #getSize(CompilationTask)}): the size of the text
+ * sources of a LaTeX document, leaving out the precompiled formats and the
+ * images, the number of figures in a MetaPost batch, the size of the data
+ * of a GNUPlot chart and the total size of the sources for the other
+ * kinds. For every kind the duration is approximated as a linear function
+ * of the size, fitted by the least squares over the recorded tasks, the
+ * older ones weighing less, so the model follows the changes of the
+ * machine and of the documents.</p>
+ *
+ * <p>The duration of a task is the sum of the wall-clock times of its
+ * commands as reported in {@link CompilationResult#getCommandMetrics()}.
+ * The results without the command metrics, like the ones returned from a
+ * cache, and the failed tasks are not recorded, since their durations say
+ * nothing about the next execution.</p>
+ *
+ * <p>The model may be kept in a JSON file between runs: it is loaded by the
+ * constructor and written by {@link #save()}, which a
+ * {@link CompilationScheduler} using the model calls when closed. The
+ * loaded kinds fitted with another feature of the size are dropped.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @see CompilationScheduler.Order
+ */
+public final class CostModel
+{
+    static private final Logger log = LogManager.getLogger();
+    static private final Gson gson = new Gson();
+
+    /** The weight of the recorded tasks is multiplied by this factor on every new task of the same kind. */
+    static private final double DECAY = 0.98;
+
+    /** The kinds with their own features of the size. */
+    static private final String
+	PDFLATEX = "pdflatex",
+	MPOST = "mpost",
+	GNUPLOT = "gnuplot";
+
+    /** The features of the size. */
+    static private final String
+	SOURCES = "sources",
+	TEXT = "text",
+	FIGURES = "figures",
+	DATA = "data";
+
+    /** The beginning of a MetaPost figure. */
+    static private final Pattern BEGINFIG = Pattern.compile("^\\s*beginfig\\s*\\(");
+
+    /** The beginning of a GNUPlot data block, with the end marker as the group. */
+    static private final Pattern DATABLOCK = Pattern.compile("^\\s*\\$\\w+\\s*<<\\s*(\\w+)\\s*$");
+
+    /** The GNUPlot command plotting a chart. */
+    static private final Pattern PLOT = Pattern.compile("^\\s*(plot|splot|replot)\\b");
+
+    /** A quoted string in a GNUPlot command. */
+    static private final Pattern QUOTED = Pattern.compile("\"([^\"]*)\"|'([^']*)'");
+
+    private final Path file;
+    private final Map<String, Stats> kinds = new HashMap<>();
+
+    /**
+     * Constructs an empty model kept in memory only.
+     */
+    public CostModel()
+    {
+	this.file = null;
+    }
+
+    /**
+     * Constructs a model kept in the given file. The model is loaded from
+     * the file if it exists; a file which can't be read is ignored.
+     *
+     * @param file the file with the model; must not be {@code null}
+     */
+    public CostModel(Path file)
+    {
+	this.file = requireNonNull(file, "file can't be null");
+	if (!Files.exists(file))
+	    return;
+	try (final var r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+	    final Map<String, Stats> m = gson.fromJson(r, new TypeToken<Map<String, Stats>>(){}.getType());
+	    if (m != null)
+		for(final var e: m.entrySet())
+		    if (getFeature(e.getKey()).equals((e.getValue().feature != null)?e.getValue().feature:SOURCES))
+			kinds.put(e.getKey(), e.getValue()); else
+			log.debug("Dropping the cost model of {}, fitted with another feature", e.getKey());
+	    log.debug("Cost model of {} task kinds loaded from {}", kinds.size(), file.toString());
+	}
+	catch(IOException | JsonParseException ex)
+	{
+	    log.warn("Unable to load the cost model from " + file.toString() + ", starting from scratch", ex);
+	}
+    }
+
+    /**
+     * Estimates the duration of a task. A task of a kind never recorded
+     * gets the average duration of all recorded tasks.
+     *
+     * @param task the task; must not be {@code null}
+     * @return the expected duration in milliseconds, or zero if nothing
+     *         has been recorded yet
+     */
+    public synchronized long estimate(CompilationTask task)
+    {
+	requireNonNull(task, "task can't be null");
+	final var s = kinds.get(getKind(task));
+	if (s != null && s.n > 0)
+	    return Math.max(0, Math.round(s.estimate(getSize(task))));
+	double n = 0, sy = 0;
+	for(final var k: kinds.values())
+	{
+	    n += k.n;
+	    sy += k.sy;
+	}
+	return (n > 0)?Math.round(sy / n):0;
+    }
+
+    /**
+     * Adds the duration of an executed task to the model.
+     *
+     * @param task the task; must not be {@code null}
+     * @param res  the result of the task; must not be {@code null}
+     */
+    public void record(CompilationTask task, CompilationResult res)
+    {
+	requireNonNull(task, "task can't be null");
+	requireNonNull(res, "res can't be null");
+	if (res.getExitCode() != 0 || res.getCommandMetrics() == null || res.getCommandMetrics().isEmpty())
+	    return;
+	long millis = 0;
+	for(final var m: res.getCommandMetrics())
+	    millis += m.getWallMillis();
+	final var kind = getKind(task);
+	final double size = getSize(task);
+	synchronized(this) {
+	    kinds.computeIfAbsent(kind, k -> new Stats(getFeature(k))).add(size, millis);
+	}
+    }
+
+    /**
+     * Writes the model to its file, if any, replacing the file atomically.
+     * The errors are logged only, since the model may be learned again.
+     */
+    public void save()
+    {
+	if (file == null)
+	    return;
+	final String json;
+	synchronized(this) {
+	    json = gson.toJson(kinds);
+	}
+	try {
+	    final var dir = file.toAbsolutePath().getParent();
+	    Files.createDirectories(dir);
+	    final var temp = Files.createTempFile(dir, ".tmp-", "");
+	    Files.writeString(temp, json, StandardCharsets.UTF_8);
+	    Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+	catch(IOException ex)
+	{
+	    log.warn("Unable to save the cost model to " + file.toString(), ex);
+	}
+    }
+
+    /**
+     * Returns the kind of a task, i.e. the tool run by its first command.
+     *
+     * @param task the task; must not be {@code null}
+     * @return the kind of the task
+     */
+    static public String getKind(CompilationTask task)
+    {
+	if (task.getCommands() != null && !task.getCommands().isEmpty())
+	    return MetricsRegistry.getToolName(task.getCommands().get(0));
+	if (task.getSteps() != null && !task.getSteps().isEmpty())
+	    return MetricsRegistry.getToolName(task.getSteps().get(0).toCommandLine());
+	return "none";
+    }
+
+    /**
+     * Returns the size of a task, i.e. the feature its duration grows
+     * with, depending on its kind:
+     *
+     * <ul>
+     *   <li>{@code pdflatex}: the size of the text sources, which grow
+     *       with the number of pages, while the binary and file sources
+     *       are mostly the precompiled format and the images, costing
+     *       little more than copying;</li>
+     *   <li>{@code mpost}: the number of figures, since every figure gets
+     *       its own {@code mptopdf} and {@code pdfcrop} runs;</li>
+     *   <li>{@code gnuplot}: the size of the data, i.e. of the inline data
+     *       blocks and of the plotted files given among the sources or by
+     *       absolute paths;</li>
+     *   <li>any other kind: the total size of the sources.</li>
+     * </ul>
+     *
+     * <p>The text is counted in characters; the files given by their
+     * paths which can't be accessed are skipped.</p>
+     *
+     * @param task the task; must not be {@code null}
+     * @return the size of the task
+     */
+    static public long getSize(CompilationTask task)
+    {
+	switch(getKind(task))
+	{
+	case PDFLATEX:
+	    return getTextSize(task);
+	case MPOST:
+	    return countFigures(task);
+	case GNUPLOT:
+	    return getDataSize(task);
+	default:
+	    long size = getTextSize(task);
+	    if (task.getBinarySources() != null)
+		for(final var b: task.getBinarySources().values())
+		    size += b.length;
+	    if (task.getFileSources() != null)
+		for(final var p: task.getFileSources().values())
+		    size += getFileSize(p);
+	    return size;
+	}
+    }
+
+    static private String getFeature(String kind)
+    {
+	switch(kind)
+	{
+	case PDFLATEX:
+	    return TEXT;
+	case MPOST:
+	    return FIGURES;
+	case GNUPLOT:
+	    return DATA;
+	default:
+	    return SOURCES;
+	}
+    }
+
+    static private long getTextSize(CompilationTask task)
+    {
+	long size = 0;
+	if (task.getTextSources() != null)
+	    for(final var l: task.getTextSources().values())
+		size += getSize(l);
+	return size;
+    }
+
+    static private long getSize(List<String> lines)
+    {
+	long size = 0;
+	for(final var s: lines)
+	    size += s.length() + 1;
+	return size;
+    }
+
+    static private long countFigures(CompilationTask task)
+    {
+	long n = 0;
+	if (task.getTextSources() != null)
+	    for(final var l: task.getTextSources().values())
+		for(final var s: l)
+		    if (BEGINFIG.matcher(s).find())
+			n++;
+	return n;
+    }
+
+    /**
+     * Counts the data of a GNUPlot script: the lines of the data blocks and
+     * the files in quotes on the lines plotting the charts. The special
+     * file names, like {@code '-'} or {@code ''}, match no source.
+     */
+    static private long getDataSize(CompilationTask task)
+    {
+	if (task.getTextSources() == null)
+	    return 0;
+	long size = 0;
+	final var files = new HashSet<String>();
+	for(final var l: task.getTextSources().values())
+	{
+	    String end = null;
+	    for(final var s: l)
+	    {
+		if (end != null)
+		{
+		    if (s.trim().equals(end))
+			end = null; else
+			size += s.length() + 1;
+		    continue;
+		}
+		final var b = DATABLOCK.matcher(s);
+		if (b.find())
+		{
+		    end = b.group(1);
+		    continue;
+		}
+		if (!PLOT.matcher(s).find())
+		    continue;
+		final var q = QUOTED.matcher(s);
+		while (q.find())
+		    files.add((q.group(1) != null)?q.group(1):q.group(2));
+	    }
+	}
+	for(final var f: files)
+	    size += getDataFileSize(task, f);
+	return size;
+    }
+
+    static private long getDataFileSize(CompilationTask task, String name)
+    {
+	if (task.getTextSources().containsKey(name))
+	    return getSize(task.getTextSources().get(name));
+	if (task.getBinarySources() != null && task.getBinarySources().containsKey(name))
+	    return task.getBinarySources().get(name).length;
+	if (task.getFileSources() != null && task.getFileSources().containsKey(name))
+	    return getFileSize(task.getFileSources().get(name));
+	try {
+	    final var p = Paths.get(name);
+	    return p.isAbsolute()?getFileSize(p):0;
+	}
+	catch(InvalidPathException ex)
+	{
+	    return 0;
+	}
+    }
+
+    static private long getFileSize(Path p)
+    {
+	try {
+	    return Files.size(p);
+	}
+	catch(IOException ex)
+	{
+	    //The compilation is going to fail anyway
+	    return 0;
+	}
+    }
+
+    /** The decayed sums for the least squares of one kind; also the JSON layout of the file. */
+    static private final class Stats
+    {
+	/** The feature of the size; {@code null} in the files written before the features were told apart. */
+	String feature;
+	double n, sx, sy, sxx, sxy;
+
+	Stats(String feature)
+	{
+	    this.feature = feature;
+	}
+
+	void add(double x, double y)
+	{
+	    n = n * DECAY + 1;
+	    sx = sx * DECAY + x;
+	    sy = sy * DECAY + y;
+	    sxx = sxx * DECAY + x * x;
+	    sxy = sxy * DECAY + x * y;
+	}
+
+	double estimate(double x)
+	{
+	    final double mean = sy / n;
+	    final double d = n * sxx - sx * sx;
+	    //Too few distinct sizes to see the slope
+	    if (n < 2 || d <= 1e-9 * n * sxx)
+		return mean;
+	    final double b = (n * sxy - sx * sy) / d;
+	    if (b <= 0)
+		return mean;
+	    return (sy - b * sx) / n + b * x;
+	}
+    }
+}
@@ -0,0 +1,209 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.charset.*;
+import java.security.*;
+
+/**
+ * Computes content fingerprints of compilation tasks.
+ *
+ * <p>The fingerprint is a SHA-256 digest over every part of a
+ * {@link CompilationTask} that affects the produced
+ * {@link CompilationResult}: text sources, binary sources, commands, all
+ * save lists and the output tail limit. File sources are not read; their
+ * absolute paths, sizes and modification times are taken instead. The
+ * listener, the time limits, the cancellation handle and the output
+ * directory are not included, as they can't change the content of a
+ * successful result. Map entries are processed in the order of their
+ * keys, and every value is prefixed with its length, so two tasks get the
+ * same fingerprint if and only if they describe the same job. A
+ * {@code null} collection is treated the same as an empty one.</p>
+ *
+ * @see CachingCompiler
+ */
+final class Fingerprint
+{
+    private final MessageDigest md;
+
+    private Fingerprint()
+    {
+	try {
+	    this.md = MessageDigest.getInstance("SHA-256");
+	}
+	catch(NoSuchAlgorithmException ex)
+	{
+	    throw new IllegalStateException(ex);
+	}
+    }
+
+    /**
+     * Computes the fingerprint of the given task.
+     *
+     * @param task the task to compute the fingerprint for; must not be
+     *        {@code null}
+     * @return the fingerprint as a lowercase hexadecimal string
+     */
+    static String of(CompilationTask task)
+    {
+	final var f = new Fingerprint();
+	f.textMap(task.getTextSources());
+	f.binaryMap(task.getBinarySources());
+	f.fileMap(task.getFileSources());
+	f.lines(task.getCommands());
+	//Only if present, so the fingerprints of the tasks without them stay the same
+	if (task.getSteps() != null)
+	    f.steps(task.getSteps());
+	if (task.getLatexLogWatch() != null)
+	{
+	    f.string(task.getLatexLogWatch().getFile());
+	    f.number(task.getLatexLogWatch().getMaxErrors());
+	}
+	f.lines(task.getSaveTextFilesOnSuccess());
+	f.lines(task.getSaveBinaryFilesOnSuccess());
+	f.lines(task.getSaveTextFilesOnFailure());
+	f.number(task.getOutputTailLines() > 0?task.getOutputTailLines():0);
+	return HexFormat.of().formatHex(f.md.digest());
+    }
+
+    /**
+     * Computes the fingerprint of the given sources, taken the same way as
+     * the sources of a task.
+     *
+     * @param textSources   the text files, or {@code null}
+     * @param binarySources the binary files, or {@code null}
+     * @param fileSources   the files given by their paths, or {@code null}
+     * @return the fingerprint as a lowercase hexadecimal string
+     */
+    static String ofSources(Map<String, List<String>> textSources, Map<String, byte[]> binarySources, Map<String, Path> fileSources)
+    {
+	final var f = new Fingerprint();
+	f.textMap(textSources);
+	f.binaryMap(binarySources);
+	f.fileMap(fileSources);
+	return HexFormat.of().formatHex(f.md.digest());
+    }
+
+    private void textMap(Map<String, List<String>> map)
+    {
+	if (map == null)
+	{
+	    number(0);
+	    return;
+	}
+	number(map.size());
+	for(final var e: new TreeMap<>(map).entrySet())
+	{
+	    string(e.getKey());
+	    lines(e.getValue());
+	}
+    }
+
+    private void binaryMap(Map<String, byte[]> map)
+    {
+	if (map == null)
+	{
+	    number(0);
+	    return;
+	}
+	number(map.size());
+	for(final var e: new TreeMap<>(map).entrySet())
+	{
+	    string(e.getKey());
+	    bytes(e.getValue());
+	}
+    }
+
+    private void fileMap(Map<String, Path> map)
+    {
+	if (map == null)
+	{
+	    number(0);
+	    return;
+	}
+	number(map.size());
+	for(final var e: new TreeMap<>(map).entrySet())
+	{
+	    string(e.getKey());
+	    final var file = e.getValue().toAbsolutePath();
+	    string(file.toString());
+	    try {
+		number(Files.size(file));
+		number(Files.getLastModifiedTime(file).toMillis());
+	    }
+	    catch(IOException ex)
+	    {
+		//The compilation is going to fail anyway
+		number(-1);
+		number(-1);
+	    }
+	}
+    }
+
+    private void steps(List<Command> steps)
+    {
+	number(steps.size());
+	for(final var c: steps)
+	{
+	    lines(c.getArgv());
+	    env(c.getEnv());
+	    string(c.getCapture() != null?c.getCapture().name():null);
+	    number(c.getTailLines());
+	}
+    }
+
+    private void env(Map<String, String> env)
+    {
+	if (env == null)
+	{
+	    number(0);
+	    return;
+	}
+	number(env.size());
+	for(final var e: new TreeMap<>(env).entrySet())
+	{
+	    string(e.getKey());
+	    //Distinguishes a removed variable from an empty one
+	    number(e.getValue() != null?1:0);
+	    string(e.getValue());
+	}
+    }
+
+    private void lines(List<String> lines)
+    {
+	if (lines == null)
+	{
+	    number(0);
+	    return;
+	}
+	number(lines.size());
+	for(final var s: lines)
+	    string(s);
+    }
+
+    private void string(String s)
+    {
+	bytes(s != null?s.getBytes(StandardCharsets.UTF_8):new byte[0]);
+    }
+
+    private void bytes(byte[] b)
+    {
+	if (b == null)
+	{
+	    number(0);
+	    return;
+	}
+	number(b.length);
+	md.update(b);
+    }
+
+    private void number(long n)
+    {
+	for(int i = 0;i < 8;i++)
+	    md.update((byte)(n >>> (8 * i)));
+    }
+}
@@ -0,0 +1,317 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.nio.charset.*;
+import java.security.*;
+import java.util.regex.*;
+import org.apache.logging.log4j.*;
+
+import atessera.util.*;
+
+import static java.util.Objects.*;
+import static java.nio.file.Files.*;
+
+/**
+ * Cache of LaTeX formats with precompiled document preambles.
+ *
+ * <p>Loading dozens of packages in the preamble of a document takes a
+ * noticeable part of every {@code pdflatex} pass. The state of TeX after
+ * the preamble may be dumped into a format file once, so the passes start
+ * from that state instead. This class dumps such formats and keeps them in
+ * a caller-specified directory; {@link PdfLatex} uses them if it is given
+ * a {@code FormatCache} via {@link PdfLatex#setFormatCache(FormatCache)}.</p>
+ *
+ * <p>A format is identified by a SHA-256 digest over the text of the
+ * preamble and the identity of the TeX installation: the version of
+ * {@code pdflatex} and the sizes and modification times of the system
+ * {@code pdflatex.fmt} and the {@code ls-R} database of the distribution.
+ * So a change of the template producing the preamble, as well as an
+ * update of TeX or of its packages, leads to dumping a new format. The
+ * identity of the installation is checked again once a minute.</p>
+ *
+ * <p>The format is dumped with
+ * {@code pdflatex -ini -jobname=main "&pdflatex" preamble.tex} by the
+ * given {@link Compiler}, so {@code \jobname} expands in the preamble the
+ * same way as in the documents compiled by {@link PdfLatex}. The files
+ * opened for writing while the preamble is processed would be closed in
+ * the format, so the preambles opening them, directly with
+ * {@code \openout} or {@code filecontents}, or via {@code \makeindex},
+ * {@code \makeglossaries} and the like, are never dumped. If a preamble
+ * can't be dumped (e.g. a package refuses to be loaded into a format),
+ * that is remembered, and the documents with this preamble are compiled
+ * as usual.</p>
+ *
+ * <p>The least recently used formats beyond the given number are deleted.
+ * The use of a format is tracked by the modification time of an empty
+ * {@code .used} file next to it, since the access times aren't updated on
+ * the file systems mounted with {@code noatime} or {@code relatime}, and
+ * the modification time of the format itself identifies it for the
+ * compilation caches.</p>
+ *
+ * <p>This class is thread-safe. Several instances may share the
+ * directory, as formats are published there with an atomic rename.</p>
+ *
+ * @see PdfLatex
+ */
+public final class FormatCache
+{
+    static private final Logger log = LogManager.getLogger();
+
+    /** The interval of checking the identity of the TeX installation. */
+    static private final long IDENTITY_CHECK_MILLIS = 60000;
+
+    static private final String
+	FORMAT_EXT = ".fmt",
+	USED_EXT = ".used",
+	TEMP_PREFIX = ".tmp-",
+	IDENTITY_CMD = "pdflatex --version | head -n 1; " +
+	"for f in \"$(kpsewhich -engine=pdftex pdflatex.fmt)\" \"$(kpsewhich -var-value TEXMFDIST)/ls-R\"; do " +
+	"stat -c '%n %s %Y' \"$f\"; done";
+
+    /** The commands opening files for writing, which can't be kept in a format. */
+    static private final Pattern WRITING_COMMANDS = Pattern.compile("\\\\(openout|newwrite|write18|immediate\\s*\\\\write|makeindex|makeglossaries|makenoidxglossaries|makenomenclature)(?![a-zA-Z@])|\\{filecontents\\*?\\}");
+    static private final Pattern COMMENT = Pattern.compile("(?<!\\\\)%.*$");
+
+    private final Compiler compiler;
+    private final Path dir;
+    private final int maxFormats;
+    /** Objects to synchronize on while getting a format, by format keys. */
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+    private final Set<String> failed = ConcurrentHashMap.newKeySet();
+    private String identity = null;
+    private long identityCheckedAt = 0;
+
+    /**
+     * Constructs a format cache. The directory is created if it doesn't
+     * exist.
+     *
+     * @param compiler   the compiler to dump the formats with; must not be
+     *                   {@code null}
+     * @param dir        the directory to keep the formats in; must not be
+     *                   {@code null}
+     * @param maxFormats the maximum number of formats kept in the
+     *                   directory
+     */
+    public FormatCache(Compiler compiler, Path dir, int maxFormats)
+    {
+	this.compiler = requireNonNull(compiler, "compiler can't be null");
+	this.dir = requireNonNull(dir, "dir can't be null");
+	if (maxFormats < 1)
+	    throw new IllegalArgumentException("maxFormats must be positive");
+	this.maxFormats = maxFormats;
+	try {
+	    createDirectories(dir);
+	}
+	catch(IOException ex)
+	{
+	    throw new RuntimeException(ex);
+	}
+    }
+
+    /**
+     * Returns the format with the given preamble, dumping it if there is no
+     * such format yet.
+     *
+     * @param preamble the lines of the preamble, from
+     *                 {@code \documentclass} up to but not including
+     *                 {@code \begin{document}}; must not be {@code null}
+     * @return the path of the format file, or {@code null} if the preamble
+     *         can't be dumped
+     */
+    public Path getFormat(List<String> preamble)
+    {
+	requireNonNull(preamble, "preamble can't be null");
+	final var identity = getIdentity();
+	final var key = getKey(identity, preamble);
+	if (failed.contains(key))
+	    return null;
+	if (isWriting(preamble))
+	{
+	    log.debug("The preamble opens files for writing, not dumping it");
+	    failed.add(key);
+	    return null;
+	}
+	final var file = dir.resolve(key + FORMAT_EXT);
+	synchronized(locks.computeIfAbsent(key, k -> new Object())) {
+	    try {
+		if (exists(file))
+		{
+		    markUsed(key);
+		    return file;
+		}
+		if (!dump(identity, preamble, file))
+		{
+		    failed.add(key);
+		    return null;
+		}
+		markUsed(key);
+		evict();
+		return file;
+	    }
+	    catch(IOException ex)
+	    {
+		log.warn("Unable to prepare the format " + file.toString(), ex);
+		return null;
+	    }
+	}
+    }
+
+    private boolean dump(String identity, List<String> preamble, Path file) throws IOException
+    {
+	final var source = new ArrayList<String>();
+	//Makes the task differ for different installations, so it's never served from a stale cache
+	for(final var s: identity.split("\n", -1))
+	    source.add("% " + s);
+	source.addAll(preamble);
+	source.add("\\dump");
+	final var temp = createTempDirectory(dir, TEMP_PREFIX);
+	try {
+	    final var task = new CompilationTask();
+	    task.setCommands(Collections.emptyList());
+	    //The log is saved on failure
+	    //The job name of the documents, which the preamble may use
+	    task.setSteps(List.of(Command.of("pdflatex", "-ini", "-interaction=batchmode", "-jobname=main", "&pdflatex", "preamble.tex")
+				  .withCapture(Command.Capture.DISCARD, 0)));
+	    task.setTextSources(new HashMap<>());
+	    task.getTextSources().put("preamble.tex", source);
+	    task.setBinarySources(new HashMap<>());
+	    task.setSaveTextFilesOnFailure(List.of("main.log"));
+	    task.setSaveBinaryFilesOnSuccess(List.of("main.fmt"));
+	    task.setSaveTextFilesOnSuccess(Collections.emptyList());
+	    task.setOutputDir(temp);
+	    final var res = compiler.compile(task);
+	    final var fmt = temp.resolve("main.fmt");
+	    if (res.getExitCode() != 0 || !exists(fmt))
+	    {
+		log.warn("Unable to dump the format with the preamble, exit code {}", res.getExitCode());
+		return false;
+	    }
+	    move(fmt, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	    log.debug("Dumped the format {}", file.toString());
+	    return true;
+	}
+	finally {
+	    try (final var s = walk(temp)) {
+		final var l = new ArrayList<>(s.toList());
+		Collections.reverse(l);
+		for(final var p: l)
+		    deleteIfExists(p);
+	    }
+	}
+    }
+
+    private void evict() throws IOException
+    {
+	final List<Path> formats;
+	try (final var s = list(dir)) {
+	    formats = new ArrayList<>(s.filter(p -> p.getFileName().toString().endsWith(FORMAT_EXT)).toList());
+	}
+	if (formats.size() <= maxFormats)
+	    return;
+	final var times = new HashMap<Path, Long>();
+	for(final var p: formats)
+	{
+	    final var used = getUsedFile(p);
+	    try {
+		times.put(p, getLastModifiedTime(exists(used)?used:p).toMillis());
+	    }
+	    catch(IOException ex)
+	    {
+		times.put(p, 0L);
+	    }
+	}
+	formats.sort((p1, p2) -> Long.compare(times.get(p1), times.get(p2)));
+	for(int i = 0;i < formats.size() - maxFormats;i++)
+	{
+	    log.trace("Evicting the format {}", formats.get(i).toString());
+	    deleteIfExists(formats.get(i));
+	    deleteIfExists(getUsedFile(formats.get(i)));
+	}
+    }
+
+    /**
+     * Sets the time of the last use of a format to now.
+     */
+    private void markUsed(String key) throws IOException
+    {
+	final var used = dir.resolve(key + USED_EXT);
+	try {
+	    setLastModifiedTime(used, FileTime.fromMillis(System.currentTimeMillis()));
+	}
+	catch(NoSuchFileException ex)
+	{
+	    try {
+		createFile(used);
+	    }
+	    catch(FileAlreadyExistsException e)
+	    {
+		//Created by another instance sharing the directory
+	    }
+	}
+    }
+
+    static private Path getUsedFile(Path format)
+    {
+	final var name = format.getFileName().toString();
+	return format.resolveSibling(name.substring(0, name.length() - FORMAT_EXT.length()) + USED_EXT);
+    }
+
+    /**
+     * Checks whether the preamble opens files for writing, ignoring the
+     * comments.
+     */
+    static boolean isWriting(List<String> preamble)
+    {
+	for(final var line: preamble)
+	    if (WRITING_COMMANDS.matcher(COMMENT.matcher(line).replaceFirst("")).find())
+		return true;
+	return false;
+    }
+
+    static private String getKey(String identity, List<String> preamble)
+    {
+	try {
+	    final var md = MessageDigest.getInstance("SHA-256");
+	    md.update(identity.getBytes(StandardCharsets.UTF_8));
+	    for(final var s: preamble)
+	    {
+		md.update((byte)'\n');
+		md.update(s.getBytes(StandardCharsets.UTF_8));
+	    }
+	    return HexFormat.of().formatHex(md.digest());
+	}
+	catch(NoSuchAlgorithmException ex)
+	{
+	    throw new IllegalStateException(ex);
+	}
+    }
+
+    /**
+     * Returns the identity of the TeX installation, checking it again if
+     * the last check was long ago.
+     */
+    private synchronized String getIdentity()
+    {
+	final long now = System.currentTimeMillis();
+	if (identity != null && now - identityCheckedAt < IDENTITY_CHECK_MILLIS)
+	    return identity;
+	final var c = new ShellCmd(IDENTITY_CMD, dir.toString());
+	c.waitFor();
+	final var newIdentity = String.join("\n", c.output);
+	if (identity != null && !identity.equals(newIdentity))
+	{
+	    log.info("The TeX installation has changed, the formats are going to be dumped again");
+	    failed.clear();
+	}
+	identity = newIdentity;
+	identityCheckedAt = now;
+	return identity;
+    }
+}
@@ -19,16 +19,22 @@ import static java.util.Objects.*;
  *       producing {@code plot-crop.pdf}.</li>
  * </ol>
  *
+ * <p>Instead of a {@link Compiler}, the facade may use a
+ * {@link GNUPlotSession}, rendering the chart with an already running
+ * {@code gnuplot}; that saves starting it for every chart.</p>
+ *
  * <p>After a successful compilation the cropped PDF is available via
  * {@link #getOutput()}. On failure the last block of stderr is available
  * via {@link #getLog()}.</p>
  *
  * @see Compiler
  * @see LocalCompiler
+ * @see GNUPlotSession
  */
 public final class GNUPlot
 {
     private final Compiler compiler;
+    private final GNUPlotSession session;
     private List<String> source;
     private byte[] output;
     private List<String> log;
@@ -46,6 +52,22 @@ public final class GNUPlot
     public GNUPlot(Compiler compiler, List<String> source)
     {
 	this.compiler = requireNonNull(compiler, "compiler can't be null");
+	this.session = null;
+	this.source = requireNonNull(source, "source can't be null");
+    }
+
+    /**
+     * Constructs a new {@code GNUPlot} compilation facade rendering the
+     * chart in a running {@code gnuplot} session.
+     *
+     * @param session the session to use; must not be {@code null}
+     * @param source  the GNUPlot script as a list of lines; must not be
+     *                {@code null}
+     */
+    public GNUPlot(GNUPlotSession session, List<String> source)
+    {
+	this.compiler = null;
+	this.session = requireNonNull(session, "session can't be null");
 	this.source = requireNonNull(source, "source can't be null");
     }
 
@@ -60,18 +82,7 @@ public final class GNUPlot
      */
     public boolean compile()
     {
-	final var task = new CompilationTask();
-	task.setCommands(List.of(
-				 "gnuplot src.plot",
-				 "pdfcrop plot.pdf"
-				 ));
-	task.setTextSources(new HashMap<>());
-	task.getTextSources().put("src.plot", source);
-	task.setBinarySources(new HashMap<>());
-	task.setSaveTextFilesOnFailure(Collections.emptyList());
-	task.setSaveBinaryFilesOnSuccess(List.of("plot-crop.pdf"));
-	task.setSaveTextFilesOnSuccess(Collections.emptyList());
-	final var res = compiler.compile(task);
+	final var res = (session != null)?session.plot(source):compiler.compile(newTask());
 	rawOutput = res.getOutput();
 	rawErrorOutput = res.getErrorOutput();
 	if (res.getExitCode() == 0)
@@ -93,6 +104,23 @@ public final class GNUPlot
 	return false;
     }
     
+    private CompilationTask newTask()
+    {
+	final var task = new CompilationTask();
+	task.setCommands(Collections.emptyList());
+	task.setSteps(List.of(
+			      Command.of("gnuplot", "src.plot"),
+			      Command.of("pdfcrop", "plot.pdf").withCapture(Command.Capture.TAIL, Command.DEFAULT_TAIL_LINES)
+			      ));
+	task.setTextSources(new HashMap<>());
+	task.getTextSources().put("src.plot", source);
+	task.setBinarySources(new HashMap<>());
+	task.setSaveTextFilesOnFailure(Collections.emptyList());
+	task.setSaveBinaryFilesOnSuccess(List.of("plot-crop.pdf"));
+	task.setSaveTextFilesOnSuccess(Collections.emptyList());
+	return task;
+    }
+
     /**
      * Returns the compiled cropped PDF chart.
      *
@@ -0,0 +1,340 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.charset.*;
+import java.util.regex.*;
+import org.apache.logging.log4j.*;
+
+import atessera.util.*;
+
+import static java.util.Objects.*;
+import static java.nio.file.Files.*;
+import static atessera.util.TextUtils.*;
+
+/**
+ * Long-lived {@code gnuplot} process rendering many plots.
+ *
+ * <p>Running {@link GNUPlot} on a {@link LocalCompiler} starts a new
+ * {@code gnuplot} for every chart, paying the interpreter and font setup
+ * each time. A session starts {@code gnuplot} once and feeds it the
+ * scripts over its standard input. Every plot gets its own directory in
+ * the working directory of the session, and the following is sent for
+ * it:</p>
+ *
+ * <ol>
+ *   <li>{@code reset session} and {@code reset errors}, so no variables,
+ *       functions, settings or errors of the previous plot are
+ *       left;</li>
+ *   <li>{@code cd} into the directory of the plot and {@code load} of its
+ *       script, which is expected to {@code set output "plot.pdf"};</li>
+ *   <li>{@code set output} to close the output file, and a marker line
+ *       with the value of {@code GPVAL_ERRNO} showing that the plot is
+ *       over and whether it had errors.</li>
+ * </ol>
+ *
+ * <p>The PDF is then cropped by {@code pdfcrop} as before. If the script
+ * has an error, the rest of the script is skipped by {@code gnuplot}
+ * itself, and the plot fails with the messages of {@code gnuplot} as its
+ * error output. If {@code gnuplot} exits or crashes, or a plot exceeds the
+ * time limit set by {@link #setTimeoutMillis(long)}, one minute by
+ * default, the plot fails as well, and a new process is started for the
+ * next plot.</p>
+ *
+ * <p>Since the scripts are fed over the standard input of
+ * {@code gnuplot}, a {@code pause} waiting for a key press or a mouse
+ * click ({@code pause -1} or {@code pause mouse}) would read the
+ * following lines of the session instead, never reaching the marker. The
+ * scripts with such a {@code pause} are rejected as failed plots without
+ * running them; the ones hiding it from this check, e.g. in a string
+ * evaluated with {@code eval}, are stopped by the time limit.</p>
+ *
+ * <p>This class is thread-safe, but plots are rendered one at a time, so
+ * concurrent workers should have a session each. The session must be
+ * closed to stop {@code gnuplot} and delete the working directory.</p>
+ *
+ * @see GNUPlot
+ */
+public final class GNUPlotSession implements AutoCloseable
+{
+    static private final Logger log = LogManager.getLogger();
+
+    /** The default maximum time of one plot. */
+    static public final long DEFAULT_TIMEOUT_MILLIS = 60_000;
+
+    /**
+     * The {@code pause} waiting for the user, with the strings and the
+     * comments removed from the line; the command may be abbreviated down
+     * to {@code pa}.
+     */
+    static private final Pattern PAUSE = Pattern.compile("(?:^|[;{])\\s*pa(?:u(?:se?)?)?\\s+(?:-|mou)");
+    static private final Pattern STRING = Pattern.compile("'[^']*'|\"(?:[^\"\\\\]|\\\\.)*\"");
+
+    private final String marker = "@@atessera-" + IdStr.getRandomId(16);
+    private TempDir dir = null;
+    private Process process = null;
+    private BufferedWriter input = null;
+    private BufferedReader output = null;
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private int counter = 0, restarts = 0;
+    private boolean closed = false;
+
+    /**
+     * Renders a plot and crops it. The result is of the same form as the
+     * result of the task made by {@link GNUPlot}: the messages of
+     * {@code gnuplot} come as the error output of the first command, the
+     * output of {@code pdfcrop} as the output of the second one, and the
+     * PDF as {@code plot-crop.pdf}.
+     *
+     * @param source the GNUPlot script; must not be {@code null}
+     * @return the result of the compilation
+     */
+    public synchronized CompilationResult plot(List<String> source)
+    {
+	requireNonNull(source, "source can't be null");
+	if (closed)
+	    throw new IllegalStateException("The session is closed");
+	final var res = new CompilationResult();
+	res.setOutput(new ArrayList<>());
+	res.setErrorOutput(new ArrayList<>());
+	res.setTextOutputFiles(new HashMap<>());
+	res.setBinaryOutputFiles(new HashMap<>());
+	res.setBinaryOutputPaths(new HashMap<>());
+	res.setExitCode(0);
+	final var pause = findPause(source);
+	if (pause != null)
+	{
+	    res.getOutput().add(new ArrayList<>());
+	    res.getErrorOutput().add(new ArrayList<>(List.of("The script can't wait for the user in a session: " + pause)));
+	    res.setExitCode(1);
+	    return res;
+	}
+	Path plotDir = null;
+	try {
+	    if (process != null && !process.isAlive())
+		stop();
+	    if (process == null)
+		start();
+	    final var name = "plot" + String.valueOf(++counter);
+	    plotDir = dir.getPath().resolve(name);
+	    createDirectory(plotDir);
+	    writeTextFile(plotDir.resolve("src.plot"), source);
+	    final var messages = new ArrayList<String>();
+	    res.getOutput().add(new ArrayList<>());
+	    res.getErrorOutput().add(messages);
+	    final int exitCode = run(plotDir, messages);
+	    if (exitCode != 0)
+	    {
+		res.setExitCode(exitCode);
+		res.setTimedOut(exitCode < 0);
+		return res;
+	    }
+	    final var crop = new ShellCmd(List.of("pdfcrop", "plot.pdf"), null, plotDir.toString(), null, null, Command.DEFAULT_TAIL_LINES, true);
+	    final int cropExitCode = crop.waitFor();
+	    res.getOutput().add(crop.output);
+	    res.getErrorOutput().add(crop.error);
+	    if (cropExitCode != 0)
+	    {
+		res.setExitCode(cropExitCode);
+		return res;
+	    }
+	    final var pdf = plotDir.resolve("plot-crop.pdf");
+	    if (exists(pdf))
+		res.getBinaryOutputFiles().put("plot-crop.pdf", readAllBytes(pdf));
+	    return res;
+	}
+	catch(Throwable ex)
+	{
+	    log.error("Exception in the gnuplot session", ex);
+	    stop();
+	    final var wr = new StringWriter();
+	    ex.printStackTrace(new PrintWriter(wr));
+	    res.setExitCode(-1);
+	    res.setStackTrace(wr.toString());
+	    return res;
+	}
+	finally {
+	    if (plotDir != null)
+		deleteTree(plotDir);
+	}
+    }
+
+    /**
+     * Returns the maximum time of one plot.
+     *
+     * @return the time limit in milliseconds, {@link
+     *         #DEFAULT_TIMEOUT_MILLIS} unless set otherwise; zero means no
+     *         limit
+     */
+    public synchronized long getTimeoutMillis()
+    {
+	return timeoutMillis;
+    }
+
+    /**
+     * Sets the maximum time of one plot. The {@code gnuplot} process
+     * rendering a plot longer is killed and started again for the next
+     * plot. Without a limit, a script making {@code gnuplot} wait for the
+     * input blocks the session forever.
+     *
+     * @param timeoutMillis the time limit in milliseconds; zero or a
+     *                      negative value means no limit
+     */
+    public synchronized void setTimeoutMillis(long timeoutMillis)
+    {
+	this.timeoutMillis = Math.max(0, timeoutMillis);
+    }
+
+    /**
+     * Returns the number of times {@code gnuplot} was started again after
+     * exiting on an error, a crash or a timeout.
+     *
+     * @return the number of restarts
+     */
+    public synchronized int getRestarts()
+    {
+	return restarts;
+    }
+
+    /**
+     * Stops {@code gnuplot} and deletes the working directory.
+     */
+    @Override public synchronized void close()
+    {
+	if (closed)
+	    return;
+	closed = true;
+	if (process != null)
+	{
+	    try {
+		input.write("exit\n");
+		input.flush();
+		if (!process.waitFor(5, TimeUnit.SECONDS))
+		    process.destroyForcibly();
+	    }
+	    catch(IOException ex)
+	    {
+		process.destroyForcibly();
+	    }
+	    catch(InterruptedException ex)
+	    {
+		process.destroyForcibly();
+		Thread.currentThread().interrupt();
+	    }
+	    process = null;
+	}
+	if (dir != null)
+	{
+	    dir.close();
+	    dir = null;
+	}
+    }
+
+    /**
+     * Feeds a plot to {@code gnuplot} and reads its messages up to the
+     * marker.
+     *
+     * @return zero if the marker was reached without errors, a positive
+     *         value if the plot had errors or {@code gnuplot} has exited,
+     *         or {@code -1} if it was killed on timeout
+     */
+    private int run(Path plotDir, List<String> messages) throws IOException, InterruptedException
+    {
+	final var p = process;
+	input.write("reset session\n");
+	input.write("reset errors\n");
+	input.write("cd '" + plotDir.toAbsolutePath().toString() + "'\n");
+	input.write("load 'src.plot'\n");
+	input.write("set output\n");
+	input.write("cd '" + dir.getPath().toAbsolutePath().toString() + "'\n");
+	input.write("set print\n");
+	input.write("print '" + marker + " ', GPVAL_ERRNO\n");
+	input.flush();
+	final Future<?> kill = (timeoutMillis > 0)?
+	CompletableFuture.runAsync(() -> p.destroyForcibly(), CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS)):
+	null;
+	try {
+	    String line;
+	    while ((line = output.readLine()) != null)
+	    {
+		if (line.startsWith(marker + " "))
+		    return line.substring(marker.length() + 1).trim().equals("0")?0:1;
+		messages.add(line);
+	    }
+	}
+	finally {
+	    if (kill != null)
+		kill.cancel(false);
+	}
+	final boolean timedOut = (kill != null && kill.isDone() && !kill.isCancelled());
+	final int exitCode = p.waitFor();
+	log.debug("gnuplot exited with code {} while rendering {}", exitCode, plotDir.toString());
+	stop();
+	if (timedOut)
+	    return -1;
+	return (exitCode != 0)?exitCode:1;
+    }
+
+    /**
+     * Looks for a {@code pause} waiting for a key press or a mouse click.
+     *
+     * @return the line with the {@code pause}, or {@code null} if there
+     *         is none
+     */
+    static String findPause(List<String> source)
+    {
+	for(final var line: source)
+	{
+	    var l = STRING.matcher(line).replaceAll("''");
+	    final int comment = l.indexOf('#');
+	    if (comment >= 0)
+		l = l.substring(0, comment);
+	    if (PAUSE.matcher(l).find())
+		return line;
+	}
+	return null;
+    }
+
+    private void start() throws IOException
+    {
+	if (dir == null)
+	    dir = new TempDir();
+	if (counter > 0)
+	    restarts++;
+	process = new ProcessBuilder("gnuplot")
+	.directory(dir.getFile())
+	.redirectErrorStream(true)
+	.start();
+	input = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), Charset.defaultCharset()));
+	output = new BufferedReader(new InputStreamReader(process.getInputStream(), Charset.defaultCharset()));
+    }
+
+    private void stop()
+    {
+	if (process == null)
+	    return;
+	process.destroyForcibly();
+	process = null;
+	input = null;
+	output = null;
+    }
+
+    static private void deleteTree(Path path)
+    {
+	try (final var s = walk(path)) {
+	    final var l = new ArrayList<>(s.toList());
+	    Collections.reverse(l);
+	    for(final var p: l)
+		deleteIfExists(p);
+	}
+	catch(IOException ex)
+	{
+	    log.warn("Unable to delete " + path.toString(), ex);
+	}
+    }
+}
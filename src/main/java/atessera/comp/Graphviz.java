@@ -0,0 +1,246 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+
+import static java.util.Objects.*;
+
+/**
+ * Facade for compiling many Graphviz graphs to PDF or SVG at once.
+ *
+ * <p>All graphs given to the facade are laid out by the same engine
+ * ({@code dot}, {@code neato}, {@code twopi} or {@code circo}) in a single
+ * process: every graph is written to its own file ({@code graph1.gv},
+ * {@code graph2.gv} and so on), and the engine is started once with all
+ * of them and the {@code -O} flag, producing {@code graph1.gv.pdf},
+ * {@code graph2.gv.pdf} and so on next to the sources. Graphviz sizes the
+ * page of a PDF by the drawing, so no cropping is needed.</p>
+ *
+ * <p>The graphs are given by their identifiers (e.g. the ids of the
+ * sections they come from), and the results are returned by the same
+ * identifiers. Every graph is given as a complete Graphviz source, e.g.
+ * {@code digraph { a -> b }}, and only the first graph of a source gets
+ * into the output. The graphs of different engines, like the sections of
+ * the {@code GRAPHVIZ_DOT} and {@code GRAPHVIZ_NEATO} types, are compiled
+ * by separate instances of this class.</p>
+ *
+ * <p>The engine reports the errors to stderr, naming the file and the
+ * line; an error in any graph fails the whole batch, and the messages are
+ * then available via {@link #getLog()}.</p>
+ *
+ * @see MetapostBatch
+ * @see Compiler
+ */
+public final class Graphviz
+{
+    /** The layout engines. */
+    public enum Engine
+    {
+	/** Hierarchical layout of directed graphs. */
+	DOT("dot"),
+	/** Spring model layout. */
+	NEATO("neato"),
+	/** Radial layout. */
+	TWOPI("twopi"),
+	/** Circular layout. */
+	CIRCO("circo");
+
+	private final String command;
+
+	Engine(String command)
+	{
+	    this.command = command;
+	}
+
+	/**
+	 * Returns the program running the engine.
+	 *
+	 * @return the name of the program
+	 */
+	public String getCommand()
+	{
+	    return command;
+	}
+    };
+
+    /** The formats of the output. */
+    public enum Format
+    {
+	/** PDF, to be included into LaTeX documents. */
+	PDF("pdf"),
+	/** SVG, to be included into HTML pages. */
+	SVG("svg");
+
+	private final String ext;
+
+	Format(String ext)
+	{
+	    this.ext = ext;
+	}
+
+	/**
+	 * Returns the extension of the output files, which is also the
+	 * name of the format for the {@code -T} flag.
+	 *
+	 * @return the extension without the dot
+	 */
+	public String getExt()
+	{
+	    return ext;
+	}
+    };
+
+    private final Compiler compiler;
+    private final Engine engine;
+    private final Format format;
+    private final Map<String, List<String>> graphs;
+    private Map<String, byte[]> outputs;
+    private List<String> log;
+    private List<List<String>> rawOutput, rawErrorOutput;
+    private String stackTrace;
+
+    /**
+     * Constructs a new {@code Graphviz} compilation facade.
+     *
+     * @param compiler the underlying {@link Compiler} to use; must not be
+     *                 {@code null}
+     * @param engine   the layout engine; must not be {@code null}
+     * @param format   the format of the output; must not be {@code null}
+     * @param graphs   the sources of the graphs by their identifiers; must
+     *                 not be {@code null}
+     */
+    public Graphviz(Compiler compiler, Engine engine, Format format, Map<String, List<String>> graphs)
+    {
+	this.compiler = requireNonNull(compiler, "compiler can't be null");
+	this.engine = requireNonNull(engine, "engine can't be null");
+	this.format = requireNonNull(format, "format can't be null");
+	this.graphs = new LinkedHashMap<>(requireNonNull(graphs, "graphs can't be null"));
+    }
+
+    /**
+     * Lays out and renders all graphs in one run of the engine.
+     *
+     * @return {@code true} if the engine completed successfully and the
+     *         files of all graphs were produced; {@code false} otherwise
+     * @throws IllegalStateException if the compiler result is inconsistent
+     *         (zero exit code but a missing output file)
+     */
+    public boolean compile()
+    {
+	final var ids = new ArrayList<String>(graphs.keySet());
+	if (ids.isEmpty())
+	{
+	    outputs = new LinkedHashMap<>();
+	    return true;
+	}
+	final var argv = new ArrayList<String>(List.of(engine.getCommand(), "-T" + format.getExt(), "-O"));
+	final var task = new CompilationTask();
+	task.setTextSources(new HashMap<>());
+	final var saved = new ArrayList<String>();
+	for(int i = 0;i < ids.size();i++)
+	{
+	    task.getTextSources().put(sourceFile(i), graphs.get(ids.get(i)));
+	    argv.add(sourceFile(i));
+	    saved.add(outputFile(i));
+	}
+	task.setCommands(Collections.emptyList());
+	//The errors go to stderr only, so the whole output is kept
+	task.setSteps(List.of(new Command(argv, null, Command.Capture.FULL, 0)));
+	task.setBinarySources(new HashMap<>());
+	task.setSaveTextFilesOnFailure(Collections.emptyList());
+	task.setSaveBinaryFilesOnSuccess(saved);
+	task.setSaveTextFilesOnSuccess(Collections.emptyList());
+	final var res = compiler.compile(task);
+	rawOutput = res.getOutput();
+	rawErrorOutput = res.getErrorOutput();
+	if (res.getExitCode() == 0)
+	{
+	    final var o = new LinkedHashMap<String, byte[]>();
+	    for(int i = 0;i < ids.size();i++)
+	    {
+		final var b = res.getBinaryOutputFiles().get(outputFile(i));
+		if (b == null)
+		    throw new IllegalStateException("No " + outputFile(i) + " in " + engine.getCommand() + " output with exit code equal to zero");
+		o.put(ids.get(i), b);
+	    }
+	    outputs = o;
+	    return true;
+	}
+	if (res.getExitCode() > 0)
+	{
+	    log = (rawErrorOutput != null && !rawErrorOutput.isEmpty())?rawErrorOutput.get(0):new ArrayList<>();
+	    return false;
+	}
+	stackTrace = res.getStackTrace();
+	return false;
+    }
+
+    /**
+     * Returns the rendered graphs.
+     *
+     * @return the PDF or SVG files by the identifiers of the graphs, or
+     *         {@code null} if compilation has not been run or was
+     *         unsuccessful
+     */
+    public Map<String, byte[]> getOutputs()
+    {
+	return outputs;
+    }
+
+    /**
+     * Returns the messages of the engine after a failed compilation.
+     *
+     * @return the stderr of the engine as a list of lines, or {@code null}
+     *         if compilation succeeded or has not been run
+     */
+    public List<String> getLog()
+    {
+	return log;
+    }
+
+    /**
+     * Returns the raw stdout captured from each command in the pipeline.
+     *
+     * @return an unmodifiable view of the captured stdout, or {@code null}
+     *         before compilation
+     */
+    public List<List<String>> getRawOutput()
+    {
+	return rawOutput;
+    }
+
+    /**
+     * Returns the raw stderr captured from each command in the pipeline.
+     *
+     * @return an unmodifiable view of the captured stderr, or {@code null}
+     *         before compilation
+     */
+    public List<List<String>> getRawErrorOutput()
+    {
+	return rawErrorOutput;
+    }
+
+    /**
+     * Returns the stack trace if an internal exception occurred during
+     * compilation.
+     *
+     * @return the stack trace as a string, or {@code null} if no exception
+     *         was thrown
+     */
+    public String getStackTrace()
+    {
+	return stackTrace;
+    }
+
+    static private String sourceFile(int index)
+    {
+	return "graph" + String.valueOf(index + 1) + ".gv";
+    }
+
+    private String outputFile(int index)
+    {
+	return sourceFile(index) + "." + format.getExt();
+    }
+}
@@ -0,0 +1,36 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import lombok.*;
+
+/**
+ * An error reported by TeX in its log file.
+ *
+ * @see LatexLogParser
+ * @see CompilationResult#getLatexErrors()
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public final class LatexError
+{
+    /**
+     * The file the error is in, as written by TeX (e.g.
+     * {@code ./main.tex}), or {@code null} if the log doesn't say it.
+     */
+    private String file;
+
+    /** The line number of the error in the file, or zero if unknown. */
+    private int line;
+
+    /** The message of the error, e.g. {@code Undefined control sequence.} */
+    private String message;
+
+    /**
+     * The text of the source line up to the place of the error, as shown by
+     * TeX, or {@code null} if there is no such text.
+     */
+    private String context;
+}
@@ -0,0 +1,146 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+import java.util.regex.*;
+
+import static java.util.Objects.*;
+
+/**
+ * Extracts the errors from the log of TeX, line by line.
+ *
+ * <p>Both forms of the error messages are recognized: the classic one,
+ * beginning with {@code !} and followed by the {@code l.<number>} line
+ * with the place of the error, and the one of the
+ * {@code -file-line-error} mode, beginning with
+ * {@code <file>:<line>:}. The latter gives the file of the error as well,
+ * so it's preferred. The errors are collected in the order of their
+ * appearance, and the errors stopping TeX immediately (like
+ * {@code Emergency stop} or {@code TeX capacity exceeded}) are recognized
+ * as fatal.</p>
+ *
+ * <p>TeX wraps the lines of its log at 79 characters, so long messages
+ * may be truncated.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ *
+ * @see LatexLogWatch
+ */
+public final class LatexLogParser
+{
+    /** How many lines after the error message the {@code l.<number>} line is looked for. */
+    static private final int CONTEXT_LINES = 16;
+
+    static private final Pattern
+	FILE_LINE_ERROR = Pattern.compile("^(\\.{0,2}/?[^:\\s]+\\.[A-Za-z]+):(\\d+): (.*)$"),
+	LINE_NUMBER = Pattern.compile("^l\\.(\\d+) ?(.*)$");
+
+    static private final List<String> FATAL = List.of(
+						      "Emergency stop",
+						      "TeX capacity exceeded",
+						      "Fatal error occurred");
+
+    private final List<LatexError> errors = new ArrayList<>();
+    private LatexError pending = null;
+    private int pendingLines = 0;
+    private boolean fatal = false;
+
+    /**
+     * Parses the whole log.
+     *
+     * @param lines the lines of the log; must not be {@code null}
+     * @return the errors found in the log
+     */
+    static public List<LatexError> parse(List<String> lines)
+    {
+	requireNonNull(lines, "lines can't be null");
+	final var p = new LatexLogParser();
+	for(final var l: lines)
+	    p.accept(l);
+	return p.getErrors();
+    }
+
+    /**
+     * Takes the next line of the log.
+     *
+     * @param line the line without the line terminator; must not be
+     *             {@code null}
+     */
+    public void accept(String line)
+    {
+	requireNonNull(line, "line can't be null");
+	if (line.startsWith("! "))
+	{
+	    error(null, 0, line.substring(2).trim());
+	    return;
+	}
+	final var m = FILE_LINE_ERROR.matcher(line);
+	if (m.find())
+	{
+	    error(m.group(1), Integer.parseInt(m.group(2)), m.group(3).trim());
+	    return;
+	}
+	if (line.contains("==> Fatal error occurred") || line.startsWith("*** (job aborted"))
+	    fatal = true;
+	if (pending == null)
+	    return;
+	final var l = LINE_NUMBER.matcher(line);
+	if (l.find())
+	{
+	    if (pending.getLine() == 0)
+		pending.setLine(Integer.parseInt(l.group(1)));
+	    pending.setContext(l.group(2).isEmpty()?null:l.group(2));
+	    pending = null;
+	    return;
+	}
+	pendingLines++;
+	if (pendingLines > CONTEXT_LINES)
+	    pending = null;
+    }
+
+    /**
+     * Returns the errors found so far.
+     *
+     * @return the list of the errors, the last one possibly without the
+     *         line number yet
+     */
+    public List<LatexError> getErrors()
+    {
+	final var res = new ArrayList<LatexError>(errors.size());
+	for(final var e: errors)
+	    res.add(new LatexError(e.getFile(), e.getLine(), e.getMessage(), e.getContext()));
+	return res;
+    }
+
+    /**
+     * Returns the number of the errors found so far.
+     *
+     * @return the number of the errors
+     */
+    public int getErrorCount()
+    {
+	return errors.size();
+    }
+
+    /**
+     * Checks whether the log has shown an error stopping TeX.
+     *
+     * @return {@code true} if a fatal error has been found
+     */
+    public boolean isFatal()
+    {
+	return fatal;
+    }
+
+    private void error(String file, int line, String message)
+    {
+	pending = new LatexError(file, line, message, null);
+	pendingLines = 0;
+	errors.add(pending);
+	for(final var f: FATAL)
+	    if (message.contains(f))
+		fatal = true;
+    }
+}
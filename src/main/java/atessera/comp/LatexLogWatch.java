@@ -0,0 +1,35 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import lombok.*;
+
+/**
+ * Instructs a {@link Compiler} to watch the log file of TeX while the
+ * commands of a task run.
+ *
+ * <p>The log is read as it grows and parsed by a {@link LatexLogParser}.
+ * As soon as it shows a fatal error or the given number of errors, the
+ * running command is killed, since nothing useful is going to come from
+ * it: in the batch mode TeX goes on after an error, and a single missing
+ * package may produce hundreds of {@code Undefined control sequence}
+ * errors before TeX gives up. The errors found in the log are returned in
+ * {@link CompilationResult#getLatexErrors()} in any case.</p>
+ *
+ * @see CompilationTask#getLatexLogWatch()
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public final class LatexLogWatch
+{
+    /** The name of the log file in the working directory, e.g. {@code main.log}. */
+    private String file;
+
+    /**
+     * The number of errors making the command to be killed. Zero or a
+     * negative value means killing on the fatal errors only.
+     */
+    private int maxErrors;
+}
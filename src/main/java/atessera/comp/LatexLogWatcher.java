@@ -0,0 +1,157 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import org.apache.logging.log4j.*;
+
+/**
+ * Follows the log of TeX while a command runs and kills the command on a
+ * fatal error or on too many errors (see {@link LatexLogWatch}).
+ *
+ * <p>The log is polled from a thread shared by all watchers, reading only
+ * the bytes appended since the previous poll. A log getting shorter means
+ * a new TeX pass, and the parsing starts over then. The watcher only
+ * decides whether to kill the command; the errors to be returned are
+ * taken from the whole log once the command has finished, with
+ * {@link #readErrors(Path)}.</p>
+ */
+final class LatexLogWatcher implements AutoCloseable
+{
+    static private final Logger log = LogManager.getLogger();
+
+    /** The interval of polling the logs. */
+    static private final long POLL_MILLIS = 100;
+
+    static private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+	    final var t = new Thread(r, "atessera-log-watcher");
+	    t.setDaemon(true);
+	    return t;
+	});
+    static {
+	timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private final Path file;
+    private final int maxErrors;
+    private final Runnable kill;
+    private final ScheduledFuture<?> poller;
+    private final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+    private LatexLogParser parser = new LatexLogParser();
+    private long pos = 0;
+    private volatile boolean aborted = false;
+
+    /**
+     * Starts watching.
+     *
+     * @param file      the log file, which may not exist yet
+     * @param maxErrors the number of errors making the command to be
+     *                  killed, or zero for the fatal errors only
+     * @param kill      the action killing the command
+     */
+    LatexLogWatcher(Path file, int maxErrors, Runnable kill)
+    {
+	this.file = file;
+	this.maxErrors = maxErrors;
+	this.kill = kill;
+	this.poller = timer.scheduleWithFixedDelay(this::poll, POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks whether the command has been killed by this watcher.
+     */
+    boolean isAborted()
+    {
+	return aborted;
+    }
+
+    /**
+     * Stops watching.
+     */
+    @Override public void close()
+    {
+	poller.cancel(false);
+    }
+
+    private synchronized void poll()
+    {
+	if (aborted)
+	    return;
+	try (final var ch = FileChannel.open(file, StandardOpenOption.READ)) {
+	    final long size = ch.size();
+	    if (size < pos)
+	    {
+		parser = new LatexLogParser();
+		partial.reset();
+		pos = 0;
+	    }
+	    final var buf = ByteBuffer.allocate(8192);
+	    while (pos < size)
+	    {
+		buf.clear();
+		final int n = ch.read(buf, pos);
+		if (n <= 0)
+		    break;
+		pos += n;
+		for(int i = 0;i < n;i++)
+		{
+		    final byte b = buf.get(i);
+		    if (b != '\n')
+		    {
+			partial.write(b);
+			continue;
+		    }
+		    var line = new String(partial.toByteArray(), StandardCharsets.UTF_8);
+		    partial.reset();
+		    if (line.endsWith("\r"))
+			line = line.substring(0, line.length() - 1);
+		    parser.accept(line);
+		}
+	    }
+	}
+	catch(NoSuchFileException ex)
+	{
+	    return;
+	}
+	catch(IOException ex)
+	{
+	    log.debug("Unable to read {}: {}", file.toString(), ex.getMessage());
+	    return;
+	}
+	if (parser.isFatal() || (maxErrors > 0 && parser.getErrorCount() >= maxErrors))
+	{
+	    log.debug("Killing the command watching {} with {} errors, fatal: {}", file.toString(), parser.getErrorCount(), parser.isFatal());
+	    aborted = true;
+	    kill.run();
+	    poller.cancel(false);
+	}
+    }
+
+    /**
+     * Parses the whole log.
+     *
+     * @param file the log file
+     * @return the errors in the log, or an empty list if there is no log
+     */
+    static List<LatexError> readErrors(Path file) throws IOException
+    {
+	if (!Files.exists(file))
+	    return new ArrayList<>();
+	final var decoder = StandardCharsets.UTF_8.newDecoder()
+	.onMalformedInput(CodingErrorAction.REPLACE)
+	.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	try (final var r = new BufferedReader(new InputStreamReader(Files.newInputStream(file), decoder))) {
+	    final var p = new LatexLogParser();
+	    for(var line = r.readLine();line != null;line = r.readLine())
+		p.accept(line);
+	    return p.getErrors();
+	}
+    }
+}
@@ -6,6 +6,7 @@ package atessera.comp;
 import java.util.*;
 import java.io.*;
 import java.nio.file.*;
+import java.nio.file.attribute.*;
 import java.net.*;
 
 import org.apache.logging.log4j.*;
@@ -15,7 +16,6 @@ import atessera.util.*;
 
 import static java.util.Objects.*;
 import static java.util.stream.Collectors.*;
-import static org.apache.commons.io.IOUtils.*;
 import static java.nio.file.Files.*;
 import static atessera.util.TextUtils.*;
 
@@ -27,25 +27,58 @@ import static atessera.util.TextUtils.*;
  * {@link CompilationTask}:</p>
  *
  * <ol>
- *   <li>Creates a temporary working directory via {@link TempDir}.</li>
- *   <li>Writes all text and binary source files into that directory.</li>
- *   <li>Executes the task's shell commands sequentially. Each command's
- *       stdout and stderr are captured in separate threads (via
- *       {@link ShellCmd}) to prevent deadlocks.</li>
+ *   <li>Creates a temporary working directory via {@link TempDir}, or
+ *       takes one from a {@link WorkspacePool} if the compiler was
+ *       constructed with a pool.</li>
+ *   <li>Writes all text and binary source files into that directory.
+ *       The file sources are hard-linked or copied by the kernel (see
+ *       {@link TempDir#stageFile(Path, Path)}).</li>
+ *   <li>Executes the task's shell commands and then its structured
+ *       {@link Command commands} sequentially; the structured ones are
+ *       started without the shell. Each command's
+ *       stdout and stderr are read concurrently (via {@link ShellCmd})
+ *       to prevent deadlocks. The lines are passed to
+ *       the task's {@link CompilationListener} as they arrive, and only
+ *       the last {@code outputTailLines} lines are kept if the task
+ *       limits them, unless the capture policy of a structured command
+ *       says otherwise. Discarded output without a listener isn't read
+ *       at all.</li>
+ *   <li>If a command exceeds the time limit of one command or the
+ *       deadline of the whole task, or the task is cancelled via its
+ *       {@link Cancellation} handle, kills the command together with its
+ *       descendant processes and returns immediately with the exit code
+ *       {@code -1} and the corresponding flag set in the result.</li>
+ *   <li>If the task has a {@link LatexLogWatch}, follows the log of TeX
+ *       while every command runs and kills the command as soon as the log
+ *       shows a fatal error or too many errors; such a command fails with
+ *       the exit code {@code 1}. The errors of the log are parsed into
+ *       {@link CompilationResult#getLatexErrors()}.</li>
  *   <li>If a command fails (non-zero exit code), collects the files
  *       listed in {@link CompilationTask#getSaveTextFilesOnFailure()
  *       saveTextFilesOnFailure} and returns immediately.</li>
  *   <li>If all commands succeed, collects the files listed in
  *       {@code saveTextFilesOnSuccess} and
- *       {@code saveBinaryFilesOnSuccess}.</li>
- *   <li>Cleans up the temporary directory (via try-with-resources).</li>
+ *       {@code saveBinaryFilesOnSuccess}. If the task has an output
+ *       directory, the binary files are moved there instead of being
+ *       read into memory.</li>
+ *   <li>Cleans up the temporary directory (via try-with-resources); a
+ *       pooled directory is returned to the pool and cleaned there
+ *       asynchronously.</li>
  * </ol>
  *
+ * <p>The wall-clock time, the CPU time and the peak memory of every
+ * command are recorded in {@link CompilationResult#getCommandMetrics()},
+ * as well as the size of the working directory after the commands and
+ * the size of the collected output files. If the compiler is constructed
+ * with a {@link MetricsRegistry}, every result is also added to the
+ * totals there.</p>
+ *
  * <p>In case of an internal exception (e.g. I/O error), the method sets
  * the exit code to {@code -1}, captures the stack trace in the result,
  * and returns the result object; it does <em>not</em> throw.</p>
  *
  * @see TempDir
+ * @see WorkspacePool
  * @see ShellCmd
  */
 public final class LocalCompiler implements Compiler
@@ -54,6 +87,46 @@ public final class LocalCompiler implements Compiler
     static private String
 	CHARSET = "UTF-8";
 
+    private final WorkspacePool pool;
+    private final MetricsRegistry metrics;
+
+    /**
+     * Constructs a compiler creating a new temporary directory for every
+     * task.
+     */
+    public LocalCompiler()
+    {
+	this.pool = null;
+	this.metrics = null;
+    }
+
+    /**
+     * Constructs a compiler taking working directories from the given
+     * pool.
+     *
+     * @param pool the pool of working directories; must not be {@code null}
+     */
+    public LocalCompiler(WorkspacePool pool)
+    {
+	this.pool = requireNonNull(pool, "pool can't be null");
+	this.metrics = null;
+    }
+
+    /**
+     * Constructs a compiler recording the resource usage of the
+     * compilations in the given registry.
+     *
+     * @param pool    the pool of working directories, or {@code null} to
+     *                create a new temporary directory for every task
+     * @param metrics the registry to record the compilations in; must not
+     *                be {@code null}
+     */
+    public LocalCompiler(WorkspacePool pool, MetricsRegistry metrics)
+    {
+	this.pool = pool;
+	this.metrics = requireNonNull(metrics, "metrics can't be null");
+    }
+
     /**
      * Executes the compilation task in a local temporary directory.
      *
@@ -63,41 +136,107 @@ public final class LocalCompiler implements Compiler
      *         code is returned)
      */
     @Override public CompilationResult compile(CompilationTask task)
+    {
+	final var res = run(task);
+	if (metrics != null)
+	    metrics.record(res);
+	return res;
+    }
+
+    private CompilationResult run(CompilationTask task)
     {
 	final var res = new CompilationResult();
 	res.setOutput(new ArrayList<>());
 	res.setErrorOutput(new ArrayList<>());
 	res.setTextOutputFiles(new HashMap<>());
 	res.setBinaryOutputFiles(new HashMap<>());
+	res.setBinaryOutputPaths(new HashMap<>());
+	res.setCommandMetrics(new ArrayList<>());
 	res.setExitCode(0);
 	try {
-	    try(final var temp = new TempDir()) {
+	    try(final TempDir temp = (pool != null)?pool.acquire(sourceNames(task)):new TempDir()) {
 		final Path tempDir = temp.getPath();
-		for(final var e: task.getTextSources().entrySet())
-		    writeTextFile(tempDir.resolve(e.getKey()), e.getValue());
-		for(final var e: task.getBinarySources().entrySet())
+		temp.writeSources(task.getTextSources(), task.getBinarySources(), (task.getFileSources() != null)?task.getFileSources():Map.of());
+		final long started = System.currentTimeMillis();
+		final var staged = sourceNames(task);
+		final var listener = task.getListener();
+		final var cancellation = task.getCancellation();
+		final long deadline = (task.getTimeoutMillis() > 0)?System.currentTimeMillis() + task.getTimeoutMillis():Long.MAX_VALUE;
+		final var commands = commandsOf(task);
+		for(int i = 0;i < commands.size();i++)
 		{
-		    try (var os = newOutputStream(tempDir.resolve(e.getKey()))) {
-			copy(new ByteArrayInputStream(e.getValue()), os);
+		    if (cancellation != null && cancellation.isCancelled())
+		    {
+			log.debug("Compilation in {} cancelled", tempDir.toString());
+			res.setExitCode(-1);
+			res.setCancelled(true);
+			return res;
 		    }
-		}
-		for(final var cmd: task.getCommands())
-		{
+		    final var command = commands.get(i);
+		    final var cmd = command.toCommandLine();
+		    final int index = i;
+		    final int tailLines = getTailLines(task, command);
+		    final boolean keepOutput = command.getCapture() != Command.Capture.DISCARD;
 		    log.trace("Running {} in {}", cmd, tempDir.toString());
-		    final var c = temp.execShell(cmd);
-		    final int exitCode = c.waitFor();
-		    res.getOutput().add(new ArrayList<>(c.output));
-		    res.getErrorOutput().add(new ArrayList<>(c.error));
+		    final var c = (listener != null)?
+		    temp.exec(command.getArgv(), command.getEnv(), line -> listener.onOutput(index, line), line -> listener.onErrorOutput(index, line), tailLines, keepOutput):
+		    temp.exec(command.getArgv(), command.getEnv(), null, null, tailLines, keepOutput);
+		    final Runnable kill = c::kill;
+		    if (cancellation != null && !cancellation.register(kill))
+			c.kill();
+		    final var watch = task.getLatexLogWatch();
+		    final var watcher = (watch != null)?new LatexLogWatcher(tempDir.resolve(watch.getFile()), watch.getMaxErrors(), kill):null;
+		    final int commandExitCode;
+		    try {
+			commandExitCode = c.waitFor(getCommandTimeout(task, deadline));
+		    }
+		    finally {
+			if (cancellation != null)
+			    cancellation.unregister(kill);
+			if (watcher != null)
+			    watcher.close();
+		    }
+		    if (watch != null)
+			res.setLatexErrors(LatexLogWatcher.readErrors(tempDir.resolve(watch.getFile())));
+		    final int exitCode;
+		    if (watcher != null && watcher.isAborted())
+		    {
+			log.debug("Command {} in {} killed on errors in {}", cmd, tempDir.toString(), watch.getFile());
+			res.setAborted(true);
+			exitCode = 1;
+		    } else
+			exitCode = commandExitCode;
+		    res.getOutput().add(c.output);
+		    res.getErrorOutput().add(c.error);
+		    res.getCommandMetrics().add(new CommandMetrics(cmd, (c.isTimedOut() || (cancellation != null && cancellation.isCancelled()))?-1:exitCode,
+								   c.getWallMillis(), c.getUserCpuMillis(), c.getSystemCpuMillis(), c.getPeakRssBytes()));
+		    if (cancellation != null && cancellation.isCancelled())
+		    {
+			log.debug("Compilation in {} cancelled", tempDir.toString());
+			res.setExitCode(-1);
+			res.setCancelled(true);
+			return res;
+		    }
+		    if (c.isTimedOut())
+		    {
+			log.error("Command {} in {} killed on timeout", cmd, tempDir.toString());
+			res.setExitCode(-1);
+			res.setTimedOut(true);
+			res.setWorkspaceBytes(sizeOf(tempDir, staged, started));
+			return res;
+		    }
 		    if (exitCode != 0)
 		    {
 			log.error("Compilation failed in {} with exit code {}", tempDir.toString(), exitCode);
 			res.setExitCode(exitCode);
+			res.setWorkspaceBytes(sizeOf(tempDir, staged, started));
 			for(final var f: task.getSaveTextFilesOnFailure())
 			{
 			    final var ff = tempDir.resolve(f);
 			    if (exists(ff))
 			    {
 			    log.trace("Saving {} from {}", f, tempDir.toString());
+			    res.setArtifactBytes(res.getArtifactBytes() + size(ff));
 			    res.getTextOutputFiles().put(f, readTextFile(ff));
 			    }
 			    else
@@ -106,12 +245,14 @@ public final class LocalCompiler implements Compiler
 			return res;
 		    }
 		}
+		res.setWorkspaceBytes(sizeOf(tempDir, staged, started));
 		    for(final var f: task.getSaveTextFilesOnSuccess())
 		    {
 			final var ff = tempDir.resolve(f);
 			if (exists(ff))
 			{
 			log.trace("Saving {} from {}", f, tempDir.toString());
+			res.setArtifactBytes(res.getArtifactBytes() + size(ff));
 			res.getTextOutputFiles().put(f, readTextFile(ff));
 			} else
 			    				log.warn("No file {} requested to be saved on compilation failure", ff.toString());
@@ -122,11 +263,10 @@ public final class LocalCompiler implements Compiler
 			if (exists(ff))
 			{
 			log.trace("Saving {} from {}", f, tempDir.toString());
-			final var buf = new ByteArrayOutputStream();
-			try (var is = newInputStream(ff)) {
-			    copy(is, buf);
-			}
-			res.getBinaryOutputFiles().put(f, buf.toByteArray());
+			res.setArtifactBytes(res.getArtifactBytes() + size(ff));
+			if (task.getOutputDir() != null)
+			    res.getBinaryOutputPaths().put(f, moveOutput(ff, task.getOutputDir().resolve(f))); else
+			    res.getBinaryOutputFiles().put(f, readAllBytes(ff));
 			} else
 			    			    				log.warn("No file {} requested to be saved on compilation failure", ff.toString());
 		    }
@@ -140,7 +280,121 @@ public final class LocalCompiler implements Compiler
 	    ex.printStackTrace(new PrintWriter(wr));
 	    res.setExitCode(-1);
 	    res.setStackTrace(wr.toString());
-	    return null;
+	    return res;
+	}
+    }
+
+    /**
+     * Makes the list of all commands of the task, with the shell ones
+     * wrapped into {@link Command#shell(String)}.
+     */
+    static private List<Command> commandsOf(CompilationTask task)
+    {
+	final var res = new ArrayList<Command>();
+	if (task.getCommands() != null)
+	    for(final var c: task.getCommands())
+		res.add(Command.shell(c));
+	if (task.getSteps() != null)
+	    for(final var c: task.getSteps())
+	    {
+		if (c.getArgv() == null || c.getArgv().isEmpty())
+		    throw new IllegalArgumentException("A command without argv");
+		res.add(c);
+	    }
+	return res;
+    }
+
+    /**
+     * Computes the number of the last output lines kept for the command,
+     * zero meaning everything.
+     */
+    static private int getTailLines(CompilationTask task, Command command)
+    {
+	final int taskTail = Math.max(0, task.getOutputTailLines());
+	if (command.getCapture() == null)
+	    return taskTail;
+	switch(command.getCapture())
+	{
+	case TAIL:
+	    return (command.getTailLines() > 0)?command.getTailLines():taskTail;
+	default:
+	    return 0;
+	}
+    }
+
+    /**
+     * Computes the time limit of the next command, taking into account both
+     * the limit of one command and the time left until the deadline of the
+     * whole task.
+     */
+    static private long getCommandTimeout(CompilationTask task, long deadline)
+    {
+	long timeout = (task.getCommandTimeoutMillis() > 0)?task.getCommandTimeoutMillis():0;
+	if (deadline != Long.MAX_VALUE)
+	{
+	    final long left = Math.max(1, deadline - System.currentTimeMillis());
+	    timeout = (timeout > 0)?Math.min(timeout, left):left;
+	}
+	return timeout;
+    }
+
+    /**
+     * Moves an output file out of the working directory. Within one file
+     * system it is a rename, so the content isn't copied at all.
+     */
+    static private Path moveOutput(Path file, Path dest) throws IOException
+    {
+	final var parent = dest.toAbsolutePath().getParent();
+	if (parent != null)
+	    createDirectories(parent);
+	return move(file, dest, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Computes the total size of the files made by the commands in the
+     * working directory, i.e. of the regular files other than the sources
+     * or modified after the start of the commands; the staged sources
+     * may be hard links to the files shared with other tasks. The
+     * measurement is best-effort: a file vanishing or failing to be read
+     * during the walk is skipped, and the walk failing on a directory
+     * gives the size counted so far, so it never fails the compilation.
+     */
+    static private long sizeOf(Path dir, Set<String> staged, long started)
+    {
+	long size = 0;
+	try (final var s = walk(dir)) {
+	    final var it = s.iterator();
+	    while (it.hasNext())
+	    {
+		final var p = it.next();
+		try {
+		    final var attr = readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		    if (!attr.isRegularFile())
+			continue;
+		    if (staged.contains(dir.relativize(p).toString()) && attr.lastModifiedTime().toMillis() <= started)
+			continue;
+		    size += attr.size();
+		}
+		catch(IOException ex)
+		{
+		    //Deleted by a process still running
+		}
+	    }
+	    return size;
 	}
+	catch(IOException | UncheckedIOException ex)
+	{
+	    log.debug("Unable to measure the working directory " + dir.toString(), ex);
+	    return size;
+	}
+    }
+
+    static private Set<String> sourceNames(CompilationTask task)
+    {
+	final var res = new HashSet<String>(task.getTextSources().keySet());
+	res.addAll(task.getBinarySources().keySet());
+	if (task.getFileSources() != null)
+	    res.addAll(task.getFileSources().keySet());
+	return res;
     }
 }
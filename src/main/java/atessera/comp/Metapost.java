@@ -27,6 +27,10 @@ import static java.util.Objects.*;
  * {@link #getOutput()}. On failure the contents of {@code main.log} are
  * available via {@link #getLog()}.</p>
  *
+ * <p>Many figures are compiled faster together by
+ * {@link MetapostBatch}.</p>
+ *
+ * @see MetapostBatch
  * @see Compiler
  * @see LocalCompiler
  */
@@ -65,11 +69,13 @@ public final class Metapost
     public boolean compile()
     {
 	final var task = new CompilationTask();
-	task.setCommands(List.of(
-				 "TEX=latex mpost -interaction=batchmode main.mp end",
-				 				 "mptopdf figure.mps",
-				 				 "pdfcrop figure-mps.pdf"
-				 ));
+	task.setCommands(Collections.emptyList());
+	task.setSteps(List.of(
+			      //Everything is in main.log in the batch mode
+			      Command.of("mpost", "-interaction=batchmode", "main.mp", "end").withEnv("TEX", "latex").withCapture(Command.Capture.DISCARD, 0),
+			      Command.of("mptopdf", "figure.mps").withCapture(Command.Capture.TAIL, Command.DEFAULT_TAIL_LINES),
+			      Command.of("pdfcrop", "figure-mps.pdf").withCapture(Command.Capture.TAIL, Command.DEFAULT_TAIL_LINES)
+			      ));
 	task.setTextSources(new HashMap<>());
 	task.getTextSources().put("main.mp", source);
 			 task.setBinarySources(new HashMap<>());
@@ -0,0 +1,202 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+
+import static java.util.Objects.*;
+
+/**
+ * Facade for compiling many MetaPost figures to cropped PDF at once.
+ *
+ * <p>Compiling every figure with {@link Metapost} means running
+ * {@code mpost} and starting LaTeX for its labels once per figure. This
+ * class puts all figures into one {@code main.mp}, each of them in its own
+ * numbered {@code beginfig} block, and compiles them in a single
+ * task:</p>
+ *
+ * <ol>
+ *   <li>{@code mpost} &mdash; compiles {@code main.mp} once, writing the
+ *       figures to {@code fig1.mps}, {@code fig2.mps} and so on. The
+ *       environment variable {@code TEX=latex} is set so that MetaPost uses
+ *       LaTeX for typesetting labels, and the labels of all figures are
+ *       typeset in one LaTeX run.</li>
+ *   <li>{@code mptopdf} and {@code pdfcrop} &mdash; convert and crop every
+ *       figure, started directly without the shell, producing
+ *       {@code fig1-mps-crop.pdf}, {@code fig2-mps-crop.pdf} and so
+ *       on.</li>
+ * </ol>
+ *
+ * <p>The figures are given by their identifiers (e.g. the ids of the
+ * sections they come from), and the results are returned by the same
+ * identifiers. Every figure is given as its drawing commands only,
+ * without {@code beginfig} and {@code endfig}; the common preamble (e.g.
+ * {@code verbatimtex} declarations) is placed once at the beginning of the
+ * file. As all figures are compiled in one MetaPost run, they share its
+ * global state, so the variables not meant to be shared should be declared
+ * with {@code save}.</p>
+ *
+ * <p>An error in any figure fails the whole batch; the contents of
+ * {@code main.log} are then available via {@link #getLog()}, and the
+ * failing figures may be compiled separately with {@link Metapost}.</p>
+ *
+ * @see Metapost
+ * @see Compiler
+ */
+public final class MetapostBatch
+{
+    private final Compiler compiler;
+    private final List<String> preamble;
+    private final Map<String, List<String>> figures;
+    private Map<String, byte[]> outputs;
+    private List<String> log;
+    private List<List<String>> rawOutput, rawErrorOutput;
+    private String stackTrace;
+
+    /**
+     * Constructs a new {@code MetapostBatch} compilation facade.
+     *
+     * @param compiler the underlying {@link Compiler} to use; must not be
+     *                 {@code null}
+     * @param preamble the MetaPost source lines placed before all figures;
+     *                 must not be {@code null}
+     * @param figures  the drawing commands of the figures by their
+     *                 identifiers; must not be {@code null}
+     */
+    public MetapostBatch(Compiler compiler, List<String> preamble, Map<String, List<String>> figures)
+    {
+	this.compiler = requireNonNull(compiler, "compiler can't be null");
+	this.preamble = requireNonNull(preamble, "preamble can't be null");
+	this.figures = new LinkedHashMap<>(requireNonNull(figures, "figures can't be null"));
+    }
+
+    /**
+     * Runs the MetaPost-to-PDF pipeline for all figures.
+     *
+     * @return {@code true} if all steps completed successfully and the
+     *         cropped PDFs were produced; {@code false} otherwise
+     * @throws IllegalStateException if the compiler result is inconsistent
+     *         (e.g. zero exit code but a missing PDF, or non-zero exit code
+     *         but no log file)
+     */
+    public boolean compile()
+    {
+	final var ids = new ArrayList<String>(figures.keySet());
+	final var source = new ArrayList<String>(preamble);
+	source.add("outputtemplate := \"fig%c.mps\";");
+	for(int i = 0;i < ids.size();i++)
+	{
+	    source.add("beginfig(" + String.valueOf(i + 1) + ");");
+	    source.addAll(figures.get(ids.get(i)));
+	    source.add("endfig;");
+	}
+	final var saved = new ArrayList<String>();
+	for(int i = 0;i < ids.size();i++)
+	    saved.add(figureFile(i));
+	final var steps = new ArrayList<Command>();
+	//Everything is in main.log in the batch mode
+	steps.add(Command.of("mpost", "-interaction=batchmode", "main.mp", "end").withEnv("TEX", "latex").withCapture(Command.Capture.DISCARD, 0));
+	for(int i = 1;i <= ids.size();i++)
+	{
+	    steps.add(Command.of("mptopdf", "fig" + String.valueOf(i) + ".mps").withCapture(Command.Capture.TAIL, Command.DEFAULT_TAIL_LINES));
+	    steps.add(Command.of("pdfcrop", "fig" + String.valueOf(i) + "-mps.pdf").withCapture(Command.Capture.TAIL, Command.DEFAULT_TAIL_LINES));
+	}
+	final var task = new CompilationTask();
+	task.setCommands(Collections.emptyList());
+	task.setSteps(steps);
+	task.setTextSources(new HashMap<>());
+	task.getTextSources().put("main.mp", source);
+	task.setBinarySources(new HashMap<>());
+	task.setSaveTextFilesOnFailure(List.of("main.log"));
+	task.setSaveBinaryFilesOnSuccess(saved);
+	task.setSaveTextFilesOnSuccess(Collections.emptyList());
+	final var res = compiler.compile(task);
+	rawOutput = res.getOutput();
+	rawErrorOutput = res.getErrorOutput();
+	if (res.getExitCode() == 0)
+	{
+	    final var o = new LinkedHashMap<String, byte[]>();
+	    for(int i = 0;i < ids.size();i++)
+	    {
+		final var b = res.getBinaryOutputFiles().get(figureFile(i));
+		if (b == null)
+		    throw new IllegalStateException("No " + figureFile(i) + " in metapost output with exit code equal to zero");
+		o.put(ids.get(i), b);
+	    }
+	    outputs = o;
+	    return true;
+	}
+	if (res.getExitCode() > 0)
+	{
+	    final var l = res.getTextOutputFiles().get("main.log");
+	    if (l == null)
+		throw new IllegalStateException("No main.log in metapost output with exit code equal to " + res.getExitCode());
+	    log = l;
+	    return false;
+	}
+	stackTrace = res.getStackTrace();
+	return false;
+    }
+
+    /**
+     * Returns the compiled cropped PDF figures.
+     *
+     * @return the PDFs by the identifiers of the figures, or {@code null}
+     *         if compilation has not been run or was unsuccessful
+     */
+    public Map<String, byte[]> getOutputs()
+    {
+	return outputs;
+    }
+
+    /**
+     * Returns the contents of {@code main.log} after a failed compilation.
+     *
+     * @return the log file as a list of lines, or {@code null} if the log
+     *         was not captured
+     */
+    public List<String> getLog()
+    {
+	return log;
+    }
+
+    /**
+     * Returns the raw stdout captured from each command in the pipeline.
+     *
+     * @return an unmodifiable view of the captured stdout, or {@code null}
+     *         before compilation
+     */
+    public List<List<String>> getRawOutput()
+    {
+	return rawOutput;
+    }
+
+    /**
+     * Returns the raw stderr captured from each command in the pipeline.
+     *
+     * @return an unmodifiable view of the captured stderr, or {@code null}
+     *         before compilation
+     */
+    public List<List<String>> getRawErrorOutput()
+    {
+	return rawErrorOutput;
+    }
+
+    /**
+     * Returns the stack trace if an internal exception occurred during
+     * compilation.
+     *
+     * @return the stack trace as a string, or {@code null} if no exception
+     *         was thrown
+     */
+    public String getStackTrace()
+    {
+	return stackTrace;
+    }
+
+    static private String figureFile(int index)
+    {
+	return "fig" + String.valueOf(index + 1) + "-mps-crop.pdf";
+    }
+}
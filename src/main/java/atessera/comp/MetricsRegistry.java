@@ -0,0 +1,295 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+
+import static java.util.Objects.*;
+
+/**
+ * Aggregate resource usage of compilations, broken down by the tools run
+ * by the commands.
+ *
+ * <p>A {@link LocalCompiler} constructed with a registry records every
+ * compilation here; results obtained elsewhere, e.g. from a
+ * {@link RemoteCompiler}, may be recorded with
+ * {@link #record(CompilationResult)} explicitly. The totals are available
+ * through {@link #getToolMetrics()} and in the Prometheus text exposition
+ * format through {@link #toPrometheus()}, which may be served as is by an
+ * HTTP endpoint to be scraped.</p>
+ *
+ * <p>The tool of a command is guessed from its text by
+ * {@link #getToolName(String)}: it is the first program the shell is going
+ * to execute, so {@code TEX=latex mpost main.mp} is counted as
+ * {@code mpost}, and a script run with {@code bash} is counted by the name
+ * of the script without the {@code .sh} extension, so the passes of
+ * {@link PdfLatex}, run by {@code bash pdflatex.sh}, are counted as
+ * {@code pdflatex}.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ *
+ * @see CommandMetrics
+ */
+public final class MetricsRegistry
+{
+    static private final Set<String>
+	SHELLS = Set.of("bash", "sh"),
+	PREFIXES = Set.of("do", "then", "else", "if", "while", "until", "!", "{", "(", "exec", "env", "time", "nice");
+
+    private final Map<String, ToolMetrics> tools = new TreeMap<>();
+    private long compilations = 0, failures = 0, workspaceBytes = 0, artifactBytes = 0, savedExecutions = 0;
+
+    /**
+     * Adds the resource usage of a compilation to the totals.
+     *
+     * @param res the result of the compilation; must not be {@code null}
+     */
+    public synchronized void record(CompilationResult res)
+    {
+	requireNonNull(res, "res can't be null");
+	compilations++;
+	if (res.getExitCode() != 0)
+	    failures++;
+	workspaceBytes += res.getWorkspaceBytes();
+	artifactBytes += res.getArtifactBytes();
+	if (res.getCommandMetrics() == null)
+	    return;
+	for(final var m: res.getCommandMetrics())
+	{
+	    final var t = tools.computeIfAbsent(getToolName(m.getCommand()), k -> new ToolMetrics());
+	    t.runs++;
+	    if (m.getExitCode() != 0)
+		t.failures++;
+	    t.wallMillis += m.getWallMillis();
+	    t.userCpuMillis += m.getUserCpuMillis();
+	    t.systemCpuMillis += m.getSystemCpuMillis();
+	    t.peakRssBytes = Math.max(t.peakRssBytes, m.getPeakRssBytes());
+	}
+    }
+
+    /**
+     * Counts a task which has got the result of an identical task executed
+     * at the same time instead of being executed (see
+     * {@link CoalescingCompiler}).
+     */
+    public synchronized void recordSavedExecution()
+    {
+	savedExecutions++;
+    }
+
+    /**
+     * Returns a snapshot of the totals by tools.
+     *
+     * @return the totals keyed by the tool names, sorted by the names
+     */
+    public synchronized SortedMap<String, ToolMetrics> getToolMetrics()
+    {
+	final var res = new TreeMap<String, ToolMetrics>();
+	for(final var e: tools.entrySet())
+	    res.put(e.getKey(), e.getValue().copy());
+	return res;
+    }
+
+    /** Returns the number of recorded compilations. */
+    public synchronized long getCompilations()
+    {
+	return compilations;
+    }
+
+    /** Returns the number of recorded compilations with a non-zero exit code. */
+    public synchronized long getFailures()
+    {
+	return failures;
+    }
+
+    /** Returns the number of tasks which have got the result of another one. */
+    public synchronized long getSavedExecutions()
+    {
+	return savedExecutions;
+    }
+
+    /** Returns the total size of the working directories of the recorded compilations. */
+    public synchronized long getWorkspaceBytes()
+    {
+	return workspaceBytes;
+    }
+
+    /** Returns the total size of the output files of the recorded compilations. */
+    public synchronized long getArtifactBytes()
+    {
+	return artifactBytes;
+    }
+
+    /**
+     * Renders the totals in the Prometheus text exposition format.
+     *
+     * @return the text to be served to the scraper
+     */
+    public synchronized String toPrometheus()
+    {
+	final var b = new StringBuilder();
+	counter(b, "atessera_compilations_total", "Compilations executed.", compilations);
+	counter(b, "atessera_compilation_failures_total", "Compilations finished with a non-zero exit code.", failures);
+	counter(b, "atessera_saved_executions_total", "Tasks which have got the result of an identical concurrent task.", savedExecutions);
+	counter(b, "atessera_workspace_bytes_total", "Bytes in the working directories after the compilations.", workspaceBytes);
+	counter(b, "atessera_artifact_bytes_total", "Bytes of the output files collected from the compilations.", artifactBytes);
+	header(b, "atessera_command_runs_total", "Commands executed, by tool.", "counter");
+	for(final var e: tools.entrySet())
+	    sample(b, "atessera_command_runs_total", e.getKey(), String.valueOf(e.getValue().runs));
+	header(b, "atessera_command_failures_total", "Commands finished with a non-zero exit code, by tool.", "counter");
+	for(final var e: tools.entrySet())
+	    sample(b, "atessera_command_failures_total", e.getKey(), String.valueOf(e.getValue().failures));
+	header(b, "atessera_command_wall_seconds_total", "Wall-clock time of the commands, by tool.", "counter");
+	for(final var e: tools.entrySet())
+	    sample(b, "atessera_command_wall_seconds_total", e.getKey(), seconds(e.getValue().wallMillis));
+	header(b, "atessera_command_user_cpu_seconds_total", "User CPU time of the commands and their descendants, by tool.", "counter");
+	for(final var e: tools.entrySet())
+	    sample(b, "atessera_command_user_cpu_seconds_total", e.getKey(), seconds(e.getValue().userCpuMillis));
+	header(b, "atessera_command_system_cpu_seconds_total", "System CPU time of the commands and their descendants, by tool.", "counter");
+	for(final var e: tools.entrySet())
+	    sample(b, "atessera_command_system_cpu_seconds_total", e.getKey(), seconds(e.getValue().systemCpuMillis));
+	header(b, "atessera_command_peak_rss_bytes", "The largest peak resident set size of a command, by tool.", "gauge");
+	for(final var e: tools.entrySet())
+	    sample(b, "atessera_command_peak_rss_bytes", e.getKey(), String.valueOf(e.getValue().peakRssBytes));
+	return b.toString();
+    }
+
+    /**
+     * Guesses the tool run by a shell command. It is the first word in a
+     * command position which isn't a variable assignment, a shell keyword
+     * or a wrapper like {@code exec}; the words of {@code for} up to
+     * {@code do} are skipped. A script run with {@code bash} or
+     * {@code sh} is taken by its name without the {@code .sh} extension.
+     * The directory of the tool is dropped.
+     *
+     * @param command the text of the command; must not be {@code null}
+     * @return the name of the tool, or the first word of the command if no
+     *         tool is found
+     */
+    static public String getToolName(String command)
+    {
+	requireNonNull(command, "command can't be null");
+	final var words = command.replace("&&", " ; ").replace("||", " ; ").replace("|", " ; ").replace(";", " ; ").trim().split("\\s+");
+	boolean commandPos = true, skipToDo = false, shell = false;
+	for(final var w: words)
+	{
+	    if (skipToDo)
+	    {
+		if (w.equals("do"))
+		{
+		    skipToDo = false;
+		    commandPos = true;
+		}
+		continue;
+	    }
+	    if (w.equals(";"))
+	    {
+		commandPos = true;
+		continue;
+	    }
+	    if (!commandPos)
+		continue;
+	    if (shell && w.startsWith("-"))
+		continue;
+	    if (w.equals("for"))
+	    {
+		skipToDo = true;
+		continue;
+	    }
+	    if (PREFIXES.contains(w) || w.matches("[A-Za-z_][A-Za-z0-9_]*=.*"))
+		continue;
+	    if (SHELLS.contains(w))
+	    {
+		shell = true;
+		continue;
+	    }
+	    final var name = w.replaceAll("[\"'()]", "");
+	    if (name.isEmpty())
+		continue;
+	    final var tool = name.substring(name.lastIndexOf('/') + 1);
+	    return (shell && tool.endsWith(".sh") && tool.length() > 3)?tool.substring(0, tool.length() - 3):tool;
+	}
+	return (words.length > 0 && !words[0].isEmpty())?words[0]:"unknown";
+    }
+
+    static private void counter(StringBuilder b, String name, String help, long value)
+    {
+	header(b, name, help, "counter");
+	b.append(name).append(' ').append(String.valueOf(value)).append('\n');
+    }
+
+    static private void header(StringBuilder b, String name, String help, String type)
+    {
+	b.append("# HELP ").append(name).append(' ').append(help).append('\n');
+	b.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    static private void sample(StringBuilder b, String name, String tool, String value)
+    {
+	b.append(name).append("{tool=\"")
+	.append(tool.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+	.append("\"} ").append(value).append('\n');
+    }
+
+    static private String seconds(long millis)
+    {
+	return String.format(Locale.ROOT, "%.3f", millis / 1000.0);
+    }
+
+    /**
+     * The totals of one tool.
+     */
+    static public final class ToolMetrics
+    {
+	private long runs = 0, failures = 0, wallMillis = 0, userCpuMillis = 0, systemCpuMillis = 0, peakRssBytes = 0;
+
+	/** Returns the number of commands run. */
+	public long getRuns()
+	{
+	    return runs;
+	}
+
+	/** Returns the number of commands finished with a non-zero exit code. */
+	public long getFailures()
+	{
+	    return failures;
+	}
+
+	/** Returns the total wall-clock time of the commands. */
+	public long getWallMillis()
+	{
+	    return wallMillis;
+	}
+
+	/** Returns the total user CPU time of the commands. */
+	public long getUserCpuMillis()
+	{
+	    return userCpuMillis;
+	}
+
+	/** Returns the total system CPU time of the commands. */
+	public long getSystemCpuMillis()
+	{
+	    return systemCpuMillis;
+	}
+
+	/** Returns the largest peak resident set size of a command. */
+	public long getPeakRssBytes()
+	{
+	    return peakRssBytes;
+	}
+
+	private ToolMetrics copy()
+	{
+	    final var c = new ToolMetrics();
+	    c.runs = runs;
+	    c.failures = failures;
+	    c.wallMillis = wallMillis;
+	    c.userCpuMillis = userCpuMillis;
+	    c.systemCpuMillis = systemCpuMillis;
+	    c.peakRssBytes = peakRssBytes;
+	    return c;
+	}
+    }
+}
@@ -4,31 +4,87 @@
 package atessera.comp;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+import java.io.*;
+import java.nio.file.*;
 import org.apache.logging.log4j.*;
 
 import static java.util.Objects.*;
 import static java.util.stream.Collectors.*;
+import static atessera.util.TextUtils.*;
 
 /**
  * Facade for compiling LaTeX documents to PDF using {@code pdflatex}.
  *
- * <p>This class encapsulates a three-pass {@code pdflatex} pipeline:</p>
+ * <p>LaTeX needs several passes to resolve cross-references, the table of
+ * contents and the bibliography, but the number of passes depends on the
+ * document. This class runs {@code pdflatex} repeatedly until the
+ * document converges:</p>
  *
  * <ol>
- *   <li>First pass &mdash; resolves cross-references.</li>
- *   <li>Second pass &mdash; resolves table of contents and bibliography.</li>
- *   <li>Third pass &mdash; finalises all references and produces the
- *       definitive PDF.</li>
+ *   <li>If the source uses cross-references, citations, labels or
+ *       tables of contents, the first pass is run with {@code -draftmode},
+ *       since its output will never be final anyway; otherwise the first
+ *       pass writes the PDF directly.</li>
+ *   <li>Every next pass writes the PDF.</li>
+ *   <li>After each pass writing the PDF the pipeline stops if the
+ *       {@code .toc}, {@code .lof}, {@code .lot} and {@code .out} files
+ *       haven't changed during the pass and the log doesn't ask for a
+ *       rerun (LaTeX itself reports changed labels and citations kept in
+ *       {@code .aux} this way).</li>
+ *   <li>In any case no more than {@link #getMaxPasses() maxPasses} passes
+ *       are run.</li>
  * </ol>
  *
- * <p>All three passes run with {@code --interaction=batchmode} to suppress
+ * <p>So a short document without cross-references gets compiled in one
+ * pass, and a typical document with references in two, only one of them
+ * producing a PDF. The loop is implemented by a small shell script placed
+ * into the working directory next to the sources, so the whole pipeline
+ * is one command of the {@link CompilationTask}.</p>
+ *
+ * <p>All passes run with {@code --interaction=batchmode} to suppress
  * interactive prompts. The LaTeX source is written as {@code main.tex} in
  * the working directory. Additional text files (e.g. code listings) and
- * binary files (e.g. images) can be supplied alongside.</p>
+ * binary files (e.g. images) can be supplied alongside. Images stored in
+ * files may be given by their paths, so they are staged into the working
+ * directory without being loaded into the memory on every build.</p>
+ *
+ * <p>The auxiliary files ({@code main.aux}, {@code main.toc} and so on)
+ * of a successful build may be kept in a directory dedicated to the
+ * document (see {@link #setAuxDir(Path)}) and placed into the working
+ * directory of the next build. After a small edit the kept files are
+ * usually still right, so the first pass writes the PDF directly, and the
+ * document converges in one pass instead of two or three.</p>
+ *
+ * <p>A long document may be split into chapters, i.e. the files included
+ * by {@code main.tex} with {@code \include} (see
+ * {@link atessera.publ.TexTranslator#translateChapters()}). If the
+ * chapters are given with {@link #setChapters(List)} along with the
+ * directory for the auxiliary files, the {@code .aux} files of the
+ * chapters are kept as well, together with the digests of the sources.
+ * If partial builds are requested with
+ * {@link #setChangedChaptersOnly(boolean)}, a build after editing some
+ * chapters typesets only these chapters with {@code \includeonly}, taking
+ * the labels, the page numbers and the other counters of the rest of the
+ * document from their kept {@code .aux} files; otherwise every build
+ * produces the whole document. With these files a large document may
+ * also be typeset by several processes at once, one chapter per process,
+ * with {@link #compileSharded(CompilationScheduler)}.</p>
+ *
+ * <p>The preamble of the document may be precompiled into a LaTeX format
+ * kept by a {@link FormatCache}, so the passes don't load the packages
+ * again and again (see {@link #setFormatCache(FormatCache)}).</p>
  *
  * <p>After a successful compilation the resulting PDF is available via
- * {@link #getOutput()}. On failure the contents of {@code main.log} are
- * available via {@link #getLog()}.</p>
+ * {@link #getOutput()}, or via {@link #getOutputPath()} if an
+ * {@link #setOutputDir(Path) output directory} is set. On failure the errors
+ * reported by TeX are available via {@link #getErrors()}, with the files
+ * and the line numbers they are found at; the whole {@code main.log} isn't
+ * returned. The log is watched while the passes run, and a pass is killed
+ * as soon as it shows a fatal error or
+ * {@link #setMaxErrors(int) too many errors}, instead of letting TeX go
+ * through the whole document producing nothing useful.</p>
  *
  * @see Compiler
  * @see LocalCompiler
@@ -36,16 +92,93 @@ import static java.util.stream.Collectors.*;
 public final class PdfLatex
 {
     static private final Logger logger = LogManager.getLogger();
-    
+
+    /** The default maximum number of {@code pdflatex} passes. */
+    static public final int DEFAULT_MAX_PASSES = 4;
+
+    /** The default number of errors making a pass to be killed. */
+    static public final int DEFAULT_MAX_ERRORS = 10;
+
+    /** The name of the script running the passes. */
+    static private final String PASSES_SCRIPT = "pdflatex.sh";
+
+    /** The auxiliary files kept between the builds by {@link #setAuxDir(Path)}. */
+    static private final List<String> AUX_FILES = List.of("main.aux", "main.toc", "main.lof", "main.lot", "main.out", "main.nav", "main.snm");
+
+    /** The file keeping the digests of the sources in the directory with the auxiliary files. */
+    static private final String SOURCES_DIGESTS = "sources.sha256";
+
+    /** The key of the digest of everything except the chapters. */
+    static private final String REST_DIGEST = "*";
+
+    /** The file the shards write the numbers of the shipped out pages to. */
+    static private final String SHARD_PAGES = "main.shards";
+
+    /** The key of the number of all pages of a shard. */
+    static private final String SHARD_TOTAL = "*";
+
+    /** The line including a chapter. */
+    static private final Pattern INCLUDE = Pattern.compile("^\\s*\\\\include\\{([^}]+)\\}\\s*$");
+
+    /** The name of the format with the precompiled preamble. */
+    static private final String FORMAT = "atessera-preamble";
+
+    /**
+     * The script running the passes. Takes the maximum number of passes, the
+     * flag whether the first pass is a draft one and optionally the name of
+     * the format to use.
+     */
+    static private final List<String> PASSES_SCRIPT_SOURCE = List.of(
+								    "max=$1",
+								    "draft=$2",
+								    "fmt=$3",
+								    "state() { cat main.toc main.lof main.lot main.out 2>/dev/null | md5sum; }",
+								    "for ((pass = 1; pass <= max; pass++)); do",
+								    "    before=$(state)",
+								    "    mode=",
+								    "    if [ \"$draft\" = 1 ] && [ $pass = 1 ]; then mode=-draftmode; fi",
+								    "    pdflatex --interaction=batchmode -file-line-error ${fmt:+-fmt=$fmt} $mode main.tex || exit $?",
+								    "    if [ -z \"$mode\" ] && [ \"$before\" = \"$(state)\" ] &&",
+								    "       ! grep -q 'Rerun to get\\|Rerun LaTeX\\|Label(s) may have changed' main.log; then",
+								    "        break",
+								    "    fi",
+								    "done",
+								    //The missing files can't be saved, and TeX never reads the files it doesn't write
+								    "touch " + String.join(" ", AUX_FILES),
+								    "exit 0"
+								    );
+
+    /** The definition of a label or a citation in an {@code .aux} file. */
+    static private final Pattern AUX_KEY = Pattern.compile("^\\\\(?:newlabel|bibcite)\\{([^}]*)\\}");
+
+    /** The reference to labels or citations, like {@code \pageref} or {@code \citep}. */
+    static private final Pattern REFERENCE = Pattern.compile("\\\\[a-zA-Z]*(?:ref|cite)[a-zA-Z]*\\*?(?:\\[[^\\]]*\\])*\\{([^}]*)\\}");
+
+    /** The commands printing the table of contents and the lists of figures and tables. */
+    static private final Pattern LISTS = Pattern.compile("\\\\(tableofcontents|listoffigures|listoftables)\\b");
+
+    /** Commands whose presence means the document needs more than one pass. */
+    static private final Pattern MULTIPASS_COMMANDS = Pattern.compile("\\\\(ref|pageref|eqref|autoref|cite|label|tableofcontents|listoffigures|listoftables)\\b");
+
     private final Compiler compiler;
     private List<String> source;
     private Map<String, byte[]> images;
+    private Map<String, Path> imageFiles;
     private Map<String, List<String>> listings;
+    private Path outputDir = null;
+    private FormatCache formatCache = null;
+    private Path auxDir = null;
+    private List<String> chapters = null;
+    private boolean changedChaptersOnly = false;
+    private List<String> includedChapters;
     private byte[] output;
-    private List<String> log;
+    private Path outputPath;
+    private List<LatexError> errors;
     private List<List<String>> rawOutput, rawErrorOutput;
     private String stackTrace;
-    
+    private int maxPasses = DEFAULT_MAX_PASSES;
+    private int maxErrors = DEFAULT_MAX_ERRORS;
+
     /**
      * Constructs a new {@code PdfLatex} compilation facade.
      *
@@ -65,39 +198,492 @@ public final class PdfLatex
 	this.compiler = requireNonNull(compiler, "compiler can't be null");
 	this.source = requireNonNull(source, "source can't be null");
 	this.images = requireNonNull(images, "images can't be null");
+	this.imageFiles = Map.of();
 	this.listings = requireNonNull(listings, "listings can't be null");
     }
 
     /**
-     * Runs the three-pass {@code pdflatex} pipeline.
+     * Constructs a new {@code PdfLatex} compilation facade with the images
+     * stored in files.
      *
-     * @return {@code true} if all three passes completed successfully and
-     *         the PDF was produced; {@code false} otherwise
+     * @param compiler   the underlying {@link Compiler} to use; must not be
+     *                   {@code null}
+     * @param source     the LaTeX source as a list of lines; must not be
+     *                   {@code null}
+     * @param images     binary image files to include; keys are file names,
+     *                   values are raw bytes; must not be {@code null}
+     * @param imageFiles image files to stage into the working directory;
+     *                   keys are file names, values are paths of the
+     *                   existing files; must not be {@code null}
+     * @param listings   additional text files (e.g. code listings); keys
+     *                   are file names, values are lists of lines; must not
+     *                   be {@code null}
+     */
+    public PdfLatex(Compiler compiler, List<String> source,
+		    Map<String, byte[]> images, Map<String, Path> imageFiles, Map<String, List<String>> listings)
+    {
+	this.compiler = requireNonNull(compiler, "compiler can't be null");
+	this.source = requireNonNull(source, "source can't be null");
+	this.images = requireNonNull(images, "images can't be null");
+	this.imageFiles = requireNonNull(imageFiles, "imageFiles can't be null");
+	this.listings = requireNonNull(listings, "listings can't be null");
+    }
+
+    /**
+     * Runs the {@code pdflatex} passes until the document converges.
+     *
+     * @return {@code true} if all passes completed successfully and the
+     *         PDF was produced; {@code false} otherwise
      * @throws IllegalStateException if the compiler result is inconsistent
-     *         (e.g. zero exit code but no PDF, or non-zero exit code but
-     *         no log file)
+     *         (zero exit code but no PDF)
      */
     public boolean compile()
+    {
+	errors = null;
+	includedChapters = null;
+	final var aux = readAux();
+	final var digests = (auxDir != null && chapters != null)?digestSources():null;
+	includedChapters = aux.isEmpty()?null:getChangedChapters(aux, digests);
+	if (compile(aux, digests))
+	    return true;
+	if (aux.isEmpty() || errors == null)
+	    return false;
+	//The kept files may be unsuitable for the document, e.g. after removing a package
+	logger.debug("Compilation with the kept auxiliary files failed, trying without them");
+	deleteAux();
+	errors = null;
+	includedChapters = null;
+	return compile(Map.of(), digests);
+    }
+
+    private boolean compile(Map<String, List<String>> aux, Map<String, String> digests)
     {
 	//	logger.info("Compiling {}", source.stream().collect(joining("\n")));
+	var mainSource = source;
+	if (includedChapters != null)
+	{
+	    //Prepended to the line beginning the document to keep the line numbers
+	    final int begin = findBeginDocument();
+	    final var s = new ArrayList<String>(source);
+	    s.set(begin, "\\includeonly{" + String.join(",", includedChapters) + "}" + s.get(begin));
+	    mainSource = s;
+	    logger.debug("Compiling only the changed chapters: {}", String.join(", ", includedChapters));
+	}
+	final var task = newTask(mainSource, aux, maxPasses);
+	task.setOutputDir(outputDir);
+	task.setSaveTextFilesOnSuccess((auxDir != null)?getAuxFiles():Collections.emptyList());
+	final var res = compiler.compile(task);
+	if (res.getExitCode() == 0 && auxDir != null)
+	    writeAux(res.getTextOutputFiles(), digests);
+	return takeResult(res);
+    }
+
+    /**
+     * Compiles the document splitting it into shards typeset in parallel,
+     * one shard per chapter (see {@link #setChapters(List)}), and
+     * concatenates the shards into one PDF.
+     *
+     * <p>A shard is the whole document with {@code \includeonly} of one
+     * chapter, so it contains the chapter along with the text outside of
+     * the chapters, like the title and the table of contents. The labels,
+     * the page numbers and the other counters of the chapters not typeset
+     * by a shard are taken from their {@code .aux} files kept in the
+     * {@link #setAuxDir(Path) directory for the auxiliary files}. So the
+     * sharded build needs these files made by a previous build; without
+     * them, the document is compiled with {@link #compile()}, which makes
+     * them. Every shard runs one {@code pdflatex} pass. If the {@code .aux}
+     * files written by the shards differ from the ones they have read,
+     * e.g. a chapter has got longer and the page numbers of the following
+     * chapters have changed, the shards affected by the changes are
+     * typeset again with the new files, while the others are kept. A shard
+     * is affected by the changed labels and citations it references, by
+     * the changed counters of the chapters before its own one and by the
+     * changed table of contents or lists of figures and tables if its text
+     * outside of the chapters prints them; any other change affects all
+     * shards. If the files still differ after
+     * {@link #getMaxPasses() maxPasses} rounds, a warning is logged and
+     * the document is compiled with {@link #compile()}.</p>
+     *
+     * <p>The number of pages shipped out by the end of every chapter is
+     * written by each shard into a file with the help of
+     * {@code \ReadonlyShipoutCounter}, so LaTeX 2020-10 or newer is
+     * required. The pages of the chapters are picked from the shards and
+     * concatenated with one more {@code pdflatex} run using the
+     * {@code pdfpages} package, so the hyperlinks and the bookmarks of the
+     * shards don't get into the result: the sharded build suits the
+     * previews, while the final PDF with working links needs
+     * {@link #compile()}.</p>
+     *
+     * <p>If a shard fails, the kept auxiliary files are deleted and the
+     * document is compiled from scratch in one process, the same way as by
+     * {@link #compile()}.</p>
+     *
+     * <p>The method blocks the calling thread until the shards and the
+     * concatenation are done, so it must not be called by a task run by
+     * the given scheduler: with the workers of the scheduler waiting for
+     * the shards, the shards might never start.</p>
+     *
+     * @param scheduler the scheduler running the shards and the
+     *                  concatenation; must not be {@code null}
+     * @return {@code true} if the PDF was produced; {@code false}
+     *         otherwise
+     * @throws IllegalStateException if {@code main.tex} has no line with
+     *         {@code \include} of a chapter, includes the chapters in an
+     *         order other than the one given with
+     *         {@link #setChapters(List)} or the compiler result is
+     *         inconsistent
+     */
+    public boolean compileSharded(CompilationScheduler scheduler)
+    {
+	requireNonNull(scheduler, "scheduler can't be null");
+	final int begin = findBeginDocument();
+	if (auxDir == null || chapters == null || chapters.size() < 2 || begin < 0)
+	    return compile();
+	errors = null;
+	includedChapters = null;
+	var aux = readAux();
+	if (!aux.containsKey("main.aux") || chapters.stream().anyMatch(c -> !aux.containsKey(c + ".aux")))
+	{
+	    logger.debug("No kept auxiliary files of the chapters, compiling in one process");
+	    return compile();
+	}
+	final var digests = digestSources();
+	final var master = getShardSource(begin);
+	final var results = new ArrayList<CompilationResult>(Collections.nCopies(chapters.size(), null));
+	SortedSet<Integer> shards = new TreeSet<>();
+	for(int i = 0;i < chapters.size();i++)
+	    shards.add(Integer.valueOf(i));
+	for(int round = 1;;round++)
+	{
+	    final var futures = new TreeMap<Integer, CompletableFuture<CompilationResult>>();
+	    for(final var i: shards)
+	    {
+		final var s = new ArrayList<String>(master);
+		s.set(begin, "\\includeonly{" + chapters.get(i.intValue()) + "}" + s.get(begin));
+		final var task = newTask(s, aux, 1);
+		final var save = new ArrayList<String>(getAuxFiles());
+		save.add(SHARD_PAGES);
+		task.setSaveTextFilesOnSuccess(save);
+		futures.put(i, scheduler.submit(task));
+	    }
+	    for(final var e: futures.entrySet())
+		results.set(e.getKey().intValue(), e.getValue().join());
+	    final var failed = shards.stream().map(i -> results.get(i.intValue())).filter(r -> r.getExitCode() != 0).findFirst();
+	    if (failed.isPresent())
+	    {
+		takeResult(failed.get());
+		if (errors == null)
+		    return false;
+		logger.debug("A shard failed, compiling without the kept auxiliary files in one process");
+		deleteAux();
+		errors = null;
+		return compile(Map.of(), digests);
+	    }
+	    //The files outside of the chapters are the same in all shards typeset with the same files, the kept shards may have stale ones
+	    final var first = results.get(shards.first().intValue()).getTextOutputFiles();
+	    final var newAux = new HashMap<String, List<String>>();
+	    for(final var f: AUX_FILES)
+		if (first.get(f) != null)
+		    newAux.put(f, first.get(f));
+	    for(int i = 0;i < chapters.size();i++)
+		newAux.put(chapters.get(i) + ".aux", results.get(i).getTextOutputFiles().get(chapters.get(i) + ".aux"));
+	    shards = newAux.equals(aux)?new TreeSet<>():getAffectedShards(begin, aux, newAux);
+	    if (!shards.isEmpty() && round >= maxPasses)
+	    {
+		logger.warn("The auxiliary files of the shards haven't settled in {} rounds, compiling in one process", Integer.valueOf(maxPasses));
+		writeAux(newAux, digests);
+		return compile();
+	    }
+	    if (!shards.isEmpty())
+	    {
+		logger.debug("The auxiliary files have changed in the round {} of the shards, typesetting {} of them again", Integer.valueOf(round), Integer.valueOf(shards.size()));
+		aux.clear();
+		aux.putAll(newAux);
+		continue;
+	    }
+	    writeAux(newAux, digests);
+	    return takeResult(scheduler.submit(newMergeTask(results)).join());
+	}
+    }
+
+    /**
+     * Finds the shards to be typeset again after the changes of the
+     * auxiliary files. The unrecognized lines of {@code main.aux} affect
+     * all shards and the ones of the {@code .aux} file of a chapter, like
+     * the counters at its end, the shards of the following chapters. A
+     * shard is considered to reference everything in the {@code .tex}
+     * listings other than the chapters, and if the listing of its chapter
+     * is missing, the shard is always affected.
+     *
+     * @param begin  the line beginning the document
+     * @param oldAux the files the shards have read
+     * @param newAux the files the shards have written
+     * @return the indices of the affected shards
+     */
+    private SortedSet<Integer> getAffectedShards(int begin, Map<String, List<String>> oldAux, Map<String, List<String>> newAux)
+    {
+	boolean all = false, lists = false;
+	int counters = chapters.size();
+	final var keys = new HashSet<String>();
+	final var names = new HashSet<String>(oldAux.keySet());
+	names.addAll(newAux.keySet());
+	for(final var name: names)
+	{
+	    final var oldLines = oldAux.getOrDefault(name, List.of());
+	    final var newLines = newAux.getOrDefault(name, List.of());
+	    if (oldLines.equals(newLines))
+		continue;
+	    if (!name.endsWith(".aux"))
+	    {
+		lists = true;
+		continue;
+	    }
+	    final int chapter = chapters.indexOf(name.substring(0, name.length() - 4));
+	    final var changed = new HashSet<String>(oldLines);
+	    changed.addAll(newLines);
+	    final var common = new HashSet<String>(oldLines);
+	    common.retainAll(newLines);
+	    changed.removeAll(common);
+	    //Only the order has changed
+	    if (changed.isEmpty())
+		all = true;
+	    for(final var line: changed)
+	    {
+		final var m = AUX_KEY.matcher(line);
+		if (m.find())
+		{
+		    keys.add(m.group(1));
+		    continue;
+		}
+		if (line.startsWith("\\@writefile"))
+		{
+		    lists = true;
+		    continue;
+		}
+		//Read only by BibTeX
+		if (line.startsWith("\\citation"))
+		    continue;
+		if (chapter < 0)
+		    all = true; else
+		    counters = Math.min(counters, chapter);
+	    }
+	}
+	//The text outside of the chapters goes to the shard of the following chapter, the rest to the last one
+	final var text = new ArrayList<List<String>>();
+	int from = begin + 1;
+	for(int i = from;i < source.size();i++)
+	{
+	    final var m = INCLUDE.matcher(source.get(i));
+	    if (m.matches() && chapters.contains(m.group(1)))
+	    {
+		text.add(new ArrayList<String>(source.subList(from, i)));
+		from = i + 1;
+	    }
+	}
+	text.get(text.size() - 1).addAll(source.subList(from, source.size()));
+	final var shared = new ArrayList<String>();
+	for(final var e: listings.entrySet())
+	    if (e.getKey().endsWith(".tex") && !chapters.contains(e.getKey().substring(0, e.getKey().length() - 4)))
+		shared.addAll(e.getValue());
+	final var res = new TreeSet<Integer>();
+	for(int i = 0;i < chapters.size();i++)
+	{
+	    final var chapter = listings.get(chapters.get(i) + ".tex");
+	    final var lines = new ArrayList<String>(text.get(i));
+	    if (chapter != null)
+		lines.addAll(chapter);
+	    lines.addAll(shared);
+	    if (all || chapter == null || i > counters || (lists && printsLists(text.get(i))) || references(lines, keys))
+		res.add(Integer.valueOf(i));
+	}
+	return res;
+    }
+
+    /**
+     * Checks whether the lines print the table of contents or the lists of
+     * figures or tables.
+     */
+    static private boolean printsLists(List<String> lines)
+    {
+	for(final var line: lines)
+	    if (LISTS.matcher(stripComment(line)).find())
+		return true;
+	return false;
+    }
+
+    /**
+     * Checks whether the lines reference any of the labels or citations.
+     * The suffixes after {@code @}, like the ones added by
+     * {@code cleveref}, are ignored.
+     */
+    static private boolean references(List<String> lines, Set<String> keys)
+    {
+	if (keys.isEmpty())
+	    return false;
+	final var names = new HashSet<String>();
+	for(final var k: keys)
+	    names.add((k.indexOf('@') > 0)?k.substring(0, k.indexOf('@')):k);
+	for(final var line: lines)
+	{
+	    final var m = REFERENCE.matcher(stripComment(line));
+	    while (m.find())
+		for(final var k: m.group(1).split(",", -1))
+		    if (names.contains(k.trim()))
+			return true;
+	}
+	return false;
+    }
+
+    static private String stripComment(String line)
+    {
+	final int comment = line.indexOf('%');
+	return comment >= 0?line.substring(0, comment):line;
+    }
+
+    /**
+     * Prepares the task running the passes.
+     *
+     * @param mainSource the text of {@code main.tex}
+     * @param aux        the kept auxiliary files
+     * @param passes     the maximum number of passes
+     */
+    private CompilationTask newTask(List<String> mainSource, Map<String, List<String>> aux, int passes)
+    {
+	var files = imageFiles;
+	String fmt = null;
+	final int begin = (formatCache != null)?findBeginDocument():-1;
+	if (begin > 0)
+	{
+	    final var f = formatCache.getFormat(source.subList(0, begin));
+	    if (f != null)
+	    {
+		//The preamble is replaced with empty comments to keep the line numbers
+		final var s = new ArrayList<String>(source.size());
+		for(int i = 0;i < begin;i++)
+		    s.add("%");
+		s.addAll(mainSource.subList(begin, mainSource.size()));
+		mainSource = s;
+		files = new HashMap<>(imageFiles);
+		files.put(FORMAT + ".fmt", f);
+		fmt = FORMAT;
+	    }
+	}
 	final var task = new CompilationTask();
-	task.setCommands(List.of(
-				 "pdflatex --interaction=batchmode main.tex",
-				 				 "pdflatex --interaction=batchmode main.tex",
-				 				 "pdflatex --interaction=batchmode main.tex"
-				 ));
+	final var argv = new ArrayList<String>(List.of("bash", PASSES_SCRIPT, String.valueOf(passes), (aux.isEmpty() && needsMultiplePasses())?"1":"0"));
+	if (fmt != null)
+	    argv.add(fmt);
+	task.setCommands(Collections.emptyList());
+	//pdflatex writes everything to main.log in the batch mode
+	task.setSteps(List.of(new Command(argv, null, Command.Capture.TAIL, Command.DEFAULT_TAIL_LINES)));
 	task.setTextSources(new HashMap<>());
-	task.getTextSources().put("main.tex", source);
+	task.getTextSources().put("main.tex", mainSource);
 	task.getTextSources().putAll(listings);
+	task.getTextSources().put(PASSES_SCRIPT, PASSES_SCRIPT_SOURCE);
+	task.getTextSources().putAll(aux);
 	task.setBinarySources(images);
-	task.setSaveTextFilesOnFailure(List.of("main.log"));
+	task.setFileSources(files);
+	task.setSaveTextFilesOnFailure(Collections.emptyList());
+	task.setLatexLogWatch(new LatexLogWatch("main.log", maxErrors));
+	task.setSaveBinaryFilesOnSuccess(List.of("main.pdf"));
+	return task;
+    }
+
+    /**
+     * Makes the source of the shards, writing the number of the pages
+     * shipped out by the end of every chapter and of the whole document.
+     * The line numbers are kept.
+     */
+    private List<String> getShardSource(int begin)
+    {
+	final var res = new ArrayList<String>(source);
+	res.set(begin, "\\newwrite\\atesseraShardPages\\immediate\\openout\\atesseraShardPages=" + SHARD_PAGES + " " +
+		"\\AtEndDocument{\\clearpage\\immediate\\write\\atesseraShardPages{" + SHARD_TOTAL + " \\the\\ReadonlyShipoutCounter}}" +
+		res.get(begin));
+	final var found = new ArrayList<String>();
+	for(int i = begin + 1;i < res.size();i++)
+	{
+	    final var m = INCLUDE.matcher(res.get(i));
+	    if (!m.matches() || !chapters.contains(m.group(1)))
+		continue;
+	    res.set(i, res.get(i) + "\\immediate\\write\\atesseraShardPages{" + m.group(1) + " \\the\\ReadonlyShipoutCounter}");
+	    found.add(m.group(1));
+	}
+	for(final var c: chapters)
+	    if (!found.contains(c))
+		throw new IllegalStateException("No line with \\include{" + c + "} in main.tex");
+	//The shards and the pages of the chapters are indexed in the order of the chapters
+	if (!found.equals(chapters))
+	    throw new IllegalStateException("main.tex includes the chapters in the order " + String.join(", ", found) + " instead of " + String.join(", ", chapters));
+	return res;
+    }
+
+    /**
+     * Prepares the task picking the pages of the chapters from the shards
+     * and concatenating them. A shard contributes the pages after the end of
+     * the previous chapter up to the end of its chapter; the first shard
+     * contributes the pages before its chapter as well, and the last one
+     * the pages after its chapter.
+     */
+    private CompilationTask newMergeTask(List<CompilationResult> shards)
+    {
+	final var src = new ArrayList<String>(List.of("\\documentclass{article}", "\\usepackage{pdfpages}", "\\begin{document}"));
+	final var pdfs = new HashMap<String, byte[]>();
+	int from = 1;
+	for(int i = 0;i < shards.size();i++)
+	{
+	    final var pages = new HashMap<String, Integer>();
+	    final var lines = shards.get(i).getTextOutputFiles().get(SHARD_PAGES);
+	    if (lines == null)
+		throw new IllegalStateException("No " + SHARD_PAGES + " in the output of a shard with exit code equal to zero");
+	    for(final var line: lines)
+	    {
+		final var f = line.trim().split(" ", -1);
+		if (f.length == 2)
+		    pages.put(f[0], Integer.valueOf(f[1]));
+	    }
+	    final var to = pages.get((i + 1 < shards.size())?chapters.get(i):SHARD_TOTAL);
+	    if (to == null || (i > 0 && pages.get(chapters.get(i - 1)) == null))
+		throw new IllegalStateException("Incomplete " + SHARD_PAGES + " in the output of a shard with exit code equal to zero");
+	    if (i > 0)
+		from = pages.get(chapters.get(i - 1)) + 1;
+	    final var pdf = shards.get(i).getBinaryOutputFiles().get("main.pdf");
+	    if (pdf == null)
+		throw new IllegalStateException("No main.pdf in the output of a shard with exit code equal to zero");
+	    pdfs.put("shard-" + String.valueOf(i + 1) + ".pdf", pdf);
+	    if (from <= to)
+		src.add("\\includepdf[pages={" + String.valueOf(from) + "-" + String.valueOf(to) + "},fitpaper]{shard-" + String.valueOf(i + 1) + ".pdf}");
+	}
+	src.add("\\end{document}");
+	final var task = new CompilationTask();
+	task.setCommands(Collections.emptyList());
+	task.setSteps(List.of(new Command(List.of("pdflatex", "--interaction=batchmode", "-file-line-error", "main.tex"), null, Command.Capture.TAIL, Command.DEFAULT_TAIL_LINES)));
+	task.setTextSources(new HashMap<>(Map.of("main.tex", src)));
+	task.setBinarySources(pdfs);
+	task.setSaveTextFilesOnFailure(Collections.emptyList());
+	task.setLatexLogWatch(new LatexLogWatch("main.log", maxErrors));
 	task.setSaveBinaryFilesOnSuccess(List.of("main.pdf"));
 	task.setSaveTextFilesOnSuccess(Collections.emptyList());
-	final var res = compiler.compile(task);
+	task.setOutputDir(outputDir);
+	return task;
+    }
+
+    /**
+     * Takes the PDF, or the errors, from the result of the final command.
+     */
+    private boolean takeResult(CompilationResult res)
+    {
 	rawOutput = res.getOutput();
 	rawErrorOutput = res.getErrorOutput();
 	if (res.getExitCode() == 0)
 	{
+	    if (outputDir != null)
+	    {
+		final var p = res.getBinaryOutputPaths().get("main.pdf");
+		if (p == null)
+		    throw new IllegalStateException("No main.pdf in pdflatex output with exit code equal to zero");
+		outputPath = p;
+		return true;
+	    }
 	    final var b = res.getBinaryOutputFiles().get("main.pdf");
 	    if (b == null)
 		throw new IllegalStateException("No main.pdf in pdflatex output with exit code equal to zero");
@@ -106,21 +692,394 @@ public final class PdfLatex
 	}
 	if (res.getExitCode() > 0)
 	{
-	    final var l = res.getTextOutputFiles().get("main.log");
-	    if (l == null)
-		throw new IllegalStateException("No main.log in pdflatex with exit code equal to " + res.getExitCode());
-	    log = l;
+	    errors = (res.getLatexErrors() != null)?res.getLatexErrors():new ArrayList<>();
 	    return false;
 	}
 	stackTrace = res.getStackTrace();
 	return false;
     }
 
+    /**
+     * Returns the maximum number of {@code pdflatex} passes.
+     *
+     * @return the maximum number of passes
+     */
+    public int getMaxPasses()
+    {
+	return maxPasses;
+    }
+
+    /**
+     * Sets the maximum number of {@code pdflatex} passes. If the document
+     * doesn't converge within this number of passes, the PDF produced by
+     * the last pass is returned.
+     *
+     * @param maxPasses the maximum number of passes; must be at least two
+     */
+    public void setMaxPasses(int maxPasses)
+    {
+	if (maxPasses < 2)
+	    throw new IllegalArgumentException("maxPasses must be at least two");
+	this.maxPasses = maxPasses;
+    }
+
+    /**
+     * Returns the directory the resulting PDF is moved to.
+     *
+     * @return the output directory, or {@code null} if the PDF is returned
+     *         in memory
+     */
+    public Path getOutputDir()
+    {
+	return outputDir;
+    }
+
+    /**
+     * Sets the directory to move the resulting PDF to instead of loading it
+     * into memory. The PDF is placed there as {@code main.pdf}, and its path
+     * is available via {@link #getOutputPath()} after a successful
+     * compilation, while {@link #getOutput()} returns {@code null}.
+     *
+     * @param outputDir the output directory, or {@code null} to return the
+     *                  PDF in memory
+     */
+    public void setOutputDir(Path outputDir)
+    {
+	this.outputDir = outputDir;
+    }
+
+    /**
+     * Returns the number of errors making a pass to be killed.
+     *
+     * @return the number of errors, or zero if a pass is killed on fatal
+     *         errors only
+     */
+    public int getMaxErrors()
+    {
+	return maxErrors;
+    }
+
+    /**
+     * Sets the number of errors making a pass to be killed. In the batch
+     * mode TeX goes on after errors, so e.g. a missing package may produce
+     * a storm of {@code Undefined control sequence} errors taking as long
+     * as a proper pass. Fatal errors kill the pass in any case.
+     *
+     * @param maxErrors the number of errors, or zero to kill a pass on
+     *                  fatal errors only
+     */
+    public void setMaxErrors(int maxErrors)
+    {
+	this.maxErrors = Math.max(0, maxErrors);
+    }
+
+    /**
+     * Returns the directory keeping the auxiliary files between the builds.
+     *
+     * @return the directory, or {@code null} if every build starts from
+     *         scratch
+     */
+    public Path getAuxDir()
+    {
+	return auxDir;
+    }
+
+    /**
+     * Sets the directory keeping the auxiliary files between the builds of
+     * the document. After a successful build {@code main.aux},
+     * {@code main.toc}, {@code main.lof}, {@code main.lot},
+     * {@code main.out}, {@code main.nav} and {@code main.snm} are saved
+     * there, and the next build starts with them, running no draft pass.
+     * If a build starting with the kept files fails, they are deleted, and
+     * the document is compiled once again from scratch.
+     *
+     * <p>The directory must be dedicated to one document, e.g. named by
+     * the identifier of the publication, and must not be used by two
+     * builds at once. It is created if it doesn't exist.</p>
+     *
+     * @param auxDir the directory, or {@code null} to start every build
+     *               from scratch
+     */
+    public void setAuxDir(Path auxDir)
+    {
+	this.auxDir = auxDir;
+    }
+
+    /**
+     * Returns the chapters of the document.
+     *
+     * @return the names of the chapters, or {@code null} if the document
+     *         isn't split into chapters
+     */
+    public List<String> getChapters()
+    {
+	return chapters;
+    }
+
+    /**
+     * Sets the chapters of the document, i.e. the files included with
+     * {@code \include} by {@code main.tex}. The chapters must be among the
+     * listings given to the constructor, as {@code <name>.tex}. The
+     * chapters take effect only with the directory for the auxiliary
+     * files (see {@link #setAuxDir(Path)}): their {@code .aux} files are
+     * kept there as well, and, if
+     * {@link #setChangedChaptersOnly(boolean) enabled}, a build after
+     * editing only some chapters typesets only them (see
+     * {@link #getIncludedChapters()}).
+     *
+     * <p>The chapters must be given in the order of their {@code \include}
+     * lines in {@code main.tex}, since the
+     * {@link #compileSharded(CompilationScheduler) sharded build}
+     * concatenates the pages of the shards in this order. Note that the
+     * sharded build blocks the calling thread until its shards are done
+     * and doesn't keep the hyperlinks and the bookmarks (see
+     * {@link #compileSharded(CompilationScheduler)}).</p>
+     *
+     * @param chapters the names of the chapters as used with
+     *                 {@code \include}, e.g. {@code chapter-1}, in the
+     *                 order of their inclusion, or
+     *                 {@code null} if the document isn't split into
+     *                 chapters
+     */
+    public void setChapters(List<String> chapters)
+    {
+	this.chapters = (chapters != null)?List.copyOf(chapters):null;
+    }
+
+    /**
+     * Checks whether only the changed chapters are typeset.
+     *
+     * @return {@code true} if the builds after editing only some chapters
+     *         typeset only these chapters
+     */
+    public boolean isChangedChaptersOnly()
+    {
+	return changedChaptersOnly;
+    }
+
+    /**
+     * Sets whether only the changed chapters are typeset. A chapter is
+     * changed if its source differs from the one of the last successful
+     * build. If nothing but some chapters has changed since the last
+     * successful build, {@code \includeonly} with these chapters is
+     * inserted before {@code \begin{document}}, and the resulting PDF
+     * contains only them, numbered as in the whole document. The labels
+     * and the page numbers of the other chapters are taken from their
+     * kept {@code .aux} files, so the chapters following a chapter which
+     * has changed its length keep their old page numbers until the next
+     * full build. Any other change, as well as the chapters changed all
+     * at once, means a full build. The default is {@code false}, so
+     * {@link #compile()} always produces the whole document unless
+     * partial builds are requested explicitly, e.g. for previews.
+     *
+     * @param changedChaptersOnly {@code true} to typeset only the changed
+     *                            chapters, {@code false} to build the whole
+     *                            document every time
+     */
+    public void setChangedChaptersOnly(boolean changedChaptersOnly)
+    {
+	this.changedChaptersOnly = changedChaptersOnly;
+    }
+
+    /**
+     * Returns the chapters typeset by the last compilation.
+     *
+     * @return the names of the typeset chapters, or {@code null} if the
+     *         whole document has been typeset
+     */
+    public List<String> getIncludedChapters()
+    {
+	return includedChapters;
+    }
+
+    private List<String> getAuxFiles()
+    {
+	if (chapters == null)
+	    return AUX_FILES;
+	final var res = new ArrayList<String>(AUX_FILES);
+	for(final var c: chapters)
+	    res.add(c + ".aux");
+	return res;
+    }
+
+    /**
+     * Computes the digests of the sources: one for every chapter and one
+     * for everything else.
+     */
+    private Map<String, String> digestSources()
+    {
+	final var rest = new HashMap<String, List<String>>(listings);
+	final var res = new TreeMap<String, String>();
+	for(final var c: chapters)
+	{
+	    final var lines = rest.remove(c + ".tex");
+	    if (lines != null)
+		res.put(c, Fingerprint.ofSources(Map.of(c + ".tex", lines), null, null));
+	}
+	rest.put("main.tex", source);
+	res.put(REST_DIGEST, Fingerprint.ofSources(rest, images, imageFiles));
+	return res;
+    }
+
+    /**
+     * Finds the chapters changed since the last successful build.
+     *
+     * @return the changed chapters, or {@code null} if the whole document
+     *         must be typeset
+     */
+    private List<String> getChangedChapters(Map<String, List<String>> aux, Map<String, String> digests)
+    {
+	if (digests == null || !changedChaptersOnly || !aux.containsKey("main.aux") || findBeginDocument() < 0)
+	    return null;
+	final var p = auxDir.resolve(SOURCES_DIGESTS);
+	if (!Files.isRegularFile(p))
+	    return null;
+	final var kept = new HashMap<String, String>();
+	for(final var line: readTextFile(p))
+	{
+	    final int space = line.indexOf(' ');
+	    if (space > 0)
+		kept.put(line.substring(0, space), line.substring(space + 1));
+	}
+	if (!kept.keySet().equals(digests.keySet()) || !digests.get(REST_DIGEST).equals(kept.get(REST_DIGEST)))
+	    return null;
+	final var res = new ArrayList<String>();
+	for(final var c: chapters)
+	{
+	    if (!aux.containsKey(c + ".aux"))
+		return null;
+	    if (!digests.get(c).equals(kept.get(c)))
+		res.add(c);
+	}
+	if (res.isEmpty() || res.size() == chapters.size())
+	    return null;
+	return res;
+    }
+
+    private Map<String, List<String>> readAux()
+    {
+	final var res = new HashMap<String, List<String>>();
+	if (auxDir == null)
+	    return res;
+	for(final var f: getAuxFiles())
+	{
+	    final var p = auxDir.resolve(f);
+	    if (Files.isRegularFile(p))
+		res.put(f, readTextFile(p));
+	}
+	return res;
+    }
+
+    private void writeAux(Map<String, List<String>> files, Map<String, String> digests)
+    {
+	try {
+	    Files.createDirectories(auxDir);
+	    for(final var f: getAuxFiles())
+		writeAuxFile(f, files.get(f));
+	    //The chapters not typeset this time keep their digests, since they haven't changed
+	    writeAuxFile(SOURCES_DIGESTS, (digests != null)?digests.entrySet().stream().map(e -> e.getKey() + " " + e.getValue()).toList():null);
+	}
+	catch(IOException | RuntimeException ex)
+	{
+	    //Only the next build gets slower
+	    logger.warn("Unable to keep the auxiliary files in " + auxDir.toString(), ex);
+	    deleteAux();
+	}
+    }
+
+    private void writeAuxFile(String name, List<String> lines) throws IOException
+    {
+	if (lines == null)
+	{
+	    Files.deleteIfExists(auxDir.resolve(name));
+	    return;
+	}
+	final var temp = Files.createTempFile(auxDir, ".tmp-", "");
+	writeTextFile(temp, lines);
+	Files.move(temp, auxDir.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void deleteAux()
+    {
+	try {
+	    //The digests first, so the files deleted partially are never trusted
+	    Files.deleteIfExists(auxDir.resolve(SOURCES_DIGESTS));
+	    for(final var f: getAuxFiles())
+		Files.deleteIfExists(auxDir.resolve(f));
+	}
+	catch(IOException ex)
+	{
+	    logger.warn("Unable to delete the auxiliary files in " + auxDir.toString(), ex);
+	}
+    }
+
+    /**
+     * Returns the cache of the formats with precompiled preambles.
+     *
+     * @return the format cache, or {@code null} if the preamble is loaded
+     *         on every pass
+     */
+    public FormatCache getFormatCache()
+    {
+	return formatCache;
+    }
+
+    /**
+     * Sets the cache of the formats with precompiled preambles. If set, the
+     * preamble of the source, i.e. all lines before the line starting with
+     * {@code \begin{document}}, is dumped into a format once, and the
+     * passes load the format instead of processing the preamble. If the
+     * preamble can't be dumped, the document is compiled as usual.
+     *
+     * @param formatCache the format cache, or {@code null} to load the
+     *                    preamble on every pass
+     */
+    public void setFormatCache(FormatCache formatCache)
+    {
+	this.formatCache = formatCache;
+    }
+
+    /**
+     * Finds the line beginning the document body.
+     *
+     * @return the index of the line, or {@code -1} if there is no such line
+     */
+    private int findBeginDocument()
+    {
+	for(int i = 0;i < source.size();i++)
+	    if (source.get(i).trim().startsWith("\\begin{document}"))
+		return i;
+	return -1;
+    }
+
+    /**
+     * Checks whether the source, including the {@code .tex} listings, uses
+     * anything requiring more than one pass.
+     */
+    private boolean needsMultiplePasses()
+    {
+	if (needsMultiplePasses(source))
+	    return true;
+	for(final var e: listings.entrySet())
+	    if (e.getKey().endsWith(".tex") && needsMultiplePasses(e.getValue()))
+		return true;
+	return false;
+    }
+
+    static private boolean needsMultiplePasses(List<String> lines)
+    {
+	for(final var line: lines)
+	    if (MULTIPASS_COMMANDS.matcher(stripComment(line)).find())
+		return true;
+	return false;
+    }
+
     /**
      * Returns the compiled PDF document.
      *
      * @return the PDF as a byte array, or {@code null} if compilation has
-     *         not been run or was unsuccessful
+     *         not been run or was unsuccessful or the PDF was moved to the
+     *         output directory
      */
     public byte[] getOutput()
     {
@@ -128,15 +1087,28 @@ public final class PdfLatex
     }
 
     /**
-     * Returns the contents of {@code main.log} after a failed compilation.
+     * Returns the path of the compiled PDF document in the output
+     * directory.
+     *
+     * @return the path of the PDF, or {@code null} if no output directory
+     *         was set or compilation has not been run or was unsuccessful
+     */
+    public Path getOutputPath()
+    {
+	return outputPath;
+    }
+
+    /**
+     * Returns the errors reported by TeX after a failed compilation. If the
+     * pass was killed on a fatal error or on too many errors, these are
+     * the errors found up to that moment.
      *
-     * @return the log file as a list of lines, or {@code null} if the log
-     *         was not captured (e.g. because compilation succeeded or has
-     *         not been run)
+     * @return the errors in the order of their appearance in the log, or
+     *         {@code null} if compilation succeeded or has not been run
      */
-    public List<String> getLog()
+    public List<LatexError> getErrors()
     {
-	return log;
+	return errors;
     }
 
     /**
@@ -0,0 +1,231 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+
+import static java.util.Objects.*;
+
+/**
+ * Facade for compiling many PlantUML diagrams to PDF or SVG at once.
+ *
+ * <p>PlantUML is a Java program, and starting it costs a JVM start, which
+ * takes longer than rendering a usual diagram. So all diagrams given to
+ * the facade are rendered by one run of {@code plantuml}: every diagram
+ * is written to its own file ({@code diagram1.puml}, {@code diagram2.puml}
+ * and so on), and {@code plantuml} is started once with all of them,
+ * producing {@code diagram1.svg}, {@code diagram2.svg} and so on.</p>
+ *
+ * <p>The PDF output of PlantUML needs the Batik and FOP libraries, which
+ * the usual distributions of PlantUML don't include, so the PDFs are
+ * produced from EPS: {@code plantuml} writes {@code diagram1.eps} and so
+ * on, and {@code epstopdf} from TeX Live converts every diagram, started
+ * directly without the shell.</p>
+ *
+ * <p>The diagrams are given by their identifiers (e.g. the ids of the
+ * sections or the frames they come from), and the results are returned by
+ * the same identifiers. A diagram may be given with or without the
+ * enclosing {@code @startuml} and {@code @enduml} lines; the lines are
+ * added if the first non-empty line doesn't begin with {@code @start}.
+ * The name after {@code @startuml}, which would give the output file
+ * another name, is dropped, and only the first diagram of a source gets
+ * into the output.</p>
+ *
+ * <p>PlantUML reports the errors to stderr, naming the file and the line;
+ * an error in any diagram fails the whole batch, and the messages are then
+ * available via {@link #getLog()}.</p>
+ *
+ * @see Graphviz
+ * @see Compiler
+ */
+public final class PlantUml
+{
+    /** The formats of the output. */
+    public enum Format
+    {
+	/** PDF, to be included into LaTeX documents. */
+	PDF,
+	/** SVG, to be included into HTML pages. */
+	SVG
+    };
+
+    private final Compiler compiler;
+    private final Format format;
+    private final Map<String, List<String>> diagrams;
+    private Map<String, byte[]> outputs;
+    private List<String> log;
+    private List<List<String>> rawOutput, rawErrorOutput;
+    private String stackTrace;
+
+    /**
+     * Constructs a new {@code PlantUml} compilation facade.
+     *
+     * @param compiler the underlying {@link Compiler} to use; must not be
+     *                 {@code null}
+     * @param format   the format of the output; must not be {@code null}
+     * @param diagrams the sources of the diagrams by their identifiers;
+     *                 must not be {@code null}
+     */
+    public PlantUml(Compiler compiler, Format format, Map<String, List<String>> diagrams)
+    {
+	this.compiler = requireNonNull(compiler, "compiler can't be null");
+	this.format = requireNonNull(format, "format can't be null");
+	this.diagrams = new LinkedHashMap<>(requireNonNull(diagrams, "diagrams can't be null"));
+    }
+
+    /**
+     * Renders all diagrams in one run of {@code plantuml}.
+     *
+     * @return {@code true} if all steps completed successfully and the
+     *         files of all diagrams were produced; {@code false} otherwise
+     * @throws IllegalStateException if the compiler result is inconsistent
+     *         (zero exit code but a missing output file)
+     */
+    public boolean compile()
+    {
+	final var ids = new ArrayList<String>(diagrams.keySet());
+	if (ids.isEmpty())
+	{
+	    outputs = new LinkedHashMap<>();
+	    return true;
+	}
+	final var argv = new ArrayList<String>(List.of("plantuml", (format == Format.SVG)?"-tsvg":"-teps", "-charset", "UTF-8", "-nometadata"));
+	final var task = new CompilationTask();
+	task.setTextSources(new HashMap<>());
+	final var saved = new ArrayList<String>();
+	for(int i = 0;i < ids.size();i++)
+	{
+	    task.getTextSources().put(sourceFile(i), prepare(diagrams.get(ids.get(i))));
+	    argv.add(sourceFile(i));
+	    saved.add(outputFile(i));
+	}
+	final var steps = new ArrayList<Command>();
+	//The errors go to stderr only, so the whole output is kept
+	steps.add(new Command(argv, null, Command.Capture.FULL, 0));
+	if (format == Format.PDF)
+	    for(int i = 0;i < ids.size();i++)
+		steps.add(Command.of("epstopdf", "diagram" + String.valueOf(i + 1) + ".eps").withCapture(Command.Capture.TAIL, Command.DEFAULT_TAIL_LINES));
+	task.setCommands(Collections.emptyList());
+	task.setSteps(steps);
+	task.setBinarySources(new HashMap<>());
+	task.setSaveTextFilesOnFailure(Collections.emptyList());
+	task.setSaveBinaryFilesOnSuccess(saved);
+	task.setSaveTextFilesOnSuccess(Collections.emptyList());
+	final var res = compiler.compile(task);
+	rawOutput = res.getOutput();
+	rawErrorOutput = res.getErrorOutput();
+	if (res.getExitCode() == 0)
+	{
+	    final var o = new LinkedHashMap<String, byte[]>();
+	    for(int i = 0;i < ids.size();i++)
+	    {
+		final var b = res.getBinaryOutputFiles().get(outputFile(i));
+		if (b == null)
+		    throw new IllegalStateException("No " + outputFile(i) + " in plantuml output with exit code equal to zero");
+		o.put(ids.get(i), b);
+	    }
+	    outputs = o;
+	    return true;
+	}
+	if (res.getExitCode() > 0)
+	{
+	    log = new ArrayList<>();
+	    if (rawErrorOutput != null)
+		for(final var l: rawErrorOutput)
+		    log.addAll(l);
+	    return false;
+	}
+	stackTrace = res.getStackTrace();
+	return false;
+    }
+
+    /**
+     * Returns the rendered diagrams.
+     *
+     * @return the PDF or SVG files by the identifiers of the diagrams, or
+     *         {@code null} if compilation has not been run or was
+     *         unsuccessful
+     */
+    public Map<String, byte[]> getOutputs()
+    {
+	return outputs;
+    }
+
+    /**
+     * Returns the messages of the tools after a failed compilation.
+     *
+     * @return the stderr of the commands as a list of lines, or
+     *         {@code null} if compilation succeeded or has not been run
+     */
+    public List<String> getLog()
+    {
+	return log;
+    }
+
+    /**
+     * Returns the raw stdout captured from each command in the pipeline.
+     *
+     * @return an unmodifiable view of the captured stdout, or {@code null}
+     *         before compilation
+     */
+    public List<List<String>> getRawOutput()
+    {
+	return rawOutput;
+    }
+
+    /**
+     * Returns the raw stderr captured from each command in the pipeline.
+     *
+     * @return an unmodifiable view of the captured stderr, or {@code null}
+     *         before compilation
+     */
+    public List<List<String>> getRawErrorOutput()
+    {
+	return rawErrorOutput;
+    }
+
+    /**
+     * Returns the stack trace if an internal exception occurred during
+     * compilation.
+     *
+     * @return the stack trace as a string, or {@code null} if no exception
+     *         was thrown
+     */
+    public String getStackTrace()
+    {
+	return stackTrace;
+    }
+
+    /**
+     * Encloses the diagram with {@code @startuml} and {@code @enduml} if
+     * needed and drops the name of the diagram.
+     */
+    static private List<String> prepare(List<String> source)
+    {
+	int first = 0;
+	while (first < source.size() && source.get(first).trim().isEmpty())
+	    first++;
+	if (first == source.size() || !source.get(first).trim().startsWith("@start"))
+	{
+	    final var res = new ArrayList<String>(source.size() + 2);
+	    res.add("@startuml");
+	    res.addAll(source);
+	    res.add("@enduml");
+	    return res;
+	}
+	final var res = new ArrayList<String>(source);
+	res.set(first, source.get(first).trim().split("[\\s(]", 2)[0]);
+	return res;
+    }
+
+    static private String sourceFile(int index)
+    {
+	return "diagram" + String.valueOf(index + 1) + ".puml";
+    }
+
+    private String outputFile(int index)
+    {
+	return "diagram" + String.valueOf(index + 1) + ((format == Format.SVG)?".svg":".pdf");
+    }
+}
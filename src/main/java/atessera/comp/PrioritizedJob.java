@@ -0,0 +1,69 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A job for an executor with a {@link PriorityBlockingQueue}, ordered by
+ * the priority class, then by the order key given by the scheduling
+ * policy and then by the order of creation.
+ */
+final class PrioritizedJob implements Runnable, Comparable<PrioritizedJob>
+{
+    static private final AtomicLong counter = new AtomicLong(0);
+
+    private final CompilationPriority priority;
+    private final long key;
+    private final long seq = counter.incrementAndGet();
+    private final Runnable job;
+
+    /**
+     * Wraps a job.
+     *
+     * @param priority the priority class, or {@code null} for
+     *                 {@link CompilationPriority#BATCH}
+     * @param job      the job to run
+     */
+    PrioritizedJob(CompilationPriority priority, Runnable job)
+    {
+	this(priority, 0, job);
+    }
+
+    /**
+     * Wraps a job with an order key.
+     *
+     * @param priority the priority class, or {@code null} for
+     *                 {@link CompilationPriority#BATCH}
+     * @param key      the order key within the priority class, the
+     *                 smaller the earlier
+     * @param job      the job to run
+     */
+    PrioritizedJob(CompilationPriority priority, long key, Runnable job)
+    {
+	this.priority = (priority != null)?priority:CompilationPriority.BATCH;
+	this.key = key;
+	this.job = job;
+    }
+
+    CompilationPriority getPriority()
+    {
+	return priority;
+    }
+
+    @Override public void run()
+    {
+	job.run();
+    }
+
+    @Override public int compareTo(PrioritizedJob j)
+    {
+	final int res = priority.compareTo(j.priority);
+	if (res != 0)
+	    return res;
+	final int k = Long.compare(key, j.key);
+	return (k != 0)?k:Long.compare(seq, j.seq);
+    }
+}
@@ -0,0 +1,698 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import org.apache.logging.log4j.*;
+
+import static java.util.Objects.*;
+import static java.nio.file.Files.*;
+
+/**
+ * {@link Compiler} sending tasks to {@link CompilationWorker} daemons over
+ * TCP.
+ *
+ * <p>The compiler keeps one connection to every worker and sends every
+ * task to the worker with the fewest outstanding tasks. The connections
+ * are established when they are needed; a worker that can't be reached is
+ * not tried again for a while. The following situations are handled:</p>
+ *
+ * <ul>
+ *   <li><strong>Worker loss</strong> &mdash; if the connection to a worker
+ *       is lost while it executes a task, the task is sent to another
+ *       worker, up to {@link #setMaxRetries(int) maxRetries} times.</li>
+ *   <li><strong>Stragglers</strong> &mdash; if the result doesn't arrive
+ *       within the {@link #setHedgeDelayMillis(long) hedge delay}, the
+ *       task is sent to one more worker as well; the first result is
+ *       taken, and the other copy is cancelled.</li>
+ * </ul>
+ *
+ * <p>The tasks are sent in full, so the workers don't need access to the
+ * file system of the client: the file sources are read and sent as
+ * binary sources, and the binary output files are written to the
+ * output directory of the task on the client side. The listener of the
+ * task receives the output when the result arrives, not while the
+ * commands run. Cancelling a task cancels it on the workers.</p>
+ *
+ * <p>If no worker can execute the task, the result has the exit code
+ * {@code -1} and the description of the problem as the stack trace. This
+ * class is thread-safe.</p>
+ *
+ * @see CompilationWorker
+ */
+public final class RemoteCompiler implements Compiler, AutoCloseable
+{
+    static private final Logger log = LogManager.getLogger();
+
+    /** The time a worker which can't be reached isn't tried again. */
+    static private final long RECONNECT_DELAY_MILLIS = 5000;
+
+    /** The time limit of establishing a connection. */
+    static private final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    /** The default number of resending a task after losing a worker. */
+    static public final int DEFAULT_MAX_RETRIES = 2;
+
+    /** Starts the hedging of the tasks without results. */
+    static private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+	    final var t = new Thread(r, "atessera-remote-timer");
+	    t.setDaemon(true);
+	    return t;
+	});
+    static {
+	timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /** Resends and hedges the tasks, which includes connecting to the workers. */
+    static private final ExecutorService dispatcher = Executors.newCachedThreadPool(r -> {
+	    final var t = new Thread(r, "atessera-remote-dispatcher");
+	    t.setDaemon(true);
+	    return t;
+	});
+
+    private final List<Worker> workers;
+    private final AtomicLong nextId = new AtomicLong(1);
+    private volatile String token = null;
+    private volatile long hedgeDelayMillis = 0;
+    private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+
+    /**
+     * Constructs a compiler using the given workers.
+     *
+     * @param workers the addresses of the workers; must not be {@code null}
+     *                or empty
+     */
+    public RemoteCompiler(List<InetSocketAddress> workers)
+    {
+	requireNonNull(workers, "workers can't be null");
+	if (workers.isEmpty())
+	    throw new IllegalArgumentException("workers can't be empty");
+	final var w = new ArrayList<Worker>();
+	for(final var a: workers)
+	    w.add(new Worker(requireNonNull(a, "workers can't contain null")));
+	this.workers = Collections.unmodifiableList(w);
+    }
+
+    /**
+     * Sends the task to a worker and waits for its result.
+     *
+     * @param task the compilation task to execute; must not be {@code null}
+     * @return the compilation result
+     */
+    @Override public CompilationResult compile(CompilationTask task)
+    {
+	requireNonNull(task, "task can't be null");
+	final var e = start(task);
+	try {
+	    return e.result.get();
+	}
+	catch(InterruptedException ex)
+	{
+	    Thread.currentThread().interrupt();
+	    e.cancel();
+	    final var res = failure(ex);
+	    res.setCancelled(true);
+	    return res;
+	}
+	catch(ExecutionException ex)
+	{
+	    return failure(ex.getCause());
+	}
+    }
+
+    /**
+     * Sends the task to a worker without waiting for its result. The
+     * results arrive on the threads reading the connections, and the
+     * resending and hedging are done on a thread of a shared pool, so no
+     * thread is blocked on the task.
+     *
+     * @param task the compilation task to execute; must not be {@code null}
+     * @return the future completed with the compilation result; never
+     *         completed exceptionally
+     */
+    @Override public CompletableFuture<CompilationResult> compileAsync(CompilationTask task)
+    {
+	requireNonNull(task, "task can't be null");
+	return start(task).result;
+    }
+
+    private Execution start(CompilationTask task)
+    {
+	final CompilationTask wire;
+	try {
+	    wire = toWire(task);
+	}
+	catch(IOException ex)
+	{
+	    final var e = new Execution(task, null);
+	    e.result.complete(failure(ex));
+	    return e;
+	}
+	final var e = new Execution(task, wire);
+	final var cancellation = task.getCancellation();
+	if (cancellation != null)
+	{
+	    if (!cancellation.register(e.cancel))
+	    {
+		final var res = CompilationResult.empty();
+		res.setExitCode(-1);
+		res.setCancelled(true);
+		e.result.complete(res);
+		return e;
+	    }
+	    e.result.whenComplete((r, ex) -> cancellation.unregister(e.cancel));
+	}
+	e.send(Set.of(), false);
+	return e;
+    }
+
+    /**
+     * Returns the delay after which a task without a result is sent to one
+     * more worker.
+     *
+     * @return the delay in milliseconds; zero means no hedging
+     */
+    public long getHedgeDelayMillis()
+    {
+	return hedgeDelayMillis;
+    }
+
+    /**
+     * Sets the delay after which a task without a result is sent to one
+     * more worker. The delay should be well above the usual compilation
+     * time, so only the stragglers are duplicated.
+     *
+     * @param hedgeDelayMillis the delay in milliseconds; zero disables
+     *                         hedging
+     */
+    public void setHedgeDelayMillis(long hedgeDelayMillis)
+    {
+	if (hedgeDelayMillis < 0)
+	    throw new IllegalArgumentException("hedgeDelayMillis can't be negative");
+	this.hedgeDelayMillis = hedgeDelayMillis;
+    }
+
+    /**
+     * Returns the maximum number of resending a task after losing the
+     * worker executing it.
+     *
+     * @return the maximum number of retries
+     */
+    public int getMaxRetries()
+    {
+	return maxRetries;
+    }
+
+    /**
+     * Sets the maximum number of resending a task after losing the worker
+     * executing it.
+     *
+     * @param maxRetries the maximum number of retries
+     */
+    public void setMaxRetries(int maxRetries)
+    {
+	if (maxRetries < 0)
+	    throw new IllegalArgumentException("maxRetries can't be negative");
+	this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Sets the access token presented to the workers. It takes effect for
+     * new connections only.
+     *
+     * @param token the token, or {@code null} if the workers don't require
+     *              it
+     */
+    public void setToken(String token)
+    {
+	this.token = token;
+    }
+
+    /**
+     * Closes the connections to all workers. The tasks being executed fail.
+     */
+    @Override public void close()
+    {
+	for(final var w: workers)
+	    w.disconnect(new IOException("The compiler is closed"));
+    }
+
+    /**
+     * Sends the task to the least loaded worker, preferring the ones not in
+     * the given set or using only them if {@code strict} is set. The call
+     * is added to the running ones of the execution before sending, so its
+     * result can't arrive earlier.
+     *
+     * @return the call, or {@code null} if no worker is available
+     */
+    private Call dispatch(Execution e, Set<Worker> avoid, boolean strict)
+    {
+	final var candidates = new ArrayList<Worker>(workers);
+	if (strict)
+	    candidates.removeAll(avoid);
+	Collections.shuffle(candidates);
+	candidates.sort((w1, w2) -> {
+		final int a1 = avoid.contains(w1)?1:0, a2 = avoid.contains(w2)?1:0;
+		if (a1 != a2)
+		    return Integer.compare(a1, a2);
+		return Integer.compare(w1.pending.size(), w2.pending.size());
+	    });
+	for(final var w: candidates)
+	{
+	    if (!w.connect(token))
+		continue;
+	    final var call = new Call(w, nextId.getAndIncrement(), e);
+	    if (!e.add(call))
+		return null;
+	    if (w.send(call, e.wire))
+		return call;
+	    e.remove(call);
+	}
+	return null;
+    }
+
+    /**
+     * Makes a copy of the task to be sent, with the file sources read into
+     * memory.
+     */
+    static private CompilationTask toWire(CompilationTask task) throws IOException
+    {
+	final var w = new CompilationTask();
+	w.setTextSources(task.getTextSources());
+	w.setBinarySources(task.getBinarySources());
+	if (task.getFileSources() != null && !task.getFileSources().isEmpty())
+	{
+	    final var b = new HashMap<String, byte[]>(task.getBinarySources());
+	    for(final var e: task.getFileSources().entrySet())
+		b.put(e.getKey(), readAllBytes(e.getValue()));
+	    w.setBinarySources(b);
+	}
+	w.setCommands(task.getCommands());
+	w.setSteps(task.getSteps());
+	w.setLatexLogWatch(task.getLatexLogWatch());
+	w.setSaveTextFilesOnSuccess(task.getSaveTextFilesOnSuccess());
+	w.setSaveBinaryFilesOnSuccess(task.getSaveBinaryFilesOnSuccess());
+	w.setSaveTextFilesOnFailure(task.getSaveTextFilesOnFailure());
+	w.setOutputTailLines(task.getOutputTailLines());
+	w.setCommandTimeoutMillis(task.getCommandTimeoutMillis());
+	w.setTimeoutMillis(task.getTimeoutMillis());
+	w.setPriority(task.getPriority());
+	return w;
+    }
+
+    /**
+     * Completes the received result for the original task: writes the
+     * binary output files to the output directory and passes the output to
+     * the listener.
+     */
+    static private CompilationResult fromWire(CompilationTask task, CompilationResult res) throws IOException
+    {
+	if (res.getBinaryOutputFiles() == null)
+	    res.setBinaryOutputFiles(new HashMap<>());
+	res.setBinaryOutputPaths(new HashMap<>());
+	if (task.getOutputDir() != null)
+	{
+	    for(final var e: res.getBinaryOutputFiles().entrySet())
+	    {
+		final var dest = task.getOutputDir().resolve(e.getKey());
+		final var parent = dest.toAbsolutePath().getParent();
+		if (parent != null)
+		    createDirectories(parent);
+		write(dest, e.getValue());
+		res.getBinaryOutputPaths().put(e.getKey(), dest);
+	    }
+	    res.setBinaryOutputFiles(new HashMap<>());
+	}
+	final var listener = task.getListener();
+	if (listener != null && res.getOutput() != null && res.getErrorOutput() != null)
+	{
+	    try {
+		for(int i = 0;i < res.getOutput().size();i++)
+		    for(final var line: res.getOutput().get(i))
+			listener.onOutput(i, line);
+		for(int i = 0;i < res.getErrorOutput().size();i++)
+		    for(final var line: res.getErrorOutput().get(i))
+			listener.onErrorOutput(i, line);
+	    }
+	    catch(RuntimeException ex)
+	    {
+		log.error("The compilation listener failed", ex);
+	    }
+	}
+	return res;
+    }
+
+    static private CompilationResult failure(Throwable ex)
+    {
+	final var wr = new StringWriter();
+	ex.printStackTrace(new PrintWriter(wr));
+	final var res = CompilationResult.empty();
+	res.setExitCode(-1);
+	res.setStackTrace(wr.toString());
+	return res;
+    }
+
+    /** One sending of a task to a worker. */
+    static private final class Call
+    {
+	final Worker worker;
+	final long id;
+	final Execution execution;
+	CompilationResult result = null;
+	Throwable error = null;
+
+	Call(Worker worker, long id, Execution execution)
+	{
+	    this.worker = worker;
+	    this.id = id;
+	    this.execution = execution;
+	}
+
+	void complete(CompilationResult result, Throwable error)
+	{
+	    this.result = result;
+	    this.error = error;
+	    execution.completed(this);
+	}
+
+	void cancel()
+	{
+	    worker.cancel(id);
+	}
+    }
+
+    /**
+     * The execution of one task, sent to one worker or, after hedging, to
+     * two of them at once.
+     */
+    private final class Execution
+    {
+	final CompilationTask task, wire;
+	final CompletableFuture<CompilationResult> result = new CompletableFuture<>();
+	final Runnable cancel = this::cancel;
+
+	/** The calls without a result; guarded by {@code this}. */
+	private final List<Call> running = new ArrayList<>();
+	private int failures = 0;
+	private boolean hedged = false, cancelled = false;
+	private Throwable lastError = null;
+	private ScheduledFuture<?> hedge = null;
+
+	Execution(CompilationTask task, CompilationTask wire)
+	{
+	    this.task = task;
+	    this.wire = wire;
+	}
+
+	/**
+	 * Sends the task to one more worker. If no worker is available for a
+	 * call other than a hedging one, the execution fails.
+	 */
+	void send(Set<Worker> avoid, boolean hedging)
+	{
+	    final var call = dispatch(this, avoid, hedging);
+	    if (call == null)
+	    {
+		if (!hedging)
+		    finish(failure((lastError != null)?lastError:new IOException("No workers available")));
+		return;
+	    }
+	    if (hedging)
+		log.debug("Hedging task {} on {}", call.id, call.worker.address.toString());
+	    final long delay = hedgeDelayMillis;
+	    synchronized(this) {
+		if (hedging || hedged || delay == 0 || result.isDone())
+		    return;
+		if (hedge != null)
+		    hedge.cancel(false);
+		hedge = timer.schedule(() -> dispatcher.execute(this::hedge), delay, TimeUnit.MILLISECONDS);
+	    }
+	}
+
+	private void hedge()
+	{
+	    final var busy = new HashSet<Worker>();
+	    synchronized(this) {
+		if (hedged || result.isDone() || running.isEmpty())
+		    return;
+		hedged = true;
+		for(final var c: running)
+		    busy.add(c.worker);
+	    }
+	    send(busy, true);
+	}
+
+	/**
+	 * Adds a call about to be sent.
+	 *
+	 * @return {@code false} if the execution is already finished
+	 */
+	synchronized boolean add(Call call)
+	{
+	    if (result.isDone())
+		return false;
+	    running.add(call);
+	    if (cancelled)
+		//Sent after the cancellation request, the worker doesn't know the call yet
+		dispatcher.execute(call::cancel);
+	    return true;
+	}
+
+	synchronized void remove(Call call)
+	{
+	    running.remove(call);
+	}
+
+	void completed(Call c)
+	{
+	    final List<Call> others;
+	    synchronized(this) {
+		if (!running.remove(c) || result.isDone())
+		    return;
+		if (c.error != null)
+		{
+		    log.warn("Task {} failed on {}: {}", c.id, c.worker.address.toString(), c.error.getMessage());
+		    lastError = c.error;
+		    failures++;
+		    if (!running.isEmpty())
+			return;
+		    others = null;
+		} else
+		{
+		    others = new ArrayList<>(running);
+		    running.clear();
+		}
+	    }
+	    if (others != null)
+	    {
+		others.forEach(r -> r.cancel());
+		try {
+		    finish(fromWire(task, c.result));
+		}
+		catch(IOException ex)
+		{
+		    finish(failure(ex));
+		}
+		return;
+	    }
+	    if (failures > maxRetries)
+	    {
+		finish(failure(lastError));
+		return;
+	    }
+	    //Not on the thread reading the connection, connecting and sending may take a while
+	    dispatcher.execute(() -> send(Set.of(c.worker), false));
+	}
+
+	void cancel()
+	{
+	    final List<Call> calls;
+	    synchronized(this) {
+		cancelled = true;
+		calls = new ArrayList<>(running);
+	    }
+	    calls.forEach(c -> c.cancel());
+	}
+
+	private void finish(CompilationResult res)
+	{
+	    synchronized(this) {
+		if (hedge != null)
+		    hedge.cancel(false);
+	    }
+	    result.complete(res);
+	}
+    }
+
+    /** The connection to one worker. */
+    static private final class Worker
+    {
+	final InetSocketAddress address;
+	final Map<Long, Call> pending = new ConcurrentHashMap<>();
+	private Socket socket = null;
+	private DataOutputStream out = null;
+	private long unavailableUntil = 0;
+
+	Worker(InetSocketAddress address)
+	{
+	    this.address = address;
+	}
+
+	synchronized boolean connect(String token)
+	{
+	    if (socket != null)
+		return true;
+	    if (System.currentTimeMillis() < unavailableUntil)
+		return false;
+	    final var s = new Socket();
+	    try {
+		s.setTcpNoDelay(true);
+		s.connect(address, CONNECT_TIMEOUT_MILLIS);
+		final var o = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+		final var hello = new RemoteProtocol.Message();
+		hello.type = RemoteProtocol.HELLO;
+		hello.token = token;
+		RemoteProtocol.write(o, hello);
+		final var in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+		socket = s;
+		out = o;
+		final var t = new Thread(() -> read(s, in), "atessera-remote-reader");
+		t.setDaemon(true);
+		t.start();
+		log.debug("Connected to the worker {}", address.toString());
+		return true;
+	    }
+	    catch(IOException ex)
+	    {
+		log.warn("Unable to connect to the worker {}: {}", address.toString(), ex.getMessage());
+		unavailableUntil = System.currentTimeMillis() + RECONNECT_DELAY_MILLIS;
+		try {
+		    s.close();
+		}
+		catch(IOException e)
+		{
+		    //Nothing to do
+		}
+		return false;
+	    }
+	}
+
+	/**
+	 * Sends the task.
+	 *
+	 * @return {@code false} if the connection is lost
+	 */
+	boolean send(Call call, CompilationTask task)
+	{
+	    final DataOutputStream o;
+	    synchronized(this) {
+		if (out == null)
+		    return false;
+		o = out;
+		pending.put(call.id, call);
+	    }
+	    final var m = new RemoteProtocol.Message();
+	    m.type = RemoteProtocol.COMPILE;
+	    m.id = call.id;
+	    m.task = task;
+	    try {
+		RemoteProtocol.write(o, m);
+		return true;
+	    }
+	    catch(IOException ex)
+	    {
+		pending.remove(call.id);
+		disconnect(ex);
+		return false;
+	    }
+	}
+
+	void cancel(long id)
+	{
+	    final DataOutputStream o;
+	    synchronized(this) {
+		o = out;
+	    }
+	    if (o == null || !pending.containsKey(id))
+		return;
+	    final var m = new RemoteProtocol.Message();
+	    m.type = RemoteProtocol.CANCEL;
+	    m.id = id;
+	    try {
+		RemoteProtocol.write(o, m);
+	    }
+	    catch(IOException ex)
+	    {
+		disconnect(ex);
+	    }
+	}
+
+	private void read(Socket s, DataInputStream in)
+	{
+	    try {
+		RemoteProtocol.Message m;
+		while ((m = RemoteProtocol.read(in)) != null)
+		{
+		    if (!RemoteProtocol.RESULT.equals(m.type) || m.result == null)
+		    {
+			log.warn("Unexpected message from the worker {}: {}", address.toString(), m.type);
+			continue;
+		    }
+		    final var call = pending.remove(m.id);
+		    if (call != null)
+			call.complete(m.result, null);
+		}
+		disconnect(s, new EOFException("The worker has closed the connection"));
+	    }
+	    catch(IOException ex)
+	    {
+		disconnect(s, ex);
+	    }
+	}
+
+	void disconnect(Throwable cause)
+	{
+	    //Not holding the lock, since the failed calls are sent to other workers
+	    final Socket s;
+	    synchronized(this) {
+		s = socket;
+	    }
+	    if (s != null)
+		disconnect(s, cause);
+	}
+
+	/**
+	 * Closes the given connection, if it is still the current one, and
+	 * fails all pending calls.
+	 */
+	private void disconnect(Socket s, Throwable cause)
+	{
+	    synchronized(this) {
+		if (socket != s)
+		    return;
+		socket = null;
+		out = null;
+		unavailableUntil = System.currentTimeMillis() + RECONNECT_DELAY_MILLIS;
+	    }
+	    try {
+		s.close();
+	    }
+	    catch(IOException ex)
+	    {
+		//Nothing to do
+	    }
+	    for(final var id: new ArrayList<>(pending.keySet()))
+	    {
+		final var call = pending.remove(id);
+		if (call != null)
+		    call.complete(null, cause);
+	    }
+	}
+    }
+}
@@ -0,0 +1,158 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.charset.*;
+import java.security.*;
+import com.google.gson.*;
+import com.google.gson.stream.*;
+
+/**
+ * The protocol between {@link RemoteCompiler} and {@link CompilationWorker}.
+ *
+ * <p>Messages are JSON objects sent as frames: a four-byte big-endian
+ * length followed by the UTF-8 bytes of the JSON. Byte arrays are encoded
+ * in Base64. The client starts with a {@code hello} message carrying the
+ * access token of the worker; then it sends {@code compile} messages with
+ * tasks and {@code cancel} messages, and the worker answers every
+ * {@code compile} message with a {@code result} message with the same
+ * identifier. Tasks and results may be interleaved in any order.</p>
+ */
+final class RemoteProtocol
+{
+    static final String
+	HELLO = "hello",
+	COMPILE = "compile",
+	CANCEL = "cancel",
+	RESULT = "result";
+
+    /** The maximum length of a frame. */
+    static final int MAX_FRAME = 1 << 30;
+
+    /** The maximum length of the {@code hello} frame, read before the client is authenticated. */
+    static final int MAX_HELLO_FRAME = 64 * 1024;
+
+    static private final Gson gson = new GsonBuilder()
+    //The null values of the environment of a command remove variables
+    .serializeNulls()
+    .registerTypeAdapter(byte[].class, new TypeAdapter<byte[]>(){
+	    @Override public void write(JsonWriter w, byte[] value) throws IOException
+	    {
+		if (value == null)
+		    w.nullValue(); else
+		    w.value(Base64.getEncoder().encodeToString(value));
+	    }
+	    @Override public byte[] read(JsonReader r) throws IOException
+	    {
+		if (r.peek() == JsonToken.NULL)
+		{
+		    r.nextNull();
+		    return null;
+		}
+		return Base64.getDecoder().decode(r.nextString());
+	    }
+	})
+    .registerTypeHierarchyAdapter(Path.class, new TypeAdapter<Path>(){
+	    @Override public void write(JsonWriter w, Path value) throws IOException
+	    {
+		if (value == null)
+		    w.nullValue(); else
+		    w.value(value.toString());
+	    }
+	    @Override public Path read(JsonReader r) throws IOException
+	    {
+		if (r.peek() == JsonToken.NULL)
+		{
+		    r.nextNull();
+		    return null;
+		}
+		return Paths.get(r.nextString());
+	    }
+	})
+    .create();
+
+    /** A message of the protocol; unused fields are {@code null}. */
+    static final class Message
+    {
+	String type;
+	long id;
+	String token;
+	CompilationTask task;
+	CompilationResult result;
+    }
+
+    private RemoteProtocol()
+    {
+    }
+
+    static void write(DataOutputStream out, Message message) throws IOException
+    {
+	final var b = gson.toJson(message).getBytes(StandardCharsets.UTF_8);
+	synchronized(out) {
+	    out.writeInt(b.length);
+	    out.write(b);
+	    out.flush();
+	}
+    }
+
+    /**
+     * Reads the next message.
+     *
+     * @return the message, or {@code null} if the connection is closed
+     */
+    static Message read(DataInputStream in) throws IOException
+    {
+	return read(in, MAX_FRAME);
+    }
+
+    /**
+     * Reads the next message not longer than the given limit.
+     *
+     * @param maxFrame the maximum length of the frame
+     * @return the message, or {@code null} if the connection is closed
+     */
+    static Message read(DataInputStream in, int maxFrame) throws IOException
+    {
+	final int len;
+	try {
+	    len = in.readInt();
+	}
+	catch(EOFException ex)
+	{
+	    return null;
+	}
+	if (len < 0 || len > maxFrame)
+	    throw new IOException("Illegal frame length: " + String.valueOf(len));
+	final var b = new byte[len];
+	in.readFully(b);
+	try {
+	    final var m = gson.fromJson(new String(b, StandardCharsets.UTF_8), Message.class);
+	    if (m == null || m.type == null)
+		throw new IOException("Message without type");
+	    return m;
+	}
+	catch(JsonParseException ex)
+	{
+	    throw new IOException(ex);
+	}
+    }
+
+    /**
+     * Compares an access token with the expected one in a time not
+     * depending on the position of the first mismatch.
+     *
+     * @param expected the token of the worker
+     * @param given    the token sent by the client, or {@code null}
+     * @return {@code true} if the tokens are equal
+     */
+    static boolean isTokenValid(String expected, String given)
+    {
+	if (given == null)
+	    return false;
+	return MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), given.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -18,14 +18,42 @@
  *   <dt>Runtime</dt>
  *   <dd>{@link atessera.comp.LocalCompiler LocalCompiler} &mdash; the default
  *       implementation that executes shell commands inside a
- *       {@link atessera.util.TempDir TempDir}.</dd>
+ *       {@link atessera.util.TempDir TempDir};
+ *       {@link atessera.comp.CompilationScheduler CompilationScheduler}
+ *       &mdash; runs many tasks concurrently on a bounded pool of
+ *       workers, optionally ordering them by the durations estimated by
+ *       {@link atessera.comp.CostModel CostModel};
+ *       {@link atessera.comp.RemoteCompiler RemoteCompiler} and
+ *       {@link atessera.comp.CompilationWorker CompilationWorker} &mdash;
+ *       spread the tasks over worker daemons on other machines or in local
+ *       processes;
+ *       {@link atessera.comp.MetricsRegistry MetricsRegistry} &mdash;
+ *       aggregates the resource usage of the commands by tool.</dd>
+ *
+ *   <dt>Decorators</dt>
+ *   <dd>{@link atessera.comp.CachingCompiler CachingCompiler} &mdash; wraps
+ *       another {@code Compiler} and returns stored results for tasks
+ *       identical to already executed ones;
+ *       {@link atessera.comp.CoalescingCompiler CoalescingCompiler} &mdash;
+ *       lets identical tasks submitted at the same time share one
+ *       execution.</dd>
  *
  *   <dt>Facades</dt>
  *   <dd>{@link atessera.comp.PdfLatex PdfLatex},
  *       {@link atessera.comp.Metapost Metapost},
- *       {@link atessera.comp.GNUPlot GNUPlot} &mdash; high-level classes that
+ *       {@link atessera.comp.MetapostBatch MetapostBatch},
+ *       {@link atessera.comp.GNUPlot GNUPlot},
+ *       {@link atessera.comp.Graphviz Graphviz},
+ *       {@link atessera.comp.PlantUml PlantUml} &mdash; high-level classes that
  *       encapsulate multi-step pipelines for specific tools and delegate the
- *       actual execution to a {@code Compiler}.</dd>
+ *       actual execution to a {@code Compiler};
+ *       {@link atessera.comp.GNUPlotSession GNUPlotSession} &mdash; keeps
+ *       one {@code gnuplot} running for rendering many charts;
+ *       {@link atessera.comp.FormatCache FormatCache} &mdash; keeps
+ *       LaTeX formats with precompiled preambles for {@code PdfLatex};
+ *       {@link atessera.comp.LatexLogParser LatexLogParser} &mdash;
+ *       extracts the errors from the logs of TeX, also while the passes
+ *       run (see {@link atessera.comp.LatexLogWatch LatexLogWatch}).</dd>
  * </dl>
  *
  * <h2>Typical usage</h2>
@@ -39,6 +67,14 @@
  *     byte[] pdf = pdfLatex.getOutput();
  * }
  *
+ * // Compile a book split into chapters, one process per chapter
+ * PdfLatex book = new PdfLatex(compiler, chapters.getMaster(), images, chapterFiles);
+ * book.setAuxDir(auxDir);
+ * book.setChapters(chapters.getNames());
+ * if (book.compileSharded(scheduler)) {
+ *     byte[] pdf = book.getOutput();
+ * }
+ *
  * // Compile a MetaPost figure
  * Metapost mp = new Metapost(compiler, mpSource);
  * if (mp.compile()) {
@@ -57,6 +57,9 @@ import static atessera.util.LatexUtils.*;
  */
 final class Markdown extends LatexTarget
 {
+    /** The opening of a level 1 heading, by which {@link TexTranslator} splits the text into chapters. */
+    static final String CHAPTER_OPENING = "\\needspace{6cm}\n\\chapter{";
+
     /**
      * Constructs a new Markdown-to-LaTeX renderer with the feature set
      * appropriate for publication content.
@@ -177,7 +180,7 @@ final class Markdown extends LatexTarget
 	switch(level)
 	{
 	case 1:
-	    return "\\needspace{6cm}\n\\chapter{";
+	    return CHAPTER_OPENING;
 	case 2:
 	    return "\\needspace{3cm}\n\\section{";
 	case 3:
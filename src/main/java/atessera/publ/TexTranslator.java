@@ -64,6 +64,14 @@ import static atessera.util.LatexUtils.*;
  *       LaTeX source via Apache Velocity.</li>
  * </ol>
  *
+ * <p>The document may also be produced as a master file and one file per
+ * chapter with {@link #translateChapters()}. A chapter begins at every
+ * level 1 heading of a Markdown section and lasts up to the next one or
+ * up to the last section; the master file includes the chapters with
+ * {@code \include}, so {@link atessera.comp.PdfLatex PdfLatex} may
+ * typeset only the changed chapters with {@code \includeonly} (see
+ * {@link atessera.comp.PdfLatex#setChapters(List)}).</p>
+ *
  * <h2>Thread safety</h2>
  *
  * <p>Instances of this class are <strong>not</strong> thread-safe. Each
@@ -91,6 +99,14 @@ public final class TexTranslator
     /** Expected file extension for pre-compiled images. */
     static private final String IMAGES_EXT = ".pdf";
 
+    /** The prefix of the names of the chapter files. */
+    static private final String CHAPTER_PREFIX = "chapter-";
+
+    /** The comments marking the chapters in the rendered document, followed by the chapter names. */
+    static private final String
+	CHAPTER_BEGIN = "%atessera-chapter-begin ",
+	CHAPTER_END = "%atessera-chapter-end ";
+
     /** Factory for obtaining Velocity engine instances. */
     final EngineFactory engineFactory;
 
@@ -128,10 +144,94 @@ public final class TexTranslator
      *         unsupported type
      */
     public List<String> translate()
+    {
+	return render(translateSections());
+    }
+
+    /**
+     * Performs the full translation producing a master file and one file
+     * per chapter. The master file is the document as produced by
+     * {@link #translate()} with every chapter replaced by
+     * {@code \include{chapter-N}}; the text before the first level 1
+     * heading, the abstract and the bibliography stay in the master file.
+     * A chapter never ends inside a section of any type other than
+     * Markdown, so {@code \chapter} in a LaTeX section doesn't begin a new
+     * file.
+     *
+     * @return the master file and the chapters; never {@code null}
+     * @throws IllegalStateException if the abstract section has an
+     *         unsupported type or the template drops the chapter markers
+     */
+    public Chapters translateChapters()
+    {
+	final var sections = new ArrayList<PublicationTemplate.Section>();
+	final var names = new ArrayList<String>();
+	for(final var sect: requireNonNullElse(publ.getSections(), new ArrayList<PublicationContent.Section>()))
+	{
+	    final var s = translateSection(sect);
+	    if (requireNonNullElse(sect.getType(), PublicationContent.SectionType.MARKDOWN) != PublicationContent.SectionType.MARKDOWN)
+	    {
+		sections.add(s);
+		continue;
+	    }
+	    final var text = s.getText();
+	    int pos = 0;
+	    for(int next = text.indexOf(Markdown.CHAPTER_OPENING);next >= 0;next = text.indexOf(Markdown.CHAPTER_OPENING, next + 1))
+	    {
+		if (next > pos)
+		    sections.add(new PublicationTemplate.Section(PublicationTemplate.Section.Type.TEXT, text.substring(pos, next), ""));
+		if (!names.isEmpty())
+		    sections.add(marker(CHAPTER_END + names.get(names.size() - 1)));
+		names.add(CHAPTER_PREFIX + String.valueOf(names.size() + 1));
+		sections.add(marker(CHAPTER_BEGIN + names.get(names.size() - 1)));
+		pos = next;
+	    }
+	    if (pos < text.length())
+		sections.add(new PublicationTemplate.Section(PublicationTemplate.Section.Type.TEXT, text.substring(pos), ""));
+	}
+	if (!names.isEmpty())
+	    sections.add(marker(CHAPTER_END + names.get(names.size() - 1)));
+	final var lines = render(sections);
+	final var master = new ArrayList<String>();
+	final var files = new LinkedHashMap<String, List<String>>();
+	List<String> chapter = null;
+	String name = null;
+	for(final var line: lines)
+	{
+	    final var l = line.trim();
+	    if (l.startsWith(CHAPTER_BEGIN))
+	    {
+		name = l.substring(CHAPTER_BEGIN.length());
+		chapter = new ArrayList<>();
+		continue;
+	    }
+	    if (l.startsWith(CHAPTER_END) && chapter != null)
+	    {
+		files.put(name + ".tex", chapter);
+		master.add("\\include{" + name + "}");
+		chapter = null;
+		continue;
+	    }
+	    if (chapter != null)
+		chapter.add(line); else
+		master.add(line);
+	}
+	if (chapter != null || files.size() != names.size())
+	    throw new IllegalStateException("The template has lost the chapter markers");
+	log.debug("{} chapters split", names.size());
+	return new Chapters(master, files, names);
+    }
+
+    static private PublicationTemplate.Section marker(String text)
+    {
+	return new PublicationTemplate.Section(PublicationTemplate.Section.Type.TEXT, "\n" + text + "\n", "");
+    }
+
+    private List<String> render(List<PublicationTemplate.Section> sections)
     {
 	final var templ = new PublicationTemplate(engineFactory);
 	templ.setHeader(publ);
-	templ.setSections(translateSections());
+	templ.setSections(sections);
 	final var biblio = new ArrayList<>(new BiblioExtractor().extract(publ.getSections())
 					   .entrySet()
 					   .stream()
@@ -177,42 +277,52 @@ public final class TexTranslator
 	if (publ.getSections() == null)
 	    return Collections.emptyList();
 	return publ.getSections().stream()
-	.map(sect -> {
-		switch(requireNonNullElse(sect.getType(), PublicationContent.SectionType.MARKDOWN))
-		{
-		case MARKDOWN:
-		    if (sect.getSource() == null || sect.getSource().isEmpty())
-			return new PublicationTemplate.Section(PublicationTemplate.Section.Type.TEXT, "\n\n", "");
-		    return new PublicationTemplate.Section(PublicationTemplate.Section.Type.TEXT, markdown.parse(sect.getSource().stream().collect(joining("\n"))), "");
-		case LATEX:
-		    if (sect.getSource() == null || sect.getSource().isEmpty())
-			return new PublicationTemplate.Section(PublicationTemplate.Section.Type.TEXT, "\n\n", "");
-		    return new PublicationTemplate.Section(PublicationTemplate.Section.Type.TEXT,
-							   sect.getSource().stream().collect(joining("\n")), "");
-		case LISTING:
-		    if (sect.getSource() == null || sect.getSource().isEmpty())
-			return new PublicationTemplate.Section(PublicationTemplate.Section.Type.TEXT, "\n\n", ""); else
-			return new PublicationTemplate.Section(PublicationTemplate.Section.Type.LISTING, sect.getId() + ".lst", "", sect.getLabel(), translateCaption(sect.getCaption()), sect.getListingLang() );
-		case EQUATION:
-		    if (sect.getSource() == null || sect.getSource().isEmpty())
-			return new PublicationTemplate.Section(PublicationTemplate.Section.Type.TEXT, "\n\n", "");
-		    return new PublicationTemplate.Section(PublicationTemplate.Section.Type.EQUATION,
-							   sect.getSource().stream()
-							   .map(s -> s.trim())
-							   .filter(s -> !s.isEmpty())
-							   .collect(joining("\n")), "",
-							   sect.getLabel(), "", null);
-		case PLANTUML:
-		case METAPOST:
-		case GNUPLOT:
-		case GRAPHVIZ_DOT:
-		    return new PublicationTemplate.Section(PublicationTemplate.Section.Type.IMAGE, "",
-							   sect.getId() + IMAGES_EXT,
-							   sect.getLabel(), translateCaption(sect.getCaption()), null);
-		default:
-		    return new PublicationTemplate.Section(PublicationTemplate.Section.Type.TEXT, "\n\nFIXME! Section " + sect.getType().toString() + "\n\n", "");
-		}
-	    }).toList();
+	.map(sect -> translateSection(sect)).toList();
+    }
+
+    /**
+     * Converts one publication section into a template-ready section
+     * object.
+     *
+     * @param sect the section to convert
+     * @return the translated section
+     */
+    private PublicationTemplate.Section translateSection(PublicationContent.Section sect)
+    {
+	switch(requireNonNullElse(sect.getType(), PublicationContent.SectionType.MARKDOWN))
+	{
+	case MARKDOWN:
+	    if (sect.getSource() == null || sect.getSource().isEmpty())
+		return new PublicationTemplate.Section(PublicationTemplate.Section.Type.TEXT, "\n\n", "");
+	    return new PublicationTemplate.Section(PublicationTemplate.Section.Type.TEXT, markdown.parse(sect.getSource().stream().collect(joining("\n"))), "");
+	case LATEX:
+	    if (sect.getSource() == null || sect.getSource().isEmpty())
+		return new PublicationTemplate.Section(PublicationTemplate.Section.Type.TEXT, "\n\n", "");
+	    return new PublicationTemplate.Section(PublicationTemplate.Section.Type.TEXT,
+						   sect.getSource().stream().collect(joining("\n")), "");
+	case LISTING:
+	    if (sect.getSource() == null || sect.getSource().isEmpty())
+		return new PublicationTemplate.Section(PublicationTemplate.Section.Type.TEXT, "\n\n", ""); else
+		return new PublicationTemplate.Section(PublicationTemplate.Section.Type.LISTING, sect.getId() + ".lst", "", sect.getLabel(), translateCaption(sect.getCaption()), sect.getListingLang() );
+	case EQUATION:
+	    if (sect.getSource() == null || sect.getSource().isEmpty())
+		return new PublicationTemplate.Section(PublicationTemplate.Section.Type.TEXT, "\n\n", "");
+	    return new PublicationTemplate.Section(PublicationTemplate.Section.Type.EQUATION,
+						   sect.getSource().stream()
+						   .map(s -> s.trim())
+						   .filter(s -> !s.isEmpty())
+						   .collect(joining("\n")), "",
+						   sect.getLabel(), "", null);
+	case PLANTUML:
+	case METAPOST:
+	case GNUPLOT:
+	case GRAPHVIZ_DOT:
+	    return new PublicationTemplate.Section(PublicationTemplate.Section.Type.IMAGE, "",
+						   sect.getId() + IMAGES_EXT,
+						   sect.getLabel(), translateCaption(sect.getCaption()), null);
+	default:
+	    return new PublicationTemplate.Section(PublicationTemplate.Section.Type.TEXT, "\n\nFIXME! Section " + sect.getType().toString() + "\n\n", "");
+	}
     }
 
     /**
@@ -251,4 +361,53 @@ public final class TexTranslator
 	}
 	return new String(b);
     }
-}
\ No newline at end of file
+
+    /**
+     * A document split into a master file and chapter files.
+     */
+    static public final class Chapters
+    {
+	private final List<String> master;
+	private final Map<String, List<String>> files;
+	private final List<String> names;
+
+	Chapters(List<String> master, Map<String, List<String>> files, List<String> names)
+	{
+	    this.master = master;
+	    this.files = files;
+	    this.names = names;
+	}
+
+	/**
+	 * Returns the master file including the chapters.
+	 *
+	 * @return the lines of the master file
+	 */
+	public List<String> getMaster()
+	{
+	    return master;
+	}
+
+	/**
+	 * Returns the chapter files to be placed next to the master file.
+	 *
+	 * @return the lines of the chapter files keyed by the file names
+	 *         (e.g. {@code chapter-1.tex}), in the order of the chapters
+	 */
+	public Map<String, List<String>> getFiles()
+	{
+	    return files;
+	}
+
+	/**
+	 * Returns the names of the chapters as used with {@code \include}
+	 * (e.g. {@code chapter-1}).
+	 *
+	 * @return the names in the order of the chapters
+	 */
+	public List<String> getNames()
+	{
+	    return names;
+	}
+    }
+}
@@ -21,7 +21,9 @@
  *       package-private {@code Markdown} class, bibliography extraction to
  *       {@link atessera.publ.BiblioExtractor BiblioExtractor}, and final
  *       assembly to {@link atessera.templ.PublicationTemplate
- *       PublicationTemplate}.</dd>
+ *       PublicationTemplate}. A long document may be produced as a master
+ *       file and one file per chapter, to be typeset incrementally by
+ *       {@link atessera.comp.PdfLatex PdfLatex}.</dd>
  *
  *   <dt>{@link atessera.publ.HtmlTranslator HtmlTranslator}</dt>
  *   <dd>Translates a publication into a set of HTML chapter files with
@@ -4,33 +4,133 @@
 package atessera.util;
 
 import java.util.*;
-import java.util.concurrent.atomic.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 import java.io.*;
+import java.nio.file.*;
+import org.apache.logging.log4j.*;
 
 public final class ShellCmd
 {
+    static private final Logger log = LogManager.getLogger();
+
+    /** Threads reading stderr of the running commands, reused between commands. */
+    static private final ExecutorService pump = Executors.newCachedThreadPool(r -> {
+	    final var t = new Thread(r, "atessera-shell-pump");
+	    t.setDaemon(true);
+	    return t;
+	});
+
+    /** Kills the commands exceeding their time limits. */
+    static private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+	    final var t = new Thread(r, "atessera-shell-timer");
+	    t.setDaemon(true);
+	    return t;
+	});
+
+    /**
+     * Samples the resource usage of the running commands. Separate from
+     * the timer, so sampling many commands can't delay the kills.
+     */
+    static private final ScheduledThreadPoolExecutor sampling = new ScheduledThreadPoolExecutor(1, r -> {
+	    final var t = new Thread(r, "atessera-shell-sampler");
+	    t.setDaemon(true);
+	    return t;
+	});
+    static {
+	timer.setRemoveOnCancelPolicy(true);
+	sampling.setRemoveOnCancelPolicy(true);
+    }
+
+    /** The interval of sampling the resource usage of the running commands. */
+    static private final long SAMPLE_MILLIS = 50;
+
+    /** The unit of the CPU times in {@code /proc/<pid>/stat}, {@code USER_HZ}, which is 100 on all Linux platforms. */
+    static private final long TICKS_PER_SECOND = 100;
+
+    static private final boolean PROC = Files.isDirectory(Paths.get("/proc/self"));
+
     public final Process p;
-    public final List<String>
-	output = new ArrayList<>(),
-	error = new ArrayList<>();
-    private final AtomicBoolean
-	outputComplete = new AtomicBoolean(false),
-	errorComplete = new AtomicBoolean(false);
+    public final List<String> output, error;
+    private volatile boolean timedOut = false;
+    private final Consumer<String> outputListener, errorListener;
+    private final int tailLines;
+    private final boolean keepOutput;
+    private final long startedAt = System.nanoTime();
+    private volatile long wallMillis = -1;
+    private long userTicks = 0, systemTicks = 0, peakRssBytes = 0;
+    private volatile ScheduledFuture<?> sampler = null;
 
     public ShellCmd(String cmd, String dir)
     {
+	this(cmd, dir, null, null, 0);
+    }
+
+    /**
+     * Starts the command with its output delivered to the listeners line by
+     * line. If {@code tailLines} is positive, only the given number of the
+     * last lines of each stream is kept in {@code output} and
+     * {@code error}.
+     */
+    public ShellCmd(String cmd, String dir, Consumer<String> outputListener, Consumer<String> errorListener, int tailLines)
+    {
+	this(List.of("/bin/bash", "-c", cmd), null, dir, outputListener, errorListener, tailLines, true);
+    }
+
+    /**
+     * Starts a program directly, without the shell. The environment
+     * variables with {@code null} values are removed, the other ones are
+     * set. If {@code keepOutput} is false, nothing is kept in
+     * {@code output} and {@code error}, and a stream without a listener is
+     * discarded by the system without being read at all.
+     *
+     * @param argv           the program and its arguments
+     * @param env            the environment variables to change, or
+     *                       {@code null}
+     * @param dir            the working directory
+     * @param outputListener the listener of stdout, or {@code null}
+     * @param errorListener  the listener of stderr, or {@code null}
+     * @param tailLines      the number of the last lines kept, or zero to
+     *                       keep everything
+     * @param keepOutput     whether the output is kept at all
+     */
+    public ShellCmd(List<String> argv, Map<String, String> env, String dir,
+		    Consumer<String> outputListener, Consumer<String> errorListener, int tailLines, boolean keepOutput)
+    {
+	this.outputListener = outputListener;
+	this.errorListener = errorListener;
+	this.tailLines = tailLines;
+	this.keepOutput = keepOutput;
+	this.output = tailLines > 0?new LinkedList<>():new ArrayList<>();
+	this.error = tailLines > 0?new LinkedList<>():new ArrayList<>();
 	try {
-	p = new ProcessBuilder("/bin/bash", "-c", cmd)
-	.directory(new File(dir))
-	.start();
+	    final var b = new ProcessBuilder(argv).directory(new File(dir));
+	    if (env != null)
+		for(final var e: env.entrySet())
+		    if (e.getValue() != null)
+			b.environment().put(e.getKey(), e.getValue()); else
+			b.environment().remove(e.getKey());
+	    if (!keepOutput && outputListener == null)
+		b.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+	    if (!keepOutput && errorListener == null)
+		b.redirectError(ProcessBuilder.Redirect.DISCARD);
+	    p = b.start();
 	}
 	catch(IOException ex)
 	{
 	    //FIXME: logging
 	    throw new RuntimeException(ex);
 	}
+	if (PROC)
+	    sampler = sampling.scheduleAtFixedRate(this::sample, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Waits for the command to finish, reading its output. Stdout is read by
+     * the calling thread, which would be blocked anyway, and stderr by a
+     * thread of the pool shared by all commands, so no threads are created
+     * per command.
+     */
     public int waitFor()
     {
 	try {
@@ -41,30 +141,196 @@ public final class ShellCmd
 	    //FIXME: log
 	    throw new RuntimeException(ex);
 	}
-	new Thread(() -> readStream(p.getInputStream(), output, outputComplete)).start();
-	new Thread(() -> readStream(p.getErrorStream(), error, errorComplete)).start();
+	final var errorPump = pump.submit(() -> readStream(p.getErrorStream(), error, errorListener));
+	readStream(p.getInputStream(), output, outputListener);
+	//The command has closed its stdout, so it's likely exiting; the last chance to see its usage
+	if (PROC)
+	    sample();
 	try {
-	    p.waitFor();
-	    synchronized(this) {
-		while (!outputComplete.get() || !errorComplete.get())
-		    wait();
-	    }
-	    return p.exitValue();
+	    final int exitCode = p.waitFor();
+	    errorPump.get();
+	    return exitCode;
 	}
 	catch(InterruptedException ex)
 	{
 	    Thread.currentThread().interrupt();
 	}
+	catch(ExecutionException ex)
+	{
+	    throw new RuntimeException(ex.getCause());
+	}
+	finally {
+	    wallMillis = (System.nanoTime() - startedAt) / 1000000;
+	    stopSampling();
+	}
 	return -1;
     }
 
-    private void readStream(InputStream s, List<String> lines, AtomicBoolean complete)
+    /**
+     * Waits for the command to finish like {@link #waitFor()}, but kills the
+     * command with all its descendants if it doesn't finish in the given
+     * time. The exit code of a killed command is the one reported by the
+     * system for the killed process.
+     *
+     * @param timeoutMillis the time limit in milliseconds; zero or a
+     *        negative value means no limit
+     */
+    public int waitFor(long timeoutMillis)
+    {
+	if (timeoutMillis <= 0)
+	    return waitFor();
+	final var killer = timer.schedule(() -> {
+		timedOut = true;
+		kill();
+	    }, timeoutMillis, TimeUnit.MILLISECONDS);
+	try {
+	    return waitFor();
+	}
+	finally {
+	    killer.cancel(false);
+	}
+    }
+
+    /**
+     * Kills the command with all its descendant processes. A thread
+     * waiting for the command returns once the killed processes have
+     * closed their ends of stdout and stderr, which is usually at once;
+     * a process detached from the tree of the command (e.g. a daemon
+     * started by it) and still holding the streams open keeps the thread
+     * waiting until it closes them or exits.
+     */
+    public void kill()
+    {
+	p.descendants().forEach(ProcessHandle::destroyForcibly);
+	p.destroyForcibly();
+    }
+
+    public boolean isTimedOut()
+    {
+	return timedOut;
+    }
+
+    /**
+     * Returns the time from starting the command until {@link #waitFor()}
+     * has seen it finish, or {@code -1} if it isn't finished yet.
+     */
+    public long getWallMillis()
+    {
+	return wallMillis;
+    }
+
+    /**
+     * Returns the user CPU time consumed by the command and all its
+     * descendant processes. The resource usage is sampled from
+     * {@code /proc} while the command is running, so it is known only on
+     * Linux, and the usage during the last sampling interval before the
+     * exit of a process may be missed. Processes living shorter than the
+     * interval may be missed completely unless their parent waits for
+     * them.
+     */
+    public synchronized long getUserCpuMillis()
+    {
+	return userTicks * 1000 / TICKS_PER_SECOND;
+    }
+
+    /**
+     * Returns the system CPU time consumed by the command and all its
+     * descendant processes, sampled as described for
+     * {@link #getUserCpuMillis()}.
+     */
+    public synchronized long getSystemCpuMillis()
+    {
+	return systemTicks * 1000 / TICKS_PER_SECOND;
+    }
+
+    /**
+     * Returns the peak resident set size of the largest process among the
+     * command and its descendants, sampled as described for
+     * {@link #getUserCpuMillis()}.
+     */
+    public synchronized long getPeakRssBytes()
+    {
+	return peakRssBytes;
+    }
+
+    /**
+     * Takes the resource usage of the process tree. The CPU time of every
+     * finished process which has been waited for is included in the
+     * children times of its parent, so summing up the own and the children
+     * times of the live processes counts every process exactly once.
+     */
+    private void sample()
+    {
+	if (!p.isAlive())
+	{
+	    stopSampling();
+	    return;
+	}
+	final var procs = new ArrayList<ProcessHandle>();
+	procs.add(p.toHandle());
+	try {
+	    p.descendants().forEach(procs::add);
+	}
+	catch(RuntimeException ex)
+	{
+	    //The process has just finished
+	}
+	long user = 0, system = 0, rss = 0;
+	for(final var h: procs)
+	{
+	    try {
+		final var stat = Files.readString(Paths.get("/proc", String.valueOf(h.pid()), "stat"));
+		//The command name in parentheses may contain spaces
+		final var f = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+		user += Long.parseLong(f[11]) + Long.parseLong(f[13]);
+		system += Long.parseLong(f[12]) + Long.parseLong(f[14]);
+		for(final var line: Files.readAllLines(Paths.get("/proc", String.valueOf(h.pid()), "status")))
+		    if (line.startsWith("VmHWM:"))
+			rss = Math.max(rss, Long.parseLong(line.substring(6).trim().split(" ")[0]) * 1024);
+	    }
+	    catch(IOException | RuntimeException ex)
+	    {
+		//The process has finished while being sampled
+	    }
+	}
+	synchronized(this) {
+	    userTicks = Math.max(userTicks, user);
+	    systemTicks = Math.max(systemTicks, system);
+	    peakRssBytes = Math.max(peakRssBytes, rss);
+	}
+    }
+
+    private void stopSampling()
+    {
+	final var s = sampler;
+	if (s != null)
+	    s.cancel(false);
+    }
+
+    private void readStream(InputStream s, List<String> lines, Consumer<String> listener)
     {
 	try {
 		try {
 		    try (final var r = new BufferedReader(new InputStreamReader(s, "UTF-8"))) {
 			for(var line = r.readLine();line != null;line = r.readLine())
-			    lines.add(line);
+			{
+			    if (keepOutput)
+			    {
+				lines.add(line);
+				if (tailLines > 0 && lines.size() > tailLines)
+				    lines.remove(0);
+			    }
+			    if (listener != null)
+			    {
+				try {
+				    listener.accept(line);
+				}
+				catch(RuntimeException ex)
+				{
+				    log.error("The output listener failed", ex);
+				}
+			    }
+			}
 	}
 		}
 	finally {
@@ -73,13 +339,7 @@ public final class ShellCmd
 	}
 	catch(IOException ex)
 	{
-	    //FIXME: log
-	    ex.printStackTrace();
-	}
-		    synchronized(this)
-		    {
-	    complete.set(true);
-	    notify();
+	    log.error("Unable to read the command output", ex);
 	}
     }
 
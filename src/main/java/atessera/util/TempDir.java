@@ -4,12 +4,16 @@
 package atessera.util;
 
 import java.util.*;
+import java.util.function.*;
 import java.io.*;
 import java.nio.file.*;
+import java.nio.channels.*;
 
+import static java.util.Objects.*;
 import static java.nio.file.Files.*;
+import static atessera.util.TextUtils.*;
 
-public final class TempDir implements AutoCloseable
+public class TempDir implements AutoCloseable
 {
     final Path path;
 
@@ -25,6 +29,11 @@ public final class TempDir implements AutoCloseable
 	}
     }
 
+    protected TempDir(Path path)
+    {
+	this.path = requireNonNull(path, "path can't be null");
+    }
+
     @Override public void close()
     {
 	//FIXME:
@@ -61,11 +70,96 @@ public final class TempDir implements AutoCloseable
 	return path;
     }
 
+    public void writeSources(Map<String, List<String>> textSources, Map<String, byte[]> binarySources)
+    {
+	writeSources(textSources, binarySources, Map.of());
+    }
+
+    /**
+     * Writes the sources into the directory. The file sources are staged
+     * by {@link #stageFile(Path, Path)}.
+     *
+     * @param textSources   the text files by their names
+     * @param binarySources the binary files by their names
+     * @param fileSources   the paths of the files to stage by their names
+     */
+    public void writeSources(Map<String, List<String>> textSources, Map<String, byte[]> binarySources, Map<String, Path> fileSources)
+    {
+	for(final var e: textSources.entrySet())
+	    writeTextFile(path.resolve(e.getKey()), e.getValue());
+	try {
+	    for(final var e: binarySources.entrySet())
+		write(path.resolve(e.getKey()), e.getValue());
+	    for(final var e: fileSources.entrySet())
+		stageFile(e.getValue(), path.resolve(e.getKey()));
+	}
+	catch(IOException ex)
+	{
+	    throw new RuntimeException(ex);
+	}
+    }
+
+    /**
+     * Places a file into the directory without reading it into the
+     * memory. A hard link is made if the source is on the same file system,
+     * otherwise the content is transferred by {@link FileChannel#transferTo
+     * transferTo()}, letting the kernel copy it without passing the data
+     * through the Java heap. As a hard link shares the content with the
+     * source, the staged file must not be modified in place.
+     *
+     * @param source the file to stage
+     * @param dest   the destination path; replaced if exists
+     * @throws IOException if the file can't be staged
+     */
+    static public void stageFile(Path source, Path dest) throws IOException
+    {
+	requireNonNull(source, "source can't be null");
+	requireNonNull(dest, "dest can't be null");
+	deleteIfExists(dest);
+	try {
+	    createLink(dest, source);
+	    return;
+	}
+	catch(IOException | UnsupportedOperationException | SecurityException ex)
+	{
+	    //Different file systems or no hard links there, copying
+	}
+	try (final var in = FileChannel.open(source, StandardOpenOption.READ);
+	     final var out = FileChannel.open(dest, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+	    final long size = in.size();
+	    long pos = 0;
+	    while (pos < size)
+	    {
+		final long n = in.transferTo(pos, size - pos, out);
+		if (n <= 0)
+		    break;
+		pos += n;
+	    }
+	    if (pos < size)
+		throw new IOException("Unable to transfer " + source.toString() + " completely");
+	}
+    }
+
         public ShellCmd execShell(String cmd)
     {
 	return new ShellCmd(cmd, getFile().getAbsolutePath());
     }
 
+    public ShellCmd execShell(String cmd, Consumer<String> outputListener, Consumer<String> errorListener, int tailLines)
+    {
+	return new ShellCmd(cmd, getFile().getAbsolutePath(), outputListener, errorListener, tailLines);
+    }
+
+    /**
+     * Starts a program in this directory without the shell (see
+     * {@link ShellCmd#ShellCmd(List, Map, String, Consumer, Consumer, int, boolean)}).
+     */
+    public ShellCmd exec(List<String> argv, Map<String, String> env,
+			 Consumer<String> outputListener, Consumer<String> errorListener, int tailLines, boolean keepOutput)
+    {
+	return new ShellCmd(argv, env, getFile().getAbsolutePath(), outputListener, errorListener, tailLines, keepOutput);
+    }
+
 
     public int execAndWait(String cmd)
     {
@@ -0,0 +1,356 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.nio.charset.*;
+import java.security.*;
+import org.apache.logging.log4j.*;
+
+import static java.util.Objects.*;
+import static java.nio.file.Files.*;
+
+/**
+ * Pool of working directories reused between compilations.
+ *
+ * <p>Creating a fresh {@link TempDir} for every compilation means creating
+ * a directory, writing all sources and deleting the whole tree when the
+ * compilation is over, all of it on the critical path. The pool hands out
+ * {@link Workspace} objects instead, which are {@code TempDir} instances
+ * returning themselves to the pool on {@link Workspace#close() close()}.
+ * A returned workspace is cleaned by a background thread: every file
+ * except the sources written by the last compilation is deleted, and the
+ * sources are kept if they haven't been modified. When the next
+ * compilation writes a source identical to the kept one, the write is
+ * skipped.</p>
+ *
+ * <p>{@link #acquire(Collection)} prefers the idle workspace keeping most
+ * of the requested source names, so repeated compilations of similar
+ * documents land in the workspaces prepared for them. The number of idle
+ * workspaces is bounded; the excess ones are deleted.</p>
+ *
+ * <p>This class is thread-safe. A workspace must be used by one
+ * compilation at a time.</p>
+ *
+ * @see TempDir
+ */
+public final class WorkspacePool implements AutoCloseable
+{
+    static private final Logger log = LogManager.getLogger();
+    static private final String PREFIX = ".atessera-";
+
+    private final Path root;
+    private final int maxIdle;
+    private final List<Workspace> idle = new ArrayList<>();
+    private final ExecutorService cleaner = Executors.newSingleThreadExecutor(r -> {
+	    final var t = new Thread(r, "atessera-workspace-cleaner");
+	    t.setDaemon(true);
+	    return t;
+	});
+    private boolean closed = false;
+
+    /**
+     * Constructs a new pool. The root directory is created if it doesn't
+     * exist.
+     *
+     * @param root    the directory to create workspaces in; must not be
+     *                {@code null}
+     * @param maxIdle the maximum number of idle workspaces kept for reuse
+     */
+    public WorkspacePool(Path root, int maxIdle)
+    {
+	this.root = requireNonNull(root, "root can't be null");
+	if (maxIdle < 0)
+	    throw new IllegalArgumentException("maxIdle can't be negative");
+	this.maxIdle = maxIdle;
+	try {
+	    createDirectories(root);
+	}
+	catch(IOException ex)
+	{
+	    throw new RuntimeException(ex);
+	}
+    }
+
+    /**
+     * Takes a workspace from the pool or creates a new one if there are no
+     * idle workspaces.
+     *
+     * @param sourceNames the names of the sources going to be written; the
+     *                    idle workspace keeping most of them is preferred;
+     *                    must not be {@code null}
+     * @return the workspace to be closed after the compilation
+     */
+    public Workspace acquire(Collection<String> sourceNames)
+    {
+	requireNonNull(sourceNames, "sourceNames can't be null");
+	synchronized(this) {
+	    if (closed)
+		throw new IllegalStateException("The pool is closed");
+	    int best = -1, bestCount = -1;
+	    for(int i = idle.size() - 1;i >= 0;i--)
+	    {
+		int count = 0;
+		for(final var n: sourceNames)
+		    if (idle.get(i).inputs.containsKey(n))
+			count++;
+		if (count > bestCount)
+		{
+		    best = i;
+		    bestCount = count;
+		}
+	    }
+	    if (best >= 0)
+		return idle.remove(best);
+	}
+	try {
+	    return new Workspace(this, createTempDirectory(root, PREFIX));
+	}
+	catch(IOException ex)
+	{
+	    throw new RuntimeException(ex);
+	}
+    }
+
+    /**
+     * Stops cleaning and deletes all idle workspaces. Workspaces in use are
+     * deleted when they are closed.
+     */
+    @Override public void close()
+    {
+	synchronized(this) {
+	    closed = true;
+	}
+	cleaner.shutdown();
+	try {
+	    cleaner.awaitTermination(1, TimeUnit.MINUTES);
+	}
+	catch(InterruptedException ex)
+	{
+	    Thread.currentThread().interrupt();
+	}
+	final List<Workspace> l;
+	synchronized(this) {
+	    l = new ArrayList<>(idle);
+	    idle.clear();
+	}
+	l.forEach(w -> w.deleteTree());
+    }
+
+    private void release(Workspace w)
+    {
+	try {
+	    cleaner.execute(() -> recycle(w));
+	}
+	catch(RejectedExecutionException ex)
+	{
+	    w.deleteTree();
+	}
+    }
+
+    private void recycle(Workspace w)
+    {
+	try {
+	    w.clean();
+	}
+	catch(IOException | RuntimeException ex)
+	{
+	    log.warn("Unable to clean " + w.getPath().toString() + ", deleting it", ex);
+	    w.deleteTree();
+	    return;
+	}
+	synchronized(this) {
+	    if (!closed && idle.size() < maxIdle)
+	    {
+		idle.add(w);
+		return;
+	    }
+	}
+	w.deleteTree();
+    }
+
+    /**
+     * A working directory belonging to a {@link WorkspacePool}.
+     */
+    static public final class Workspace extends TempDir
+    {
+	private final WorkspacePool pool;
+
+	/** The kept sources by their names relative to the workspace root. */
+	private final Map<String, Input> inputs = new HashMap<>();
+
+	private Workspace(WorkspacePool pool, Path path)
+	{
+	    super(path);
+	    this.pool = pool;
+	}
+
+	/**
+	 * Writes the sources, skipping the ones identical to the sources
+	 * kept from the previous compilation and deleting the kept sources
+	 * not needed anymore.
+	 */
+	@Override public void writeSources(Map<String, List<String>> textSources, Map<String, byte[]> binarySources, Map<String, Path> fileSources)
+	{
+	    final var names = new HashSet<String>(textSources.keySet());
+	    names.addAll(binarySources.keySet());
+	    names.addAll(fileSources.keySet());
+	    try {
+		final var it = inputs.entrySet().iterator();
+		while (it.hasNext())
+		{
+		    final var e = it.next();
+		    if (names.contains(e.getKey()))
+			continue;
+		    deleteIfExists(path.resolve(e.getKey()));
+		    it.remove();
+		}
+		for(final var e: textSources.entrySet())
+		    writeSource(e.getKey(), toBytes(e.getValue()));
+		for(final var e: binarySources.entrySet())
+		    writeSource(e.getKey(), e.getValue());
+		for(final var e: fileSources.entrySet())
+		    stageSource(e.getKey(), e.getValue());
+	    }
+	    catch(IOException ex)
+	    {
+		throw new RuntimeException(ex);
+	    }
+	}
+
+	/**
+	 * Returns the workspace to the pool. The workspace is cleaned
+	 * asynchronously.
+	 */
+	@Override public void close()
+	{
+	    pool.release(this);
+	}
+
+	private void writeSource(String name, byte[] content) throws IOException
+	{
+	    final var file = path.resolve(name);
+	    final var digest = digest(content);
+	    final var old = inputs.get(name);
+	    if (old != null && Arrays.equals(old.digest, digest) && old.isUnchanged(file))
+	    {
+		log.trace("Reusing {} in {}", name, path.toString());
+		return;
+	    }
+	    write(file, content);
+	    inputs.put(name, new Input(digest, size(file), getLastModifiedTime(file)));
+	}
+
+	/**
+	 * Stages a file source, identifying the source file by its path,
+	 * size and modification time instead of reading it. A hard-linked
+	 * copy follows the changes of the source file, so it is considered
+	 * modified as soon as the source file is.
+	 */
+	private void stageSource(String name, Path source) throws IOException
+	{
+	    final var file = path.resolve(name);
+	    final var abs = source.toAbsolutePath();
+	    final var digest = digest((abs.toString() + ":" + size(abs) + ":" + getLastModifiedTime(abs).toMillis()).getBytes(StandardCharsets.UTF_8));
+	    final var old = inputs.get(name);
+	    if (old != null && Arrays.equals(old.digest, digest) && old.isUnchanged(file))
+	    {
+		log.trace("Reusing {} in {}", name, path.toString());
+		return;
+	    }
+	    stageFile(abs, file);
+	    inputs.put(name, new Input(digest, size(file), getLastModifiedTime(file)));
+	}
+
+	/**
+	 * Deletes everything except the unmodified sources.
+	 */
+	private void clean() throws IOException
+	{
+	    final List<Path> l;
+	    try (final var s = walk(path)) {
+		l = new ArrayList<>(s.toList());
+	    }
+	    Collections.reverse(l);
+	    for(final var p: l)
+	    {
+		if (p.equals(path))
+		    continue;
+		if (isDirectory(p, LinkOption.NOFOLLOW_LINKS))
+		{
+		    try {
+			delete(p);
+		    }
+		    catch(DirectoryNotEmptyException ex)
+		    {
+			//Contains kept sources
+		    }
+		    continue;
+		}
+		final var name = path.relativize(p).toString();
+		final var input = inputs.get(name);
+		if (input != null && input.isUnchanged(p))
+		    continue;
+		inputs.remove(name);
+		delete(p);
+	    }
+	    inputs.keySet().removeIf(n -> !exists(path.resolve(n)));
+	}
+
+	private void deleteTree()
+	{
+	    try {
+		super.close();
+	    }
+	    catch(RuntimeException ex)
+	    {
+		log.warn("Unable to delete " + path.toString(), ex);
+	    }
+	}
+
+	static private byte[] toBytes(List<String> lines)
+	{
+	    final var b = new StringBuilder();
+	    final var sep = System.lineSeparator();
+	    for(final var s: lines)
+		b.append(s).append(sep);
+	    return new String(b).getBytes(Charset.defaultCharset());
+	}
+
+	static private byte[] digest(byte[] content)
+	{
+	    try {
+		return MessageDigest.getInstance("SHA-256").digest(content);
+	    }
+	    catch(NoSuchAlgorithmException ex)
+	    {
+		throw new IllegalStateException(ex);
+	    }
+	}
+    }
+
+    static private final class Input
+    {
+	final byte[] digest;
+	final long size;
+	final FileTime modified;
+
+	Input(byte[] digest, long size, FileTime modified)
+	{
+	    this.digest = digest;
+	    this.size = size;
+	    this.modified = modified;
+	}
+
+	boolean isUnchanged(Path file) throws IOException
+	{
+	    return isRegularFile(file, LinkOption.NOFOLLOW_LINKS) &&
+	    size(file) == size && getLastModifiedTime(file).equals(modified);
+	}
+    }
+}
@@ -15,11 +15,14 @@
  *
  * <dl>
  *   <dt>{@link atessera.util.ShellCmd ShellCmd}</dt>
- *   <dd>Executes a shell command via {@code /bin/bash -c} in a specified
- *       working directory. Captures standard output and error streams in
- *       separate threads. Provides both instance-level
+ *   <dd>Executes a shell command via {@code /bin/bash -c}, or a program
+ *       with its arguments and environment directly, in a specified
+ *       working directory. Reads standard output on the waiting thread and
+ *       standard error on a pool of threads shared by all commands, so no
+ *       threads are created per command. Provides both instance-level
  *       ({@code waitFor()}) and static ({@code execAndWait()}) methods
- *       for synchronous execution.</dd>
+ *       for synchronous execution. Samples the CPU time and the peak
+ *       memory of the running command from {@code /proc}.</dd>
  *
  *   <dt>{@link atessera.util.TempDir TempDir}</dt>
  *   <dd>Creates and manages a temporary directory. Implements
@@ -28,6 +31,12 @@
  *       try-with-resources block exits. Provides convenience methods
  *       for executing shell commands within the temporary directory.</dd>
  *
+ *   <dt>{@link atessera.util.WorkspacePool WorkspacePool}</dt>
+ *   <dd>Keeps temporary directories for reuse between compilations.
+ *       Returned directories are cleaned by a background thread, and the
+ *       unmodified sources are kept in place, so writing an identical
+ *       source again is skipped.</dd>
+ *
  *   <dt>{@link atessera.util.TextUtils TextUtils}</dt>
  *   <dd>Static helpers for reading and writing text files, reading Java
  *       resources, and processing line-based configuration files
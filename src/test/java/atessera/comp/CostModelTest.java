@@ -0,0 +1,136 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CostModelTest
+{
+    @Test public void kind()
+    {
+	assertEquals("pdflatex", CostModel.getKind(task("bash pdflatex.sh 3 0", Map.of())));
+	assertEquals("none", CostModel.getKind(new CompilationTask()));
+    }
+
+    @Test public void latexTextSize()
+    {
+	final var t = task("bash pdflatex.sh 3 0", Map.of("main.tex", List.of("abc", "de")));
+	t.setBinarySources(Map.of("main.fmt", new byte[100000]));
+	//The characters with the line ends, without the format
+	assertEquals(7, CostModel.getSize(t));
+    }
+
+    @Test public void metapostFigures()
+    {
+	final var t = task("mpost main.mp", Map.of("main.mp", List.of(
+									"beginfig(1);",
+									"  draw (0,0)--(1,1);",
+									"endfig;",
+									"  beginfig (2); endfig;",
+									"% beginfig(3) in a comment doesn't start the line",
+									"beginfig(4); endfig;",
+									"end")));
+	assertEquals(3, CostModel.getSize(t));
+    }
+
+    @Test public void gnuplotDataBlock()
+    {
+	final var t = task("gnuplot src.plot", Map.of("src.plot", List.of(
+									    "$data << EOD",
+									    "1 2",
+									    "3 4",
+									    "EOD",
+									    "plot $data using 1:2 with lines")));
+	assertEquals(8, CostModel.getSize(t));
+    }
+
+    @Test public void gnuplotQuotedFiles()
+    {
+	final var t = task("gnuplot src.plot", Map.of(
+						      "src.plot", List.of(
+									  "set title 'not.dat'",
+									  "plot 'points.dat' using 1:2, \"values.bin\" using 1:2, '-' with lines",
+									  "replot 'points.dat'"),
+						      "points.dat", List.of("1 1", "2 2")));
+	t.setBinarySources(Map.of("values.bin", new byte[10], "not.dat", new byte[1000]));
+	//The file plotted twice is counted once, the title and the special file aren't counted
+	assertEquals(8 + 10, CostModel.getSize(t));
+    }
+
+    @Test public void otherKindAllSources()
+    {
+	final var t = task("dot -Tpdf graph.dot", Map.of("graph.dot", List.of("digraph {}")));
+	t.setBinarySources(Map.of("image.png", new byte[5]));
+	assertEquals(11 + 5, CostModel.getSize(t));
+    }
+
+    @Test public void emptyModel()
+    {
+	assertEquals(0, new CostModel().estimate(task("bash pdflatex.sh 3 0", Map.of())));
+    }
+
+    @Test public void linearFit()
+    {
+	final var m = new CostModel();
+	for(int i = 1;i <= 5;i++)
+	{
+	    final var t = latex(i * 1000);
+	    m.record(t, result(0, 100 + 2 * CostModel.getSize(t)));
+	}
+	final var t = latex(10000);
+	assertEquals(100.0 + 2 * CostModel.getSize(t), m.estimate(t), 1.0);
+    }
+
+    @Test public void sameSizeGivesMean()
+    {
+	final var m = new CostModel();
+	final var t = latex(1000);
+	m.record(t, result(0, 100));
+	m.record(t, result(0, 300));
+	final double expected = (100 * 0.98 + 300) / (0.98 + 1);
+	assertEquals(expected, m.estimate(latex(5000)), 1.0);
+    }
+
+    @Test public void unknownKindGetsAverage()
+    {
+	final var m = new CostModel();
+	m.record(latex(1000), result(0, 500));
+	assertEquals(500, m.estimate(task("mpost main.mp", Map.of("main.mp", List.of("beginfig(1);")))));
+    }
+
+    @Test public void failuresAndCachedResultsIgnored()
+    {
+	final var m = new CostModel();
+	m.record(latex(1000), result(1, 500));
+	final var cached = result(0, 500);
+	cached.setCommandMetrics(new ArrayList<>());
+	m.record(latex(1000), cached);
+	assertEquals(0, m.estimate(latex(1000)));
+    }
+
+    static private CompilationTask task(String command, Map<String, List<String>> textSources)
+    {
+	final var t = new CompilationTask();
+	t.setCommands(List.of(command));
+	t.setTextSources(textSources);
+	t.setBinarySources(Map.of());
+	return t;
+    }
+
+    static private CompilationTask latex(int chars)
+    {
+	return task("bash pdflatex.sh 3 0", Map.of("main.tex", List.of("x".repeat(chars - 1))));
+    }
+
+    static private CompilationResult result(int exitCode, long wallMillis)
+    {
+	final var res = CompilationResult.empty();
+	res.setExitCode(exitCode);
+	res.setCommandMetrics(List.of(new CommandMetrics("bash pdflatex.sh 3 0", exitCode, wallMillis, 0, 0, 0)));
+	return res;
+    }
+}
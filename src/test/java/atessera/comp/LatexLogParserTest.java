@@ -0,0 +1,118 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatexLogParserTest
+{
+    @Test public void classicError()
+    {
+	final var errors = LatexLogParser.parse(List.of(
+							"(./main.tex",
+							"! Undefined control sequence.",
+							"<recently read> \\foo ",
+							"",
+							"l.12 \\foo",
+							"           bar"));
+	assertEquals(1, errors.size());
+	final var e = errors.get(0);
+	assertNull(e.getFile());
+	assertEquals(12, e.getLine());
+	assertEquals("Undefined control sequence.", e.getMessage());
+	assertEquals("\\foo", e.getContext());
+    }
+
+    @Test public void fileLineError()
+    {
+	final var errors = LatexLogParser.parse(List.of(
+							"./chapter-1.tex:7: Undefined control sequence.",
+							"l.8 \\bar"));
+	assertEquals(1, errors.size());
+	final var e = errors.get(0);
+	assertEquals("./chapter-1.tex", e.getFile());
+	//The line of the message is kept, only the context is taken from the l.N line
+	assertEquals(7, e.getLine());
+	assertEquals("Undefined control sequence.", e.getMessage());
+	assertEquals("\\bar", e.getContext());
+    }
+
+    @Test public void bothFormsInOrder()
+    {
+	final var errors = LatexLogParser.parse(List.of(
+							"! Missing $ inserted.",
+							"l.3 ",
+							"main.tex:5: Extra }, or forgotten $.",
+							"l.5 }"));
+	assertEquals(2, errors.size());
+	assertEquals("Missing $ inserted.", errors.get(0).getMessage());
+	assertEquals(3, errors.get(0).getLine());
+	assertNull(errors.get(0).getContext());
+	assertEquals("main.tex", errors.get(1).getFile());
+	assertEquals(5, errors.get(1).getLine());
+    }
+
+    @Test public void lineNumberWithinWindow()
+    {
+	final var lines = new ArrayList<String>();
+	lines.add("! Missing number, treated as zero.");
+	lines.addAll(Collections.nCopies(16, "<to be read again>"));
+	lines.add("l.42 \\hskip");
+	final var errors = LatexLogParser.parse(lines);
+	assertEquals(1, errors.size());
+	assertEquals(42, errors.get(0).getLine());
+    }
+
+    @Test public void lineNumberBeyondWindow()
+    {
+	final var lines = new ArrayList<String>();
+	lines.add("! Missing number, treated as zero.");
+	lines.addAll(Collections.nCopies(17, "<to be read again>"));
+	lines.add("l.42 \\hskip");
+	final var errors = LatexLogParser.parse(lines);
+	assertEquals(1, errors.size());
+	assertEquals(0, errors.get(0).getLine());
+	assertNull(errors.get(0).getContext());
+    }
+
+    @Test public void lineNumberWithoutError()
+    {
+	assertTrue(LatexLogParser.parse(List.of("l.10 \\section{A}", "Overfull \\hbox (1.0pt too wide)")).isEmpty());
+    }
+
+    @Test public void fatalMarkers()
+    {
+	for(final var l: List.of(
+				 "! Emergency stop.",
+				 "! TeX capacity exceeded, sorry [main memory size=5000000].",
+				 "!  ==> Fatal error occurred, no output PDF file produced!",
+				 "*** (job aborted, no legal \\end found)"))
+	{
+	    final var p = new LatexLogParser();
+	    p.accept(l);
+	    assertTrue(p.isFatal(), l);
+	}
+    }
+
+    @Test public void ordinaryErrorNotFatal()
+    {
+	final var p = new LatexLogParser();
+	p.accept("! Undefined control sequence.");
+	p.accept("l.1 \\foo");
+	assertFalse(p.isFatal());
+	assertEquals(1, p.getErrorCount());
+    }
+
+    @Test public void errorsAreCopies()
+    {
+	final var p = new LatexLogParser();
+	p.accept("! Undefined control sequence.");
+	p.getErrors().get(0).setLine(100);
+	p.accept("l.2 \\foo");
+	assertEquals(2, p.getErrors().get(0).getLine());
+    }
+}
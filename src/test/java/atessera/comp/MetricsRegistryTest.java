@@ -0,0 +1,70 @@
+// SPDX-License-Identifier: BUSL-1.1
+// Copyright 2024-2026 Michael Pozhidaev <msp@luwrain.org>
+
+package atessera.comp;
+
+import java.util.*;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetricsRegistryTest
+{
+    @Test public void plainCommand()
+    {
+	assertEquals("pdfcrop", MetricsRegistry.getToolName("pdfcrop plot.pdf"));
+	assertEquals("gnuplot", MetricsRegistry.getToolName("/usr/bin/gnuplot src.plot"));
+    }
+
+    @Test public void shellScript()
+    {
+	assertEquals("pdflatex", MetricsRegistry.getToolName("bash pdflatex.sh 3 0"));
+	assertEquals("pdflatex", MetricsRegistry.getToolName("bash -e pdflatex.sh"));
+	assertEquals("pdflatex", MetricsRegistry.getToolName("sh ./pdflatex.sh"));
+	//Not run by a shell, so it's the name of the file
+	assertEquals("run.sh", MetricsRegistry.getToolName("./run.sh"));
+    }
+
+    @Test public void prefixesAndAssignments()
+    {
+	assertEquals("mpost", MetricsRegistry.getToolName("TEX=latex mpost main.mp"));
+	assertEquals("pdflatex", MetricsRegistry.getToolName("time nice pdflatex main.tex"));
+	assertEquals("pdflatex", MetricsRegistry.getToolName("env TEXINPUTS=.: exec pdflatex main.tex"));
+    }
+
+    @Test public void forLoop()
+    {
+	assertEquals("mptopdf", MetricsRegistry.getToolName("for f in *.mps; do mptopdf $f; done"));
+	assertEquals("mpost", MetricsRegistry.getToolName("for i in 1 2 3\ndo mpost fig-$i.mp\ndone"));
+    }
+
+    @Test public void empty()
+    {
+	assertEquals("unknown", MetricsRegistry.getToolName(""));
+    }
+
+    @Test public void record()
+    {
+	final var r = new MetricsRegistry();
+	final var res = CompilationResult.empty();
+	res.setWorkspaceBytes(1000);
+	res.setArtifactBytes(100);
+	res.setCommandMetrics(List.of(
+				      new CommandMetrics("bash pdflatex.sh 1 0", 0, 200, 150, 20, 1000),
+				      new CommandMetrics("bash pdflatex.sh 2 0", 1, 300, 250, 30, 3000)));
+	res.setExitCode(1);
+	r.record(res);
+	assertEquals(1, r.getCompilations());
+	assertEquals(1, r.getFailures());
+	assertEquals(1000, r.getWorkspaceBytes());
+	assertEquals(100, r.getArtifactBytes());
+	final var t = r.getToolMetrics().get("pdflatex");
+	assertNotNull(t);
+	assertEquals(2, t.getRuns());
+	assertEquals(1, t.getFailures());
+	assertEquals(500, t.getWallMillis());
+	assertEquals(400, t.getUserCpuMillis());
+	assertEquals(50, t.getSystemCpuMillis());
+	assertEquals(3000, t.getPeakRssBytes());
+    }
+}